@@ -1,7 +1,9 @@
 package dslab;
 
 import dslab.broker.Broker;
+import dslab.broker.EmbeddedClient;
 import dslab.broker.IBroker;
+import dslab.broker.Transport;
 import dslab.config.*;
 import dslab.dns.DNSServer;
 import dslab.dns.IDNSServer;
@@ -18,6 +20,26 @@ public class ComponentFactory {
         return new Broker(config);
     }
 
+    /**
+     * Creates a broker that exchanges the election messages over the given transport. Used for testing clusters
+     * without real sockets
+     * @param config config of the broker
+     * @param transport carries the election messages
+     * @return a new broker
+     */
+    public static IBroker createBroker(BrokerConfig config, Transport transport) {
+        return new Broker(config, transport);
+    }
+
+    /**
+     * Creates a client that publishes to and subscribes at the given broker from the same JVM, without a connection
+     * @param broker a broker created by this factory
+     * @return a new client, closed when the broker shuts down
+     */
+    public static EmbeddedClient createEmbeddedClient(IBroker broker) {
+        return ((Broker) broker).createEmbeddedClient();
+    }
+
     /**
      * Creates a broker via the .properties file
      * @param componentId name of server (e.g "broker-0")
@@ -6,55 +6,113 @@ import dslab.broker.enums.ElectionState;
 import dslab.config.BrokerConfig;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.StringJoiner;
 import java.util.concurrent.*;
 
 public class Broker implements IBroker {
 
+    private static final int ACCEPT_BACKLOG = 1024;
+
     private final BrokerConfig config;
-    private final ServerSocket serverSocket;
+    private final Transport transport;
+    private final List<ServerSocketChannel> serverChannels;
+    private final int acceptorThreads;
+    private final ServerSocketChannel unixServerChannel;
+    private final Path unixSocketPath;
     private final ExecutorService executor;
     private volatile boolean running;
     private final MonitoringClient monitoringClient;
+    private final DeliveryMetrics deliveryMetrics;
     private final Map<Thread, BrokerClientHandler> threadMap;
-    private final Map<String, Exchange> exchanges;
-    private final Map<String, Queue> queues;
+    private final Set<EmbeddedClient> embeddedClients = ConcurrentHashMap.newKeySet();
+    private final MessageStore store;
+    private final List<FederationLink> federationLinks = new ArrayList<>();
 
     // Leader Election
     private volatile ElectionState electionState;
-    private volatile boolean heartbeatReceived;
+    private FailureDetector leaderDetector;
     private final ElectionType electionType;
     private volatile int leader;
     private volatile int currentVote;
+    private long currentTerm; // only used with election.raft.terms, guarded by this
+    private volatile boolean leaseRevoked; // while the leadership is handed over
+    private volatile boolean member;
+    private final Object membershipLock = new Object(); // one membership change at a time
+    private ScheduledFuture<?> joinAttempts;
+    private UdpHeartbeats udpHeartbeats;
 
     private Sender sender;
+    private QueuePartitioning partitioning;
     private Receiver receiver;
     private ScheduledExecutorService scheduler;
 
 
     public Broker(BrokerConfig config) {
+        this(config, new TcpTransport());
+    }
+
+    /**
+     * @param transport carries the LEP messages to and from the peers
+     */
+    public Broker(BrokerConfig config, Transport transport) {
         this.config = config;
+        this.transport = transport;
         this.executor = Executors.newVirtualThreadPerTaskExecutor();
 
         registerDomain(config.domain());
 
         this.monitoringClient = new MonitoringClient(config.monitoringHost(), config.monitoringPort(), config.host(), config.port());
+        this.deliveryMetrics = new DeliveryMetrics();
 
+        this.acceptorThreads = Math.max(1, config.acceptorThreads());
         try {
-            this.serverSocket = new ServerSocket(config.port());
+            this.serverChannels = openServerChannels(config.port(), acceptorThreads);
         } catch (IOException e) {
             System.err.println("error creating server socket: " + e.getMessage());
             throw new RuntimeException(e);
         }
 
-        exchanges = new ConcurrentHashMap<>();
-        queues = new ConcurrentHashMap<>();
+        // Optional listener for clients on the same host, speaking SMQP without going through the TCP stack
+        if (!config.unixSocketPath().isBlank()) {
+            this.unixSocketPath = Path.of(config.unixSocketPath());
+            try {
+                Files.deleteIfExists(unixSocketPath); // left over if the broker was not shut down gracefully
+                this.unixServerChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                this.unixServerChannel.bind(UnixDomainSocketAddress.of(unixSocketPath));
+            } catch (IOException e) {
+                System.err.println("error creating unix domain socket: " + e.getMessage());
+                throw new RuntimeException(e);
+            }
+        } else {
+            this.unixSocketPath = null;
+            this.unixServerChannel = null;
+        }
+
+        store = new MessageStore();
         threadMap = new ConcurrentHashMap<>();
 
-        Exchange defaultExchange = new Exchange(ExchangeType.DEFAULT, "default");
-        this.exchanges.put("default", defaultExchange);
+        // Exchanges of other brokers whose messages are also published here
+        for (String link : config.federationLinks().split(",")) {
+            if (!link.isBlank()) {
+                federationLinks.add(FederationLink.parse(link, config.componentId(), store));
+            }
+        }
 
 
         // LeaderElection
@@ -68,9 +126,39 @@ public class Broker implements IBroker {
             this.leader = -1;
             this.currentVote = -1;
             this.electionState = ElectionState.FOLLOWER;
+            this.member = !config.electionJoin();
             this.sender = new Sender(this);
             this.receiver = new Receiver(this);
-            this.heartbeatReceived = true;
+            if (config.electionHeartbeatUdp()) {
+                try {
+                    this.udpHeartbeats = new UdpHeartbeats(this);
+                } catch (IOException e) {
+                    System.err.println("error creating heartbeat socket: " + e.getMessage());
+                    throw new RuntimeException(e);
+                }
+            }
+            this.leaderDetector = new FailureDetector(config.electionPhiThreshold(), config.electionHeartbeatTimeoutMs(),
+                    config.electionTimeoutJitterMs());
+            if (config.replicationEnabled()) {
+                // followers deliver from their copy of the queues, but only what the leader granted them
+                store.setClaimHandler(new MessageStore.ClaimHandler() {
+                    @Override
+                    public Set<Long> claim(Queue queue, List<Message> messages) {
+                        return claimFromLeader(queue, messages);
+                    }
+
+                    @Override
+                    public boolean release(Queue queue, Message message) {
+                        return releaseToLeader(queue, message);
+                    }
+                });
+                // and queries are only answered by the leader, whose copy is the current one
+                store.setLeadershipCheck(this::confirmLeadership);
+            }
+            if (config.partitioningEnabled()) {
+                this.partitioning = new QueuePartitioning(getId(), config.electionPeerIds(), sender);
+                store.setPartitioning(partitioning);
+            }
             startElectionHandling();
         }
 
@@ -79,20 +167,46 @@ public class Broker implements IBroker {
 
     private void startElectionHandling() {
         executor.submit(receiver);
-        scheduler.scheduleAtFixedRate(this::monitorHeartbeat, 0, config.electionHeartbeatTimeoutMs(), TimeUnit.MILLISECONDS);
+        if (udpHeartbeats != null) {
+            executor.submit(udpHeartbeats);
+        }
+        // checked much more often than the timeout, the detector decides when the leader is overdue
+        long checkIntervalMs = Math.max(1, config.electionHeartbeatTimeoutMs() / 10);
+        scheduler.scheduleAtFixedRate(this::monitorHeartbeat, checkIntervalMs, checkIntervalMs, TimeUnit.MILLISECONDS);
+        if (!member) {
+            long retryMs = config.electionHeartbeatTimeoutMs();
+            joinAttempts = scheduler.scheduleWithFixedDelay(this::askToJoin, 0, retryMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void askToJoin() {
+        for (int peerId : sender.getPeerIds()) {
+            if (member) {
+                return;
+            }
+            String response = sender.request(peerId, "join " + getId() + " " + config.host() + " " + config.electionPort());
+            if (response != null && response.startsWith("ok")) {
+                return; // the leader sends the members to this broker
+            }
+        }
     }
 
     private void monitorHeartbeat() {
-        if ((electionState == ElectionState.FOLLOWER) && !heartbeatReceived) {
+        if (member && (electionState == ElectionState.FOLLOWER) && leaderDetector.isSuspected()) {
+            System.out.println("Leader " + leader + " suspected to have failed, starting election");
+            leaderDetector.postpone(); // the next election starts only after another timeout without heartbeats
             initiateElection();
         }
-        heartbeatReceived = false;
     }
 
     public BrokerConfig getConfig() {
         return config;
     }
 
+    public ElectionState getElectionState() {
+        return electionState;
+    }
+
     public void setElectionState(ElectionState electionState) {
         this.electionState = electionState;
     }
@@ -105,19 +219,241 @@ public class Broker implements IBroker {
         return currentVote;
     }
 
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public MessageStore getStore() {
+        return store;
+    }
+
+    public DeliveryMetrics getDeliveryMetrics() {
+        return deliveryMetrics;
+    }
+
+    /**
+     * @return a client for publishers and subscribers in the same JVM, closed when the broker shuts down
+     */
+    public EmbeddedClient createEmbeddedClient() {
+        EmbeddedClient client = new EmbeddedClient(config, monitoringClient, deliveryMetrics, embeddedClients, store);
+        embeddedClients.add(client);
+        return client;
+    }
+
+    /**
+     * @return whether RAFT elections are held in numbered terms, see {@link #initiateTermElection(boolean, boolean)}
+     */
+    public boolean hasRaftTerms() {
+        return electionType == ElectionType.RAFT && config.electionRaftTerms();
+    }
+
+    public synchronized long getCurrentTerm() {
+        return currentTerm;
+    }
+
+    /**
+     * @return the number of peers that must vote for this broker to become the leader
+     */
+    public int votesNeeded() {
+        int peers = sender.getPeerIds().length;
+        // with terms the candidate votes for itself, so together with half of the peers it has a majority
+        return hasRaftTerms() ? (peers + 1) / 2 : peers / 2;
+    }
+
+    /**
+     * Adopts a term seen in a message of a peer if it is newer than the own one. A leader or candidate of an older
+     * term steps down, and the vote is free again for the new term.
+     */
+    public void observeTerm(long term) {
+        boolean wasLeader;
+        synchronized (this) {
+            if (term <= currentTerm) {
+                return;
+            }
+            currentTerm = term;
+            currentVote = -1;
+            wasLeader = electionState == ElectionState.LEADER;
+            electionState = ElectionState.FOLLOWER;
+        }
+
+        if (wasLeader) {
+            System.out.println("Term " + term + " started by another broker, stepping down as leader");
+            sender.closeConnections();
+            store.setReplicationLog(null);
+        }
+    }
+
+    /**
+     * Handles {@code elect <id> <term>}. The vote is granted if the candidate's term is not older than the own one
+     * and the vote of that term is not given to another candidate yet.
+     * <p>
+     * With leases a follower that still hears from its leader ignores candidates altogether, unless the leader handed
+     * the leadership over to the candidate. Otherwise the leader's lease could outlast its leadership. For at least
+     * the lease duration after the last heartbeat this holds even if the failure detector already suspects the
+     * leader, which with a low phi threshold may happen sooner.
+     *
+     * @param transfer whether the candidate takes over from the leader, see {@link #transferLeadership(int)}
+     * @return the response {@code vote <id> <voted-for> <term>}
+     */
+    public String handleVoteRequest(int candidateId, long term, boolean transfer) {
+        synchronized (this) {
+            long leaseNanos = getLeaseNanos();
+            if (leaseNanos > 0 && !transfer && electionState == ElectionState.FOLLOWER && leader != -1
+                    && leader != candidateId && (leaderDetector.heardWithin(leaseNanos) || !leaderDetector.isOverdue())) {
+                return "vote " + getId() + " " + currentVote + " " + currentTerm;
+            }
+        }
+
+        observeTerm(term);
+        synchronized (this) {
+            if (term == currentTerm && (currentVote == -1 || currentVote == candidateId)) {
+                currentVote = candidateId;
+                leaderDetector.postpone(); // give the candidate time to win before starting an election of our own
+            }
+            return "vote " + getId() + " " + currentVote + " " + currentTerm;
+        }
+    }
+
+    /**
+     * Handles {@code prevote <id> <term>}, which asks whether the candidate could win an election in the given term.
+     * It is granted if the term is newer than the own one and this broker does not hear from a leader anymore either.
+     * Nothing is changed, so a broker that was cut off cannot disrupt a working cluster with ever higher terms.
+     *
+     * @return the response {@code vote <id> <candidate or -1> <term>}
+     */
+    public synchronized String handlePreVoteRequest(int candidateId, long term) {
+        boolean leaderAlive = electionState == ElectionState.LEADER
+                || (electionState == ElectionState.FOLLOWER && leader != -1 && !leaderDetector.isOverdue());
+        int granted = (term > currentTerm && !leaderAlive) ? candidateId : -1;
+        return "vote " + getId() + " " + granted + " " + currentTerm;
+    }
+
     public void updateHeartbeat() {
-        heartbeatReceived = true;
+        leaderDetector.heartbeat();
+    }
+
+    /**
+     * Handles {@code ping <term>}. The ping of a leader that was deposed in the meantime is no heartbeat, it is
+     * answered with the current term instead, so that the leader steps down.
+     */
+    public String handlePing(long term) {
+        observeTerm(term);
+        long current = getCurrentTerm();
+        if (term < current) {
+            return "error stale term " + current;
+        }
+        updateHeartbeat();
+        return "pong";
+    }
+
+    /**
+     * @return the duration of the leader lease in nanoseconds, 0 if the leader has none
+     */
+    public long getLeaseNanos() {
+        return hasRaftTerms() ? TimeUnit.MILLISECONDS.toNanos(config.electionLeaseMs()) : 0;
+    }
+
+    /**
+     * Whether this broker holds the leader lease: a majority of the cluster answered a ping of its term that was sent
+     * less than the lease duration ago. Those followers do not vote for another candidate for at least the lease
+     * duration after they received it, so no other broker can have become the leader in the meantime.
+     */
+    public boolean hasLease() {
+        long leaseNanos = getLeaseNanos();
+        if (leaseNanos <= 0 || leaseRevoked || electionState != ElectionState.LEADER) {
+            return false;
+        }
+        OptionalLong acknowledged = sender.getQuorumAcknowledged(votesNeeded());
+        return acknowledged.isPresent() && System.nanoTime() - acknowledged.getAsLong() < leaseNanos;
+    }
+
+    /**
+     * Confirms that this broker is still the leader before a query is answered from its own state. Within the lease
+     * that takes no message at all, otherwise a majority of the followers has to answer a ping, which renews the
+     * lease as well.
+     */
+    public boolean confirmLeadership() {
+        if (electionState != ElectionState.LEADER || leaseRevoked) {
+            return false;
+        }
+        if (hasLease()) {
+            return true;
+        }
+        return sender.pingFollowers() >= votesNeeded() && electionState == ElectionState.LEADER;
+    }
+
+    /**
+     * @return the UDP heartbeat channel, or null if the heartbeats are sent over TCP
+     */
+    public UdpHeartbeats getUdpHeartbeats() {
+        return udpHeartbeats;
+    }
+
+    /**
+     * Counts a heartbeat received over UDP. Unlike the TCP connections, anyone can send datagrams, so only heartbeats
+     * of the known leader count, and with terms only those of the current term or a newer one.
+     */
+    public void acceptHeartbeat(int leaderId, long term) {
+        if (leaderId != leader || (hasRaftTerms() && term < getCurrentTerm())) {
+            return;
+        }
+        updateHeartbeat();
+    }
+
+    /**
+     * Opens the channels the acceptor threads listen on. Where {@code SO_REUSEPORT} is available every acceptor gets
+     * its own channel bound to the same port and the kernel spreads new connections over them, otherwise all
+     * acceptors share a single channel.
+     */
+    private static List<ServerSocketChannel> openServerChannels(int port, int acceptors) throws IOException {
+        List<ServerSocketChannel> channels = new ArrayList<>();
+        ServerSocketChannel first = ServerSocketChannel.open();
+        boolean reusePort = acceptors > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+
+        int count = reusePort ? acceptors : 1;
+        try {
+            for (int i = 0; i < count; i++) {
+                ServerSocketChannel channel = (i == 0) ? first : ServerSocketChannel.open();
+                channels.add(channel);
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                if (reusePort) {
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel channel : channels) {
+                channel.close();
+            }
+            throw e;
+        }
+
+        return channels;
     }
 
     @Override
     public void run() {
         this.running = true;
 
+        if (unixServerChannel != null) {
+            executor.submit(() -> acceptConnections(unixServerChannel));
+        }
+        for (FederationLink link : federationLinks) {
+            executor.submit(link);
+        }
+        for (int i = 1; i < acceptorThreads; i++) {
+            ServerSocketChannel channel = serverChannels.get(i % serverChannels.size());
+            executor.submit(() -> acceptConnections(channel));
+        }
+        acceptConnections(serverChannels.get(0));
+    }
+
+    private void acceptConnections(ServerSocketChannel channel) {
         while(running){
             try {
-                Socket clientSocket = serverSocket.accept();
-                BrokerClientHandler handler = new BrokerClientHandler(monitoringClient, threadMap, clientSocket, exchanges, queues);
-                executor.submit(handler);
+                SocketChannel clientChannel = channel.accept();
+                // the handler is set up by its own thread, so the acceptor can return to accept() immediately
+                executor.submit(() -> handleConnection(clientChannel));
             } catch (IOException e) {
                 if (running){
                     System.err.println("error accepting client connection: " + e.getMessage());
@@ -127,10 +463,30 @@ public class Broker implements IBroker {
         }
     }
 
+    private void handleConnection(SocketChannel clientChannel) {
+        try {
+            new BrokerClientHandler(config, monitoringClient, deliveryMetrics, threadMap, clientChannel, store).run();
+        } catch (RuntimeException e) {
+            // the task's future is never read, so this is the only place the failure can be reported
+            System.err.println("error handling client connection: " + e);
+        } finally {
+            threadMap.remove(Thread.currentThread());
+            try {
+                clientChannel.close(); // already closed unless the handler failed
+            } catch (IOException e) {
+                System.err.println("error when closing socket");
+            }
+        }
+    }
+
     private void registerDomain(String domain){
+        registerDomain(domain, config.host() + ':' + config.port());
+    }
+
+    private void registerDomain(String domain, String address){
         DNSClient client = new DNSClient(config.dnsHost(), config.dnsPort());
         if (client.connect()){
-            client.register(domain, config.host() + ':' + config.port());
+            client.register(domain, address);
             client.exit();
         }
     }
@@ -146,15 +502,26 @@ public class Broker implements IBroker {
             return;
 
         if (message.startsWith("elect")) {
+            if (hasRaftTerms()) {
+                return; // the vote was already decided by handleVoteRequest
+            }
             handleElect(message);
         } else if (message.startsWith("declare")) {
             handleDeclare(message);
+        } else if (message.startsWith("takeover")) {
+            System.out.println("Taking over the leadership from " + leader);
+            if (hasRaftTerms()) {
+                initiateTermElection(false, true); // the leader is still alive, a pre-vote would fail
+            } else {
+                initiateElection();
+            }
         }
     }
 
     private void handleElect(String message) {
         electionState = ElectionState.CANDIDATE;
         sender.closeConnections();
+        store.setReplicationLog(null);
 
         if (electionType == ElectionType.RAFT) {
             return;
@@ -195,18 +562,42 @@ public class Broker implements IBroker {
 
 
     private void handleDeclare(String message) {
-        sender.closeConnections();  // Stop persistent connections if no longer the leader
-
         int leaderId = parseLeaderId(message);
+        if (hasRaftTerms()) {
+            long term = Long.parseLong(message.split(" ")[2]);
+            if (term < getCurrentTerm()) {
+                return; // a leader that was deposed in the meantime
+            }
+            observeTerm(term);
+        }
+
+        if (leaderId != getId()) {
+            store.setWritesPaused(false); // a follower again, if the leadership was handed over
+            // Stop persistent connections if no longer the leader. In a ring our own declaration
+            // comes back to us after the links to the followers were already established.
+            sender.closeConnections();
+            store.setReplicationLog(null);
+            leaderDetector.reset(); // the heartbeat intervals of the previous leader say nothing about the new one
+        }
+
         if (electionType == ElectionType.RING) {
             handleDeclareRing(leaderId, message);
         } else {
             electionState = ElectionState.FOLLOWER;
             leader = leaderId;
-            currentVote = -1;
+            if (!hasRaftTerms()) {
+                currentVote = -1; // with terms the vote stays given until the next term
+            }
         }
     }
 
+    /**
+     * @return the {@code declare} message that announces this broker as the leader, with terms of the current term
+     */
+    String declareMessage() {
+        return hasRaftTerms() ? "declare " + getId() + " " + getCurrentTerm() : "declare " + getId();
+    }
+
     private int parseLeaderId(String message) {
         return Integer.parseInt(message.split(" ")[1]);
     }
@@ -229,6 +620,11 @@ public class Broker implements IBroker {
         if(electionType == ElectionType.NONE)
             return;
 
+        if (hasRaftTerms()) {
+            initiateTermElection(config.electionRaftPreVote(), false);
+            return;
+        }
+
         electionState = ElectionState.CANDIDATE;
 
         // Send election request
@@ -236,7 +632,7 @@ public class Broker implements IBroker {
 
         // Determine if we have enough votes (or no opposition in non-RAFT)
         boolean hasWon = (electionType == ElectionType.RAFT)
-                ? (votes >= config.electionPeerIds().length / 2)
+                ? (votes >= votesNeeded())
                 : (votes == 0);
 
         // If the node wins, complete the process of becoming leader
@@ -245,17 +641,343 @@ public class Broker implements IBroker {
         }
     }
 
+    /**
+     * RAFT election in numbered terms. With pre-vote the candidate first asks whether it could win the next term at
+     * all, and only then starts it, votes for itself and asks the peers for their votes. Each broker gives one vote
+     * per term, so at most one candidate wins a term. If no candidate gets a majority the next election starts after
+     * another timeout, which the jitter makes differ between the brokers.
+     *
+     * @param takeover whether the leader handed the leadership over, which the followers are told with
+     *                 {@code elect <id> <term> transfer}
+     */
+    private void initiateTermElection(boolean preVote, boolean takeover) {
+        long term;
+        synchronized (this) {
+            electionState = ElectionState.CANDIDATE;
+            term = currentTerm + 1;
+        }
+
+        if (preVote && sender.sendMessage("prevote " + getId() + " " + term) < votesNeeded()) {
+            returnToFollower();
+            return;
+        }
+
+        synchronized (this) {
+            if (electionState != ElectionState.CANDIDATE) {
+                return; // another leader was declared or a newer term started in the meantime
+            }
+            term = ++currentTerm;
+            currentVote = getId();
+        }
+
+        int votes = sender.sendMessage("elect " + getId() + " " + term + (takeover ? " transfer" : ""));
+
+        boolean hasWon;
+        synchronized (this) {
+            hasWon = votes >= votesNeeded() && electionState == ElectionState.CANDIDATE && currentTerm == term;
+        }
+        if (hasWon) {
+            becomeLeader();
+        } else {
+            returnToFollower();
+        }
+    }
+
+    private void returnToFollower() {
+        synchronized (this) {
+            if (electionState == ElectionState.CANDIDATE) {
+                electionState = ElectionState.FOLLOWER;
+            }
+        }
+        leaderDetector.postpone(); // with jitter every broker waits a different time before the next attempt
+    }
+
     private void becomeLeader() {
         leader = getId();
         electionState = ElectionState.LEADER;
+        store.setWritesPaused(false);
+        leaseRevoked = false;
 
-        sender.sendMessage("declare " + getId());
-        sender.establishConnectionsForLeader(); // Establish persistent connections
+        sender.sendMessage(declareMessage());
+
+        // Establish persistent connections, which stream every change from now on if replication is enabled
+        ReplicationLog log = null;
+        if (config.replicationEnabled()) {
+            log = new ReplicationLog(store.nextEpoch(), config.replicationLogCapacity());
+            store.setReplicationLog(log);
+        }
+        sender.establishConnectionsForLeader(log);
+        if (electionState != ElectionState.LEADER) {
+            // stepped down in the meantime, before the links existed that stepping down closes
+            sender.closeConnections();
+            store.setReplicationLog(null);
+            return;
+        }
 
         registerDomain(config.electionDomain());
     }
 
 
+    /**
+     * Hands the leadership over to a follower, for a planned restart of this broker. Publishing is paused until the
+     * follower holds the whole replication log, then it is told to start an election right away instead of waiting for
+     * the heartbeat timeout. Its election makes this broker step down, and the election domain points to the follower
+     * already while it runs. The lease ends with the pause, the follower may win before this broker learns of it.
+     *
+     * @param targetId the follower to hand over to, or -1 for the one that is furthest ahead
+     * @return the response to the {@code transfer} command
+     */
+    public String transferLeadership(int targetId) {
+        if (electionType != ElectionType.RAFT) {
+            return "error leader transfer requires raft election";
+        }
+        if (electionState != ElectionState.LEADER) {
+            return "error not leader";
+        }
+
+        List<FollowerLink> candidates = new ArrayList<>();
+        for (FollowerLink link : sender.getFollowerLinks()) {
+            if (targetId < 0 || link.getPeerId() == targetId) {
+                candidates.add(link);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return "error unknown follower " + targetId;
+        }
+        candidates.sort((a, b) -> Long.compare(b.getMatchSeq(), a.getMatchSeq()));
+
+        store.setWritesPaused(true);
+        leaseRevoked = true;
+        ReplicationLog log = store.getReplicationLog();
+        long lastSeq = log == null ? 0 : log.getLastSeq();
+        try {
+            for (FollowerLink candidate : candidates) {
+                if (!candidate.awaitMatchSeq(lastSeq, config.electionHeartbeatTimeoutMs())) {
+                    System.out.println("Node " + candidate.getPeerId() + " did not catch up for the leader transfer");
+                    continue;
+                }
+                if ("ok".equals(sender.request(candidate.getPeerId(), "takeover " + getId()))) {
+                    redirectElectionDomain(candidate.getPeerId());
+                    return "ok transfer " + candidate.getPeerId();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        store.setWritesPaused(false);
+        leaseRevoked = false;
+        return "error no follower could take over";
+    }
+
+    private void redirectElectionDomain(int peerId) {
+        String response = sender.request(peerId, "address");
+        if (response != null && response.startsWith("address ")) {
+            String[] parts = response.split(" ");
+            registerDomain(config.electionDomain(), parts[1] + ':' + parts[2]);
+        }
+    }
+
+    /**
+     * Adds a broker to the cluster. Only the leader changes the membership: it sends the new list of members to the
+     * current members, and the change takes effect once a majority of the cluster acknowledged it, like a vote. The
+     * joining broker then gets the members and the leader, and with replication a snapshot through its follower link.
+     *
+     * @return the response to the {@code join} command
+     */
+    public String join(int id, String host, int port) {
+        if (electionState != ElectionState.LEADER) {
+            return "error not leader";
+        }
+
+        String entry = id + ":" + host + ":" + port;
+        synchronized (membershipLock) {
+            List<String> members = currentMembers();
+            if (members.contains(entry)) {
+                // asked again, e.g. because the first answer took too long
+                welcomeMember(id, members);
+                return "ok members " + String.join(",", members);
+            }
+            for (String existing : members) {
+                if (existing.startsWith(id + ":")) {
+                    return "error " + id + " is already a member";
+                }
+            }
+
+            List<String> proposed = new ArrayList<>(members);
+            proposed.add(entry);
+            String response = changeMembers(members, proposed);
+            if (response.startsWith("ok")) {
+                welcomeMember(id, proposed);
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Removes a broker from the cluster, agreed on like {@link #join(int, String, int)}. The removed broker stops
+     * taking part in elections and can be shut down.
+     *
+     * @return the response to the {@code leave} command
+     */
+    public String leave(int id) {
+        if (electionState != ElectionState.LEADER) {
+            return "error not leader";
+        }
+        if (id == getId()) {
+            return "error the leader cannot leave, transfer the leadership first";
+        }
+
+        synchronized (membershipLock) {
+            List<String> members = currentMembers();
+            List<String> proposed = new ArrayList<>();
+            for (String existing : members) {
+                if (!existing.startsWith(id + ":")) {
+                    proposed.add(existing);
+                }
+            }
+            if (proposed.size() == members.size()) {
+                return "error " + id + " is not a member";
+            }
+            return changeMembers(members, proposed);
+        }
+    }
+
+    // must hold the membership lock
+    private String changeMembers(List<String> members, List<String> proposed) {
+        // a majority of the current cluster, this broker included
+        int needed = members.size() / 2;
+        if (sender.broadcast("members " + String.join(",", proposed)) < needed) {
+            sender.broadcast("members " + String.join(",", members)); // undo the change where it was applied
+            return "error membership change not acknowledged by a majority";
+        }
+
+        updateMembers(String.join(",", proposed));
+        System.out.println("Cluster members changed to " + proposed);
+        return "ok members " + String.join(",", proposed);
+    }
+
+    private void welcomeMember(int id, List<String> members) {
+        sender.request(id, "members " + String.join(",", members));
+        sender.request(id, declareMessage());
+        if (partitioning != null) {
+            for (String declaration : store.getDeclarations()) {
+                sender.request(id, "metadata " + declaration);
+            }
+        }
+    }
+
+    private List<String> currentMembers() {
+        List<String> members = new ArrayList<>();
+        members.add(getId() + ":" + config.host() + ":" + config.electionPort());
+        members.addAll(sender.getPeerAddresses());
+        return members;
+    }
+
+    /**
+     * Replaces the members of the cluster, sent by the leader with {@code members}. The peers are the members after
+     * this broker in the list, followed by the ones before it, so all brokers agree on the order of the ring.
+     *
+     * @param list the members as {@code <id>:<host>:<election-port>}, separated by commas
+     * @throws IllegalArgumentException if the list is malformed
+     */
+    public void updateMembers(String list) {
+        String[] entries = list.split(",");
+        int[] ids = new int[entries.length];
+        String[] hosts = new String[entries.length];
+        int[] ports = new int[entries.length];
+        int self = -1;
+        for (int i = 0; i < entries.length; i++) {
+            String[] parts = entries[i].split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("malformed member " + entries[i]);
+            }
+            ids[i] = Integer.parseInt(parts[0]);
+            hosts[i] = parts[1];
+            ports[i] = Integer.parseInt(parts[2]);
+            if (ids[i] == getId()) {
+                self = i;
+            }
+        }
+
+        int peerCount = self >= 0 ? entries.length - 1 : entries.length;
+        int[] peerIds = new int[peerCount];
+        String[] peerHosts = new String[peerCount];
+        int[] peerPorts = new int[peerCount];
+        int next = 0;
+        for (int k = 0; k < entries.length; k++) {
+            int i = (self + 1 + k) % entries.length;
+            if (i != self) {
+                peerIds[next] = ids[i];
+                peerHosts[next] = hosts[i];
+                peerPorts[next] = ports[i];
+                next++;
+            }
+        }
+
+        synchronized (membershipLock) {
+            sender.setPeers(peerIds, peerHosts, peerPorts);
+            if (partitioning != null) {
+                int[] memberIds = Arrays.copyOf(peerIds, peerCount + 1);
+                memberIds[peerCount] = getId();
+                partitioning.setMembers(memberIds);
+                executor.submit(store::rebalance); // sends messages to other brokers, not while they wait for our answer
+            }
+        }
+
+        boolean wasMember = member;
+        member = self >= 0;
+        if (member && !wasMember) {
+            System.out.println("Joined the cluster with members " + list);
+            if (joinAttempts != null) {
+                joinAttempts.cancel(false);
+            }
+            leaderDetector.reset();
+        } else if (!member && wasMember) {
+            System.out.println("Removed from the cluster");
+            electionState = ElectionState.FOLLOWER;
+            leader = -1;
+            sender.closeConnections();
+            store.setReplicationLog(null);
+        }
+    }
+
+    private Set<Long> claimFromLeader(Queue queue, List<Message> messages) {
+        int leaderId = leader;
+        if (electionState != ElectionState.FOLLOWER || leaderId < 0) {
+            return null;
+        }
+
+        StringJoiner ids = new StringJoiner(",");
+        for (Message message : messages) {
+            ids.add(Long.toString(message.getId()));
+        }
+        String response = sender.request(leaderId, "claim " + queue.getName() + " " + ids);
+        if (response == null || !response.startsWith("claimed ")) {
+            return null;
+        }
+
+        Set<Long> granted = new HashSet<>();
+        String claimed = response.substring("claimed ".length());
+        if (!claimed.equals("-")) {
+            for (String id : claimed.split(",")) {
+                granted.add(Long.parseLong(id));
+            }
+        }
+        return granted;
+    }
+
+    private boolean releaseToLeader(Queue queue, Message message) {
+        int leaderId = leader;
+        if (electionState != ElectionState.FOLLOWER || leaderId < 0) {
+            return false;
+        }
+
+        String response = sender.request(leaderId, "release " + queue.getName() + " " + message.getId() + " " +
+                message.getRoutingKey() + " " + Base64.getEncoder().encodeToString(message.getPayload()));
+        return "ok".equals(response);
+    }
+
     @Override
     public int getLeader() {
         return leader;
@@ -273,14 +995,28 @@ public class Broker implements IBroker {
             scheduler.shutdown();
             receiver.shutdown();
             sender.shutdown();
+            if (udpHeartbeats != null) {
+                udpHeartbeats.shutdown();
+            }
+            if (partitioning != null) {
+                partitioning.shutdown();
+            }
         }
 
 
         monitoringClient.shutdown();
 
+        for (FederationLink link : federationLinks) {
+            link.close();
+        }
+
         try {
-            if (serverSocket != null) {
-                serverSocket.close();
+            for (ServerSocketChannel serverChannel : serverChannels) {
+                serverChannel.close();
+            }
+            if (unixServerChannel != null) {
+                unixServerChannel.close();
+                Files.deleteIfExists(unixSocketPath);
             }
         } catch (IOException e) {
             System.err.println("error closing server socket: " + e.getMessage());
@@ -290,6 +1026,9 @@ public class Broker implements IBroker {
         for (BrokerClientHandler handler : threadMap.values()) {
             handler.shutdown();
         }
+        for (EmbeddedClient client : embeddedClients) {
+            client.close();
+        }
 
         executor.shutdown();
         try {
@@ -1,219 +1,662 @@
 package dslab.broker;
 
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.Socket;
+import dslab.broker.enums.Opcode;
+import dslab.broker.enums.SlowConsumerPolicy;
+import dslab.config.BrokerConfig;
+
+import java.io.*;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves one SMQP client connection.
+ * <p>
+ * In binary mode the connection carries up to {@link #MAX_CHANNELS} logical channels, each with its own current
+ * exchange, queue and subscription. A {@link Opcode#CHANNEL} frame selects the channel the following frames belong
+ * to, in both directions. Clients that never select a channel use channel 0 only and never receive such a frame.
+ * <p>
+ * Publishers tend to repeat a few routing keys, so the handler keeps the queues the last {@link #MAX_ROUTES} routing
+ * keys were routed to and publishes to them directly until a binding is added, see
+ * {@link MessageStore#getBindingEpoch()}.
+ */
 public class BrokerClientHandler implements Runnable {
-    private final Socket clientSocket;
-    private final PrintWriter out;
-    private final Scanner scanner;
+    private static final ByteBuffer NEWLINE = ByteBuffer.wrap(new byte[]{'\n'}).asReadOnlyBuffer();
+    static final int MAX_CHANNELS = 1024;
+    static final int MAX_ROUTES = 64;
+
+    /**
+     * The state of one logical channel of the connection.
+     */
+    private static class Channel {
+        private final int id;
+        private Exchange currentExchange;
+        private Queue currentQueue;
+        private volatile boolean subscribed;
+        private Subscription subscription;
+
+        Channel(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * The queues an exchange routed a routing key to, valid while the binding epoch is unchanged.
+     */
+    private record Route(Exchange exchange, long bindingEpoch, List<Queue> queues) {
+    }
+
+    private final SocketChannel clientChannel;
+    private final DataInputStream in;
+    private final Object writeLock = new Object();
+    private final int deliveryBatchMessages;
+    private final int deliveryBatchBytes;
+    private final int subscriberBufferBytes;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+    private final DeliveryMetrics deliveryMetrics;
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
     private boolean running;
-    private final Map<String, Exchange> exchanges;
-    private final Map<String, Queue> queues;
-    private Exchange currentExchange;
-    private Queue currentQueue;
-    private volatile boolean subscribed;
+    private boolean binary;
+    private final MessageStore store;
+    private final Map<Integer, Channel> channels = new ConcurrentHashMap<>();
+    private Channel channel; // the channel the commands are for, only channel 0 in text mode
+    private int writtenChannel; // the channel of the last frame written, guarded by writeLock
+    // by routing key, only used by the reading thread, the least recently used route is dropped first
+    private final Map<String, Route> routes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Route> eldest) {
+            return size() > MAX_ROUTES;
+        }
+    };
 
-    Thread subscribedThread;
+    private FederationUpstream federation;
 
     private MonitoringClient monitoringClient;
 
-    public BrokerClientHandler(MonitoringClient monitoringClient, Map<Thread, BrokerClientHandler> threadMap, Socket clientSocket, Map<String, Exchange> exchanges, Map<String, Queue> queues) {
+    public BrokerClientHandler(BrokerConfig config, MonitoringClient monitoringClient, DeliveryMetrics deliveryMetrics, Map<Thread, BrokerClientHandler> threadMap, SocketChannel clientChannel, MessageStore store) {
         this.monitoringClient = monitoringClient;
         threadMap.put(Thread.currentThread(), this);
 
 
-        this.clientSocket = clientSocket;
-        try {
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
-            scanner = new Scanner(clientSocket.getInputStream());
-        } catch (IOException e) {
-            System.err.println("error when opening streams of socket");
-            throw new RuntimeException(e);
+        this.clientChannel = clientChannel;
+        // every write is a complete response or batch, waiting for more data only delays the last segment,
+        // Unix domain sockets have no such option
+        if (clientChannel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+            try {
+                clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                System.err.println("could not disable Nagle's algorithm: " + e.getMessage());
+            }
         }
-
-        this.exchanges = exchanges;
-        this.queues = queues;
+        this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(clientChannel)));
+        this.deliveryBatchMessages = config.deliveryBatchMessages();
+        this.deliveryBatchBytes = config.deliveryBatchBytes();
+        this.subscriberBufferBytes = config.subscriberBufferBytes();
+        this.slowConsumerPolicy = SlowConsumerPolicy.valueOf(config.slowConsumerPolicy().toUpperCase());
+        this.deliveryMetrics = deliveryMetrics;
+
+        this.store = store;
+        this.channel = new Channel(0);
+        channels.put(0, channel);
     }
 
     @Override
     public void run() {
         running = true;
-        out.println("ok SMQP");
+        writeLine("ok SMQP");
 
-        while(running) {
-            if (!scanner.hasNextLine()) {
-                break;
+        try {
+            while (running) {
+                if (binary) {
+                    Frame frame = Frame.read(in);
+                    if (frame == null) {
+                        break;
+                    }
+                    handleFrame(frame);
+                } else {
+                    String input = readLine();
+                    if (input == null) {
+                        break;
+                    }
+                    handleCommand(input);
+                }
             }
-            String input = scanner.nextLine();
+        } catch (IOException e) {
+            // connection closed or malformed frame received, nothing more to read
+        }
+        shutdown();
+    }
 
-            String[] tokens = input.split(" ");
-            String command = tokens[0].toLowerCase();
-            String[] args = Arrays.copyOfRange(tokens, 1, tokens.length);
+    private void handleCommand(String input) {
+        String[] tokens = input.split(" ");
+        String command = tokens[0].toLowerCase();
+        String[] args = Arrays.copyOfRange(tokens, 1, tokens.length);
 
-            if(subscribed){
-                if(command.equals("stop")){
-                    subscribed = false;
-                }
-                continue;
+        if (federation != null) {
+            handleFederationCommand(command, args);
+            return;
+        }
+
+        if(channel.subscribed){
+            if(command.equals("stop")){
+                handleStop(channel);
             }
+            return;
+        }
 
-            switch (command){
-                case "exit":{
-                    handleExit();
-                    break;
-                }
-                case "exchange": {
-                    handleExchange(args);
-                    break;
-                }
-                case "queue": {
-                    handleQueue(args);
-                    break;
-                }
-                case "bind": {
-                    handleBind(args);
-                    break;
-                }
-                case "publish": {
-                    handlePublish(args);
-                    break;
-                }
-                case "subscribe": {
-                    handleSubscribe(args);
-                    break;
-                }
+        switch (command){
+            case "exit":{
+                handleExit();
+                break;
+            }
+            case "binary": {
+                handleBinary(args);
+                break;
+            }
+            case "exchange": {
+                handleExchange(args);
+                break;
+            }
+            case "queue": {
+                handleQueue(args);
+                break;
+            }
+            case "bind": {
+                handleBind(args);
+                break;
+            }
+            case "publish": {
+                handlePublish(args);
+                break;
+            }
+            case "subscribe": {
+                handleSubscribe(args);
+                break;
+            }
+            case "federate": {
+                handleFederate(args);
+                break;
+            }
+            case "depth": {
+                handleDepth();
+                break;
+            }
+            case "fetch": {
+                handleFetch(args);
+                break;
+            }
 
+        }
+    }
+
+    private void handleFrame(Frame frame) {
+        if (frame.opcode() == Opcode.CHANNEL) {
+            handleChannel(frame.key());
+            return;
+        }
+
+        if(channel.subscribed){
+            if(frame.opcode() == Opcode.STOP){
+                handleStop(channel);
+            }
+            return;
+        }
+
+        switch (frame.opcode()){
+            case EXIT: {
+                handleExit();
+                break;
+            }
+            case EXCHANGE: {
+                handleExchange(new String[]{frame.payloadAsString(), frame.key()});
+                break;
+            }
+            case QUEUE: {
+                handleQueue(new String[]{frame.key()});
+                break;
+            }
+            case BIND: {
+                handleBind(new String[]{frame.key()});
+                break;
+            }
+            case PUBLISH: {
+                handlePublish(frame.key(), frame.payload());
+                break;
+            }
+            case SUBSCRIBE: {
+                handleSubscribe(new String[0]);
+                break;
+            }
+            case DEPTH: {
+                handleDepth();
+                break;
             }
+            case FETCH: {
+                handleFetch(frame.payloadAsString().split(" "));
+                break;
+            }
+            default: {
+                reply("error protocol error");
+            }
+        }
+    }
 
+    /**
+     * Selects the channel the following frames are for, it is opened with its first use. There is no response unless
+     * the channel number is invalid, which closes the connection.
+     */
+    private void handleChannel(String key) {
+        int id;
+        try {
+            id = Integer.parseInt(key);
+        } catch (NumberFormatException e) {
+            id = -1;
         }
-        shutdown();
+        if (id < 0 || id >= MAX_CHANNELS) {
+            reply("error invalid channel");
+            running = false;
+            return;
+        }
+
+        channel = channels.computeIfAbsent(id, Channel::new);
     }
 
     private void handleExit(){
         running = false;
 
-        out.println("ok bye");
+        reply("ok bye");
+
+        // the reply is not delayed, so the client may already send more before the channel is closed: end the output
+        // right away so that it reads the end of the stream rather than a reset caused by the unread input
+        synchronized (writeLock) {
+            try {
+                clientChannel.shutdownOutput();
+            } catch (IOException e) {
+                // the connection is already gone
+            }
+        }
+    }
+
+    private void handleBinary(String[] args){
+        if (args.length != 0){
+            reply("error usage: binary");
+            return;
+        }
+        reply("ok");
+
+        // every following message in both directions is a length-prefixed frame
+        binary = true;
     }
 
     private void handleExchange(String[] args){
         if(args.length != 2){
-            out.println("error usage: exchange <type> <name>");
+            reply("error usage: exchange <type> <name>");
             return;
         }
 
         String type = args[0];
         String name = args[1];
 
-        Exchange exchange = exchanges.get(name);
-        if (exchange != null){
-            if(exchange.getType() != Exchange.convertType(type)){
-                out.println("error exchange already exists with different type");
-                return;
-            }
-        } else {
-            exchange = new Exchange(Exchange.convertType(type), name);
-            exchanges.put(name, exchange);
+        if (store.isReplica() && store.getExchange(name) == null) {
+            // a follower only selects the exchanges it replicated from the leader
+            reply("error not leader");
+            return;
+        }
+        Exchange exchange = store.declareExchange(Exchange.convertType(type), name);
+        if (exchange == null){
+            reply("error exchange already exists with different type");
+            return;
         }
 
-        out.println("ok");
+        reply("ok");
 
-        currentExchange = exchange;
+        channel.currentExchange = exchange;
 
     }
 
     private void handleQueue(String[] args){
         if (args.length != 1){
-            out.println("error usage: queue <name>");
+            reply("error usage: queue <name>");
             return;
         }
-        out.println("ok");
-
-
         String name = args[0];
-        currentQueue = queues.computeIfAbsent(name, Queue::new);
-        exchanges.get("default").bindQueue(name, currentQueue);
+        if (store.isReplica() && store.getQueue(name) == null) {
+            reply("error not leader");
+            return;
+        }
+        reply("ok");
+
+        channel.currentQueue = store.declareQueue(name);
 
     }
 
     private void handleBind(String[] args){
         if (args.length != 1){
-            out.println("error usage: bind <binding-key>");
+            reply("error usage: bind <binding-key>");
             return;
         }
-        if (currentExchange == null){
-            out.println("error no exchange declared");
+        if (channel.currentExchange == null){
+            reply("error no exchange declared");
             return;
         }
-        if (currentQueue == null){
-            out.println("error no queue declared");
+        if (channel.currentQueue == null){
+            reply("error no queue declared");
             return;
         }
-        out.println("ok");
+        if (store.isReplica()) {
+            reply("error not leader");
+            return;
+        }
+        reply("ok");
 
 
         String bindingKey = args[0];
-        currentExchange.bindQueue(bindingKey, currentQueue);
+        store.bind(channel.currentExchange, bindingKey, channel.currentQueue);
 
 
     }
 
     private void handlePublish(String[] args){
         if (args.length < 2){
-            out.println("error usage: publish <routing-key> <message>");
+            reply("error usage: publish <routing-key> <message>");
             return;
         }
 
-        if (currentExchange == null){
-            out.println("error no exchange declared");
+        handlePublish(args[0], args[1].getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handlePublish(String routingKey, byte[] payload){
+        if (channel.currentExchange == null){
+            reply("error no exchange declared");
             return;
         }
-        out.println("ok");
+        if (store.isReplica()) {
+            // the message would get an id of the leader's and be lost with the next snapshot
+            reply("error not leader");
+            return;
+        }
+        if (!store.isWritable()) {
+            reply("error leader transfer in progress");
+            return;
+        }
+        // answered after publishing, as a message for a queue of another broker may not get there
+        if (!store.publish(route(channel.currentExchange, routingKey), routingKey, payload)) {
+            reply("error queue owner unavailable");
+            return;
+        }
+        reply("ok");
 
+        monitoringClient.sendLog(routingKey);
+    }
 
-        String routingKey = args[0];
-        String message = args[1];
-        List<Queue> targetQueues = currentExchange.routeMessage(routingKey);
+    /**
+     * @return the queues the exchange routes the routing key to, without routing if this connection routed it before
+     * and no binding was added since
+     */
+    private List<Queue> route(Exchange exchange, String routingKey) {
+        long epoch = store.getBindingEpoch(); // read first, so a binding added while routing invalidates the route
+        Route route = routes.get(routingKey);
+        if (route == null || route.exchange() != exchange || route.bindingEpoch() != epoch) {
+            route = new Route(exchange, epoch, exchange.routeMessage(routingKey));
+            routes.put(routingKey, route);
+        }
+        return route.queues();
+    }
 
-        for (Queue queue : targetQueues){
-            queue.addMessage(message);
+    private void handleSubscribe(String[] args){
+        Channel subscriber = channel;
+        if (subscriber.currentQueue == null){
+            reply("error no queue declared");
+            return;
         }
+        if (!store.isLocal(subscriber.currentQueue)) {
+            // the messages of the queue are held by another broker of the cluster
+            String owner = store.ownerAddress(subscriber.currentQueue);
+            reply(owner != null ? "error moved " + owner : "error queue owner unavailable");
+            return;
+        }
+        subscriber.subscribed = true;
+        reply("ok");
 
-        monitoringClient.sendLog(routingKey);
+        subscriber.subscription = new Subscription(subscriber.currentQueue, batch -> deliver(subscriber, batch),
+                this::shutdown, slowConsumerPolicy, subscriberBufferBytes, deliveryBatchMessages, deliveryBatchBytes,
+                deliveryMetrics);
+        subscriber.subscription.start();
 
+    }
 
+    private void handleDepth() {
+        Queue queue = channel.currentQueue;
+        if (queue == null) {
+            reply("error no queue declared");
+            return;
+        }
+        if (!store.isLocal(queue)) {
+            String owner = store.ownerAddress(queue);
+            reply(owner != null ? "error moved " + owner : "error queue owner unavailable");
+            return;
+        }
+
+        int depth = store.depth(queue);
+        reply(depth < 0 ? "error not leader" : "ok " + depth);
     }
 
-    private void handleSubscribe(String[] args){
-        if (currentQueue == null){
-            out.println("error no queue declared");
+    /**
+     * Takes up to the requested number of messages from the current queue and sends them right after the response
+     * {@code ok <count>}, waiting at most the given time for the first one. No subscription is started, so a consumer
+     * that pulls its messages costs no thread while it is idle. The following commands of the connection, of all
+     * channels, are only read once the fetch is answered.
+     */
+    private void handleFetch(String[] args) {
+        int maxMessages;
+        long maxWaitMs;
+        try {
+            maxMessages = args.length == 2 ? Integer.parseInt(args[0]) : 0;
+            maxWaitMs = args.length == 2 ? Long.parseLong(args[1]) : -1;
+        } catch (NumberFormatException e) {
+            maxMessages = 0;
+            maxWaitMs = -1;
+        }
+        if (maxMessages < 1 || maxWaitMs < 0) {
+            reply("error usage: fetch <max-messages> <max-wait-ms>");
+            return;
+        }
+        Queue queue = channel.currentQueue;
+        if (queue == null) {
+            reply("error no queue declared");
+            return;
+        }
+        if (!store.isLocal(queue)) {
+            String owner = store.ownerAddress(queue);
+            reply(owner != null ? "error moved " + owner : "error queue owner unavailable");
+            return;
+        }
+
+        List<Message> messages;
+        try {
+            // a single fetch carries no more payload than a subscriber may have buffered
+            messages = store.claimForDelivery(queue, queue.getMessages(maxMessages, subscriberBufferBytes, maxWaitMs));
+        } catch (InterruptedException e) {
+            running = false; // the broker shuts down
+            return;
+        }
+
+        ByteBuffer[] response = encodeReply("ok " + messages.size());
+        ByteBuffer[] buffers = Arrays.copyOf(response, response.length + 2 * messages.size());
+        int i = response.length;
+        for (Message message : messages) {
+            i += message.putFrame(binary, buffers, i);
+        }
+
+        long start = System.nanoTime();
+        if (!write(channel.id, buffers)) {
+            store.requeueUndelivered(queue, messages);
+            deliveryMetrics.recordRequeue(messages.size());
+            return;
+        }
+        deliveryMetrics.recordWrite(messages.size(), System.nanoTime() - start);
+        store.delivered(queue, messages);
+    }
+
+    private void handleFederate(String[] args) {
+        if (args.length != 1) {
+            reply("error usage: federate <link-name>");
+            return;
+        }
+        if (channel.currentExchange == null) {
+            reply("error no exchange declared");
             return;
         }
-        subscribed = true;
-        out.println("ok");
 
-        subscribedThread = Thread.ofVirtual().start(() -> {
+        if (store.isReplica()) {
+            // the link takes the messages from the queue without claiming them
+            reply("error not leader");
+            return;
+        }
+
+        Queue queue = store.declareFederationQueue(channel.currentExchange, args[0]);
+        if (!store.isLocal(queue)) {
+            String owner = store.ownerAddress(queue);
+            reply(owner != null ? "error moved " + owner : "error queue owner unavailable");
+            return;
+        }
+        reply("ok");
+
+        // from now on the connection carries batches to the other broker and its acknowledgements
+        federation = new FederationUpstream(queue, this::writeLine, deliveryBatchMessages, deliveryBatchBytes,
+                subscriberBufferBytes);
+        federation.start();
+    }
+
+    private void handleFederationCommand(String command, String[] args) {
+        if (command.equals("ack") && args.length == 1) {
             try {
-                while (subscribed) {
-                    String message = currentQueue.getMessage();
-                    out.println(message);
+                federation.ack(Long.parseLong(args[0]));
+                return;
+            } catch (NumberFormatException e) {
+                // handled as protocol error below
+            }
+        }
+        shutdown(); // a broken link is re-established by the other broker
+    }
+
+    private void handleStop(Channel stopped){
+        stopped.subscribed = false;
+        if (stopped.subscription != null) {
+            stopped.subscription.stop();
+        }
+    }
+
+    private boolean deliver(Channel subscriber, List<Message> batch) {
+        List<Message> messages = store.claimForDelivery(subscriber.currentQueue, batch);
+        if (messages.isEmpty()) {
+            return true;
+        }
+
+        ByteBuffer[] buffers = new ByteBuffer[2 * messages.size()];
+        int i = 0;
+        for (Message message : messages) {
+            i += message.putFrame(binary, buffers, i);
+        }
+
+        if (!write(subscriber.id, buffers)) {
+            // keep the messages for the remaining subscribers
+            store.requeueUndelivered(subscriber.currentQueue, messages);
+            deliveryMetrics.recordRequeue(messages.size());
+            return false;
+        }
+        store.delivered(subscriber.currentQueue, messages);
+        return true;
+    }
+
+    private void reply(String response) {
+        write(channel.id, encodeReply(response));
+    }
+
+    /**
+     * Encodes a response as a line in text mode, or as an {@link Opcode#OK} or {@link Opcode#ERROR} frame.
+     */
+    private ByteBuffer[] encodeReply(String response) {
+        if (!binary) {
+            return new ByteBuffer[]{ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8)), NEWLINE.duplicate()};
+        }
+
+        if (response.startsWith("error")) {
+            return new ByteBuffer[]{Frame.encode(Opcode.ERROR, "", response.substring("error".length()).trim().getBytes(StandardCharsets.UTF_8))};
+        } else {
+            return new ByteBuffer[]{Frame.encode(Opcode.OK, "", response.substring("ok".length()).trim().getBytes(StandardCharsets.UTF_8))};
+        }
+    }
+
+    private String readLine() throws IOException {
+        lineBuffer.reset();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (lineBuffer.size() == 0) {
+                    return null;
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+                break;
             }
-        });
+            lineBuffer.write(b);
+        }
+
+        String line = lineBuffer.toString(StandardCharsets.UTF_8);
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
 
+    private boolean writeLine(String line) {
+        return write(0, ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)), NEWLINE.duplicate());
+    }
+
+    /**
+     * Writes all buffers of the given channel with as few gathering writes as possible, preceded by a
+     * {@link Opcode#CHANNEL} frame if the last frames written were of another channel.
+     * <p>
+     * Blocks while the client does not read, and with it the writes of all other channels of the connection, as
+     * their frames go through the same socket.
+     */
+    private boolean write(int channelId, ByteBuffer... buffers) {
+        synchronized (writeLock) {
+            if (channelId != writtenChannel) {
+                ByteBuffer[] switched = new ByteBuffer[buffers.length + 1];
+                switched[0] = Frame.encode(Opcode.CHANNEL, Integer.toString(channelId), new byte[0]);
+                System.arraycopy(buffers, 0, switched, 1, buffers.length);
+                buffers = switched;
+                writtenChannel = channelId;
+            }
+
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            try {
+                while (remaining > 0) {
+                    remaining -= clientChannel.write(buffers);
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
     }
 
     public void shutdown() {
         running = false;
-        subscribed = false;
+        for (Channel open : channels.values()) {
+            handleStop(open);
+        }
+        if (federation != null) {
+            federation.stop();
+        }
 
-        if(clientSocket != null && !clientSocket.isClosed()) {
+        if(clientChannel != null && clientChannel.isOpen()) {
             try {
-                clientSocket.close(); // input and output streams are also automatically closed with that operation
+                clientChannel.close(); // the input stream is also closed with that operation
             } catch (IOException e) {
                 System.err.println("error when closing socket");
             }
@@ -0,0 +1,47 @@
+package dslab.broker;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns names to the members of a cluster. Every member is placed on the ring at several points, a name belongs
+ * to the member at the first point at or after the name's hash. When a member joins or leaves, only the names between
+ * its points and their predecessors move.
+ */
+public class ConsistentHashRing {
+    private static final int POINTS_PER_MEMBER = 64;
+
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+
+    public ConsistentHashRing(int[] memberIds) {
+        for (int memberId : memberIds) {
+            for (int i = 0; i < POINTS_PER_MEMBER; i++) {
+                ring.put(hash(memberId + "#" + i), memberId);
+            }
+        }
+    }
+
+    /**
+     * @return the id of the member the name belongs to
+     */
+    public int owner(String name) {
+        Map.Entry<Long, Integer> entry = ring.ceilingEntry(hash(name));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // every Java platform has to support MD5
+        }
+    }
+}
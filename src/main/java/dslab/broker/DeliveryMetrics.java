@@ -0,0 +1,77 @@
+package dslab.broker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters about the delivery of messages to subscribers, shared by all subscriptions of a broker.
+ */
+public class DeliveryMetrics {
+    private final LongAdder deliveredMessages = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final LongAdder pausedNanos = new LongAdder();
+    private final LongAdder slowConsumerEvents = new LongAdder();
+    private final LongAdder disconnectedConsumers = new LongAdder();
+    private final LongAdder requeuedMessages = new LongAdder();
+
+    void recordWrite(int messages, long nanos) {
+        deliveredMessages.add(messages);
+        writeNanos.add(nanos);
+    }
+
+    void recordPause(long nanos) {
+        pausedNanos.add(nanos);
+    }
+
+    void recordSlowConsumer() {
+        slowConsumerEvents.increment();
+    }
+
+    void recordDisconnect() {
+        disconnectedConsumers.increment();
+    }
+
+    void recordRequeue(int messages) {
+        requeuedMessages.add(messages);
+    }
+
+    public long getDeliveredMessages() {
+        return deliveredMessages.sum();
+    }
+
+    /**
+     * @return the total time subscriber writer threads spent blocked writing to their sockets
+     */
+    public long getBlockedWriteMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(writeNanos.sum());
+    }
+
+    /**
+     * @return the total time deliveries were paused because a subscriber's outbound buffer was full
+     */
+    public long getPausedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(pausedNanos.sum());
+    }
+
+    public long getSlowConsumerEvents() {
+        return slowConsumerEvents.sum();
+    }
+
+    public long getDisconnectedConsumers() {
+        return disconnectedConsumers.sum();
+    }
+
+    public long getRequeuedMessages() {
+        return requeuedMessages.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "delivered=" + getDeliveredMessages() +
+                " blockedWriteMs=" + getBlockedWriteMillis() +
+                " pausedMs=" + getPausedMillis() +
+                " slowConsumerEvents=" + getSlowConsumerEvents() +
+                " disconnected=" + getDisconnectedConsumers() +
+                " requeued=" + getRequeuedMessages();
+    }
+}
@@ -0,0 +1,167 @@
+package dslab.broker;
+
+import dslab.broker.enums.SlowConsumerPolicy;
+import dslab.config.BrokerConfig;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets publishers and subscribers in the same JVM use the broker without a connection. The calls work on the
+ * broker's {@link MessageStore} directly, nothing is encoded and no socket is involved.
+ * <p>
+ * Declaring, binding, publishing and subscribing behave as the SMQP commands of the same name, including the
+ * replication to followers and the forwarding to other brokers with queue partitioning. Instead of an error response
+ * the calls throw an exception. Create one with {@link dslab.ComponentFactory#createEmbeddedClient(IBroker)}.
+ */
+public class EmbeddedClient implements AutoCloseable {
+    private final MonitoringClient monitoringClient;
+    private final DeliveryMetrics deliveryMetrics;
+    private final MessageStore store;
+    private final Set<EmbeddedClient> clients;
+    private final int deliveryBatchMessages;
+    private final int deliveryBatchBytes;
+    private final int subscriberBufferBytes;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+    // registered in clients by Broker#createEmbeddedClient
+    EmbeddedClient(BrokerConfig config, MonitoringClient monitoringClient, DeliveryMetrics deliveryMetrics, Set<EmbeddedClient> clients, MessageStore store) {
+        this.monitoringClient = monitoringClient;
+        this.deliveryMetrics = deliveryMetrics;
+        this.store = store;
+        this.clients = clients;
+        this.deliveryBatchMessages = config.deliveryBatchMessages();
+        this.deliveryBatchBytes = config.deliveryBatchBytes();
+        this.subscriberBufferBytes = config.subscriberBufferBytes();
+        this.slowConsumerPolicy = SlowConsumerPolicy.valueOf(config.slowConsumerPolicy().toUpperCase());
+    }
+
+    /**
+     * Declares an exchange if it does not exist yet.
+     *
+     * @throws IllegalArgumentException if the exchange already exists with a different type
+     * @throws IllegalStateException    if the exchange does not exist and this broker is a follower
+     */
+    public Exchange declareExchange(ExchangeType type, String name) {
+        if (store.getExchange(name) == null) {
+            requireLeader();
+        }
+        Exchange exchange = store.declareExchange(type, name);
+        if (exchange == null) {
+            throw new IllegalArgumentException("exchange already exists with different type");
+        }
+        return exchange;
+    }
+
+    /**
+     * Declares a queue if it does not exist yet and binds it to the default exchange with its name.
+     *
+     * @throws IllegalStateException if the queue does not exist and this broker is a follower
+     */
+    public Queue declareQueue(String name) {
+        if (store.getQueue(name) == null) {
+            requireLeader();
+        }
+        return store.declareQueue(name);
+    }
+
+    /**
+     * @throws IllegalStateException if this broker is a follower
+     */
+    public void bind(Exchange exchange, String bindingKey, Queue queue) {
+        requireLeader();
+        store.bind(exchange, bindingKey, queue);
+    }
+
+    /**
+     * Routes the message through the exchange and adds it to all matching queues before returning. The payload is
+     * not copied, it must not be changed afterwards.
+     *
+     * @return the number of queues the message was added to
+     * @throws IllegalStateException if this broker is a follower, while the leadership is handed over to another
+     *                               broker, or if the broker owning one of the queues could not be reached, the
+     *                               message may be missing in its queues
+     */
+    public int publish(Exchange exchange, String routingKey, byte[] payload) {
+        requireLeader();
+        if (!store.isWritable()) {
+            throw new IllegalStateException("leader transfer in progress");
+        }
+
+        List<Queue> queues = store.publish(exchange, routingKey, payload);
+        if (queues == null) {
+            throw new IllegalStateException("queue owner unavailable");
+        }
+        monitoringClient.sendLog(routingKey);
+        return queues.size();
+    }
+
+    /**
+     * Starts delivering the messages of the queue to the subscriber, in batches as to SMQP subscribers. Messages of
+     * a batch the subscriber does not accept go back to the queue and the subscription ends.
+     *
+     * @return the subscription, which is stopped with {@link Subscription#stop()}
+     * @throws IllegalStateException if another broker of the cluster holds the messages of the queue
+     */
+    public Subscription subscribe(Queue queue, Subscription.Writer subscriber) {
+        requireLocal(queue);
+
+        // a subscriber that falls behind only loses its subscription, the messages are requeued already
+        Subscription subscription = new Subscription(queue, batch -> deliver(queue, batch, subscriber), () -> {
+        }, slowConsumerPolicy, subscriberBufferBytes, deliveryBatchMessages, deliveryBatchBytes, deliveryMetrics);
+        subscriptions.add(subscription);
+        subscription.start();
+        return subscription;
+    }
+
+    /**
+     * @return the number of messages waiting in the queue, or -1 if this broker's copy may not be current
+     * @throws IllegalStateException if another broker of the cluster holds the messages of the queue
+     */
+    public int depth(Queue queue) {
+        requireLocal(queue);
+        return store.depth(queue);
+    }
+
+    private void requireLeader() {
+        if (store.isReplica()) {
+            throw new IllegalStateException("not leader");
+        }
+    }
+
+    private void requireLocal(Queue queue) {
+        if (!store.isLocal(queue)) {
+            String owner = store.ownerAddress(queue);
+            throw new IllegalStateException(owner != null ? "moved " + owner : "queue owner unavailable");
+        }
+    }
+
+    private boolean deliver(Queue queue, List<Message> batch, Subscription.Writer subscriber) {
+        List<Message> messages = store.claimForDelivery(queue, batch);
+        if (messages.isEmpty()) {
+            return true;
+        }
+
+        if (!subscriber.write(messages)) {
+            store.requeueUndelivered(queue, messages);
+            deliveryMetrics.recordRequeue(messages.size());
+            return false;
+        }
+        store.delivered(queue, messages);
+        return true;
+    }
+
+    /**
+     * Stops all subscriptions of this client, their undelivered messages go back to the queues.
+     */
+    @Override
+    public void close() {
+        clients.remove(this);
+        for (Subscription subscription : subscriptions) {
+            subscription.stop();
+        }
+        subscriptions.clear();
+    }
+}
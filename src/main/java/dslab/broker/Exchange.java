@@ -1,10 +1,12 @@
 package dslab.broker;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Exchange {
     private final ExchangeType type;
     private final String name;
     private final HashSet<Queue> queues;
+    private final Set<Queue> federationQueues = ConcurrentHashMap.newKeySet(); // receive every message
 
 
     public Exchange(ExchangeType type, String name) {
@@ -31,8 +33,42 @@ public class Exchange {
         }
     }
 
+    /**
+     * Binds a queue that receives every message of the exchange regardless of its routing key, used to forward the
+     * exchange to another broker.
+     */
+    public void bindFederationQueue(Queue queue) {
+        federationQueues.add(queue);
+    }
+
+    /**
+     * @return the queues bound with a binding key
+     */
+    public List<Queue> getBoundQueues() {
+        synchronized (queues) {
+            return new ArrayList<>(queues);
+        }
+    }
+
+    public List<Queue> getFederationQueues() {
+        return new ArrayList<>(federationQueues);
+    }
+
     public List<Queue> routeMessage(String routingKey){
-        List<Queue> targetQueues = new LinkedList<>();
+        List<Queue> targetQueues = routeToBoundQueues(routingKey);
+        for (Queue queue : federationQueues) {
+            if (!targetQueues.contains(queue)) {
+                targetQueues.add(queue);
+            }
+        }
+        return targetQueues;
+    }
+
+    /**
+     * Routes a message without the federation queues, for messages that arrived over a federation link.
+     */
+    public List<Queue> routeToBoundQueues(String routingKey){
+        List<Queue> targetQueues = new ArrayList<>();
 
         switch (type) {
             case DIRECT, DEFAULT:
@@ -53,7 +89,6 @@ public class Exchange {
                 }
                 break;
         }
-
         return targetQueues;
     }
 
@@ -0,0 +1,152 @@
+package dslab.broker;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Phi accrual failure detector for the leader's heartbeats.
+ * <p>
+ * Instead of a fixed timeout it keeps the recent intervals between heartbeats and computes phi, the suspicion level
+ * that the leader failed given how long the last heartbeat is overdue compared to those intervals. A phi of 8 means
+ * that such a delay would only occur with a probability of 10^-8 if the leader was still alive. The intervals are
+ * padded with an acceptable pause, so a single garbage collection pause does not trigger an election.
+ * <p>
+ * As long as too few intervals are known, e.g. right after a new leader was declared, the leader is suspected once no
+ * heartbeat arrived within the timeout. All times are taken from {@link System#nanoTime()}, so changes of the wall
+ * clock have no effect.
+ * <p>
+ * With a jitter every reset draws a random extra delay, by which the suspicion is postponed. Followers that lost the
+ * same leader then start their elections at different times instead of splitting the votes.
+ * <p>
+ * While an election runs the suspicion is only {@link #postpone() postponed}, the leader stays {@link #isOverdue()
+ * overdue}, so the brokers still grant the pre-votes of other candidates.
+ */
+public class FailureDetector {
+    private static final int MAX_SAMPLES = 200;
+    private static final int MIN_SAMPLES = 3;
+
+    private final double threshold;
+    private final double timeoutMs;
+    private final double acceptablePauseMs;
+    private final double minStdDeviationMs;
+    private final long jitterMs;
+
+    // guarded by this
+    private final ArrayDeque<Double> intervals = new ArrayDeque<>();
+    private double sum;
+    private double squaredSum;
+    private long lastHeartbeat = System.nanoTime();
+    private double extraDelayMs;
+    private long postponedUntil = System.nanoTime();
+
+    /**
+     * @param threshold phi at which the leader is suspected
+     * @param timeoutMs the heartbeat timeout, used while there is no history and to derive the tolerances
+     * @param jitterMs  the upper bound of the random extra delay, 0 for none
+     */
+    public FailureDetector(double threshold, long timeoutMs, long jitterMs) {
+        this.threshold = threshold;
+        this.timeoutMs = timeoutMs;
+        this.acceptablePauseMs = timeoutMs / 2.0;
+        this.minStdDeviationMs = timeoutMs / 10.0;
+        this.jitterMs = jitterMs;
+        this.extraDelayMs = nextExtraDelay();
+    }
+
+    public synchronized void heartbeat() {
+        long now = System.nanoTime();
+        double intervalMs = (now - lastHeartbeat) / 1_000_000.0;
+        lastHeartbeat = now;
+
+        if (intervalMs > timeoutMs) {
+            return; // an outage or an election, not a sample of the regular heartbeat interval
+        }
+        intervals.addLast(intervalMs);
+        sum += intervalMs;
+        squaredSum += intervalMs * intervalMs;
+        if (intervals.size() > MAX_SAMPLES) {
+            double removed = intervals.removeFirst();
+            sum -= removed;
+            squaredSum -= removed * removed;
+        }
+    }
+
+    /**
+     * Forgets the history, used when another broker becomes the leader or an election was started.
+     */
+    public synchronized void reset() {
+        intervals.clear();
+        sum = 0;
+        squaredSum = 0;
+        lastHeartbeat = System.nanoTime();
+        extraDelayMs = nextExtraDelay();
+    }
+
+    /**
+     * Postpones the suspicion by another timeout and a new random extra delay, without forgetting when the leader was
+     * heard of last. Used when this broker started an election, voted or lost one.
+     */
+    public synchronized void postpone() {
+        extraDelayMs = nextExtraDelay();
+        postponedUntil = System.nanoTime() + (long) ((timeoutMs + extraDelayMs) * 1_000_000);
+    }
+
+    public synchronized boolean isSuspected() {
+        long now = System.nanoTime();
+        if (now - postponedUntil < 0) {
+            return false;
+        }
+        return isSuspected((now - lastHeartbeat) / 1_000_000.0 - extraDelayMs);
+    }
+
+    /**
+     * @return whether the leader would be suspected if there was no jitter
+     */
+    public synchronized boolean isOverdue() {
+        return isSuspected((System.nanoTime() - lastHeartbeat) / 1_000_000.0);
+    }
+
+    /**
+     * @return whether a heartbeat arrived within the given time, or the detector was reset since, regardless of the
+     * heartbeat history and the threshold
+     */
+    public synchronized boolean heardWithin(long nanos) {
+        return System.nanoTime() - lastHeartbeat < nanos;
+    }
+
+    /**
+     * @return the suspicion level for the time since the last heartbeat
+     */
+    public synchronized double phi() {
+        return phi((System.nanoTime() - lastHeartbeat) / 1_000_000.0);
+    }
+
+    // must hold the lock of the detector
+    private boolean isSuspected(double elapsedMs) {
+        if (intervals.size() < MIN_SAMPLES) {
+            return elapsedMs > timeoutMs;
+        }
+        return phi(elapsedMs) >= threshold;
+    }
+
+    private double nextExtraDelay() {
+        return jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs) : 0;
+    }
+
+    // must hold the lock of the detector
+    private double phi(double elapsedMs) {
+        if (intervals.isEmpty()) {
+            return 0;
+        }
+
+        double mean = sum / intervals.size() + acceptablePauseMs;
+        double variance = Math.max(0, squaredSum / intervals.size() - Math.pow(sum / intervals.size(), 2));
+        double stdDeviation = Math.max(Math.sqrt(variance), minStdDeviationMs);
+
+        // logistic approximation of the cumulative normal distribution
+        double y = (elapsedMs - mean) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        double pLater = elapsedMs > mean ? e / (1.0 + e) : 1.0 - 1.0 / (1.0 + e);
+        return -Math.log10(Math.max(pLater, Double.MIN_VALUE));
+    }
+}
@@ -0,0 +1,143 @@
+package dslab.broker;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * The receiving end of a federation link. It connects to another broker as an SMQP client, subscribes to one of
+ * its exchanges with {@code federate} and publishes every message it receives to the local exchange of the same name,
+ * where it is routed with the local bindings. The messages travel one link only, they do not reach the federation
+ * queues of the local exchange, so brokers may link each other's exchanges in both directions. The link reconnects
+ * whenever the connection is lost, messages published in the meantime are kept in the federation queue of the other
+ * broker.
+ * <p>
+ * Acknowledgements are cumulative: a batch is acknowledged once no further batch is waiting to be read, or after
+ * {@link #ACK_EVERY_BATCHES} batches.
+ */
+public class FederationLink implements Runnable {
+    private static final long RECONNECT_DELAY_MS = 1000;
+    private static final int ACK_EVERY_BATCHES = 16;
+
+    private final String host;
+    private final int port;
+    private final ExchangeType exchangeType;
+    private final String exchangeName;
+    private final String linkName;
+    private final MessageStore store;
+
+    private volatile boolean running = true;
+    private volatile Socket socket;
+
+    public FederationLink(String host, int port, ExchangeType exchangeType, String exchangeName, String linkName,
+                          MessageStore store) {
+        this.host = host;
+        this.port = port;
+        this.exchangeType = exchangeType;
+        this.exchangeName = exchangeName;
+        this.linkName = linkName;
+        this.store = store;
+    }
+
+    /**
+     * Creates a link from its configuration of the form {@code <host>:<port>:<exchange-type>:<exchange>}.
+     */
+    public static FederationLink parse(String link, String linkName, MessageStore store) {
+        String[] parts = link.trim().split(":");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("federation link must be <host>:<port>:<exchange-type>:<exchange>: " + link);
+        }
+        return new FederationLink(parts[0], Integer.parseInt(parts[1]), Exchange.convertType(parts[2]), parts[3],
+                linkName, store);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                receive();
+            } catch (IOException | RuntimeException e) {
+                if (running) {
+                    System.out.println("federation link to " + host + ":" + port + " failed: " + e.getMessage());
+                }
+            }
+
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private void receive() throws IOException {
+        Exchange exchange = store.declareExchange(exchangeType, exchangeName);
+        if (exchange == null) {
+            throw new IOException("exchange " + exchangeName + " already exists with a different type");
+        }
+
+        try (Socket socket = new Socket(host, port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)))) {
+            this.socket = socket;
+
+            expect(in, "ok SMQP");
+            out.println("exchange " + exchangeType.name().toLowerCase() + " " + exchangeName);
+            out.flush();
+            expect(in, "ok");
+            out.println("federate " + linkName);
+            out.flush();
+            expect(in, "ok");
+
+            long ackedSeq = 0;
+            String line;
+            while (running && (line = in.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length != 3 || !parts[0].equals("batch")) {
+                    throw new IOException("unexpected line " + line);
+                }
+                long seq = Long.parseLong(parts[1]);
+                int count = Integer.parseInt(parts[2]);
+
+                for (int i = 0; i < count; i++) {
+                    String message = in.readLine();
+                    if (message == null) {
+                        throw new EOFException("connection closed within a batch");
+                    }
+                    int separator = message.indexOf(' ');
+                    if (store.publishFederated(exchange, message.substring(0, separator),
+                            Base64.getDecoder().decode(message.substring(separator + 1))) == null) {
+                        // not acknowledged, so the other broker sends the batch again after reconnecting
+                        throw new IOException("queue owner unavailable");
+                    }
+                }
+
+                if (!in.ready() || seq - ackedSeq >= ACK_EVERY_BATCHES) {
+                    out.println("ack " + seq);
+                    out.flush();
+                    ackedSeq = seq;
+                }
+            }
+        }
+    }
+
+    private static void expect(BufferedReader in, String expected) throws IOException {
+        String response = in.readLine();
+        if (!expected.equals(response)) {
+            throw new IOException("expected '" + expected + "' but got '" + response + "'");
+        }
+    }
+
+    public void close() {
+        running = false;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                System.out.println("Error closing federation link: " + e.getMessage());
+            }
+        }
+    }
+}
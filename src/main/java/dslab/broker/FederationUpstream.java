@@ -0,0 +1,126 @@
+package dslab.broker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * The sending end of a federation link. It takes the messages from the link's federation queue and sends them to
+ * the downstream broker in batches of the form {@code batch <seq> <count>} followed by {@code count} lines of the form
+ * {@code <routing-key> <base64-message>}.
+ * <p>
+ * The downstream broker acknowledges with {@code ack <seq>}, which covers every batch up to {@code seq}. At most
+ * {@code windowBytes} may be unacknowledged, messages that were never acknowledged go back to the queue when the
+ * link is stopped.
+ */
+public class FederationUpstream {
+
+    /**
+     * Sends a batch to the downstream broker.
+     */
+    public interface Writer {
+        boolean write(String text);
+    }
+
+    private record Batch(long seq, List<Message> messages, int bytes) {
+    }
+
+    private final Queue queue;
+    private final Writer writer;
+    private final int batchMessages;
+    private final int batchBytes;
+    private final int windowBytes;
+
+    private final ArrayDeque<Batch> unacked = new ArrayDeque<>();
+    private int unackedBytes;
+    private long nextSeq = 1;
+    private volatile boolean active;
+    private Thread senderThread;
+
+    public FederationUpstream(Queue queue, Writer writer, int batchMessages, int batchBytes, int windowBytes) {
+        this.queue = queue;
+        this.writer = writer;
+        this.batchMessages = batchMessages;
+        this.batchBytes = batchBytes;
+        this.windowBytes = windowBytes;
+    }
+
+    public void start() {
+        active = true;
+        senderThread = Thread.ofVirtual().start(this::send);
+    }
+
+    /**
+     * Releases all batches up to and including the given sequence number.
+     */
+    public void ack(long seq) {
+        synchronized (unacked) {
+            while (!unacked.isEmpty() && unacked.peekFirst().seq() <= seq) {
+                unackedBytes -= unacked.pollFirst().bytes();
+            }
+            unacked.notifyAll();
+        }
+    }
+
+    /**
+     * Stops sending and puts all unacknowledged messages back into the queue.
+     */
+    public void stop() {
+        active = false;
+        if (senderThread != null) {
+            senderThread.interrupt();
+        }
+
+        synchronized (unacked) {
+            List<Message> messages = new ArrayList<>();
+            for (Batch batch : unacked) {
+                messages.addAll(batch.messages());
+            }
+            unacked.clear();
+            unackedBytes = 0;
+            queue.requeue(messages);
+            unacked.notifyAll();
+        }
+    }
+
+    private void send() {
+        try {
+            while (active) {
+                synchronized (unacked) {
+                    while (active && unackedBytes >= windowBytes) {
+                        unacked.wait();
+                    }
+                }
+
+                List<Message> messages = queue.getMessages(batchMessages, batchBytes);
+                StringBuilder text = new StringBuilder();
+                synchronized (unacked) {
+                    if (!active) {
+                        queue.requeue(messages);
+                        break;
+                    }
+
+                    int bytes = 0;
+                    for (Message message : messages) {
+                        bytes += message.getPayload().length;
+                    }
+                    Batch batch = new Batch(nextSeq++, messages, bytes);
+                    unacked.addLast(batch);
+                    unackedBytes += bytes;
+                    text.append("batch ").append(batch.seq()).append(' ').append(messages.size());
+                }
+
+                for (Message message : messages) {
+                    text.append('\n').append(message.getRoutingKey()).append(' ')
+                            .append(Base64.getEncoder().encodeToString(message.getPayload()));
+                }
+                if (!writer.write(text.toString())) {
+                    stop();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package dslab.broker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * The leader's link to one follower. It sends the heartbeats and, if replication is enabled, streams the entries of
+ * the {@link ReplicationLog} over the {@link PeerChannel} to the follower.
+ * <p>
+ * Entries are sent in batches of the form {@code replicate <epoch> <first-seq> <count>} followed by {@code count}
+ * lines of the form {@code <seq> <entry>}. Batches are pipelined, the follower answers every batch with
+ * {@code replicated <epoch> <last-applied-seq>}. If that is less than what was sent, or the batch got lost with the
+ * connection, the link goes back to the first entry the follower is missing.
+ * <p>
+ * Before the first batch, and whenever the follower lost its state or needs entries the log does not retain anymore,
+ * the link sends a {@link Snapshot} of the leader's store instead. It is compressed and streamed in parts of the form
+ * {@code snapshot <epoch> <seq> <part> <base64-data>} while it is written, followed by {@code snapshot <epoch> <seq>
+ * end}, which the follower answers like a batch. The log is then streamed from the entry after the snapshot on.
+ * <p>
+ * With terms the heartbeats are {@code ping <term>}. A follower that moved on to a newer term answers
+ * {@code error stale term <term>} instead of {@code pong}, upon which this broker steps down. The time the last
+ * answered ping was sent backs the leader lease, see {@link Broker#hasLease()}.
+ * <p>
+ * A follower learns the leader only from {@code declare}, which the pings do not repeat. If the follower did not answer
+ * the declare or a later ping, e.g. because it was cut off from this broker for a while, the link declares the leader
+ * again once the follower answers a ping.
+ */
+public class FollowerLink {
+    private static final long READ_TIMEOUT_MS = 100;
+    private static final long RETRY_DELAY_MS = 100;
+    private static final int SNAPSHOT_PART_BYTES = 64 * 1024;
+
+    private final PeerChannel connection;
+    private final Broker broker;
+    private final MessageStore store;
+    private final ReplicationLog log;
+    private final int batchSize;
+    private volatile boolean open = true;
+    private volatile long lastStreamed = System.nanoTime(); // when the last batch or snapshot part was sent
+    private volatile long lastPinged; // when the last ping was sent
+    private final AtomicBoolean heartbeatQueued = new AtomicBoolean();
+    private volatile boolean declareNeeded; // the follower may have missed the declare
+
+    // replication progress, guarded by this
+    private long nextSeq = 1;
+    private long generation;
+    private boolean snapshotNeeded = true;
+    private volatile long matchSeq;
+    private volatile OptionalLong lastAcknowledged = OptionalLong.empty();
+
+    /**
+     * @param declareNeeded whether the follower did not answer the declare of this broker
+     */
+    public FollowerLink(PeerChannel connection, Broker broker, ReplicationLog log, boolean declareNeeded) {
+        this.connection = connection;
+        this.declareNeeded = declareNeeded;
+        this.broker = broker;
+        this.store = broker.getStore();
+        this.log = log;
+        this.batchSize = broker.getConfig().replicationBatchSize();
+    }
+
+    public void start() {
+        if (log != null) {
+            Thread.ofVirtual().start(this::streamLog);
+        }
+    }
+
+    public int getPeerId() {
+        return connection.getPeerId();
+    }
+
+    /**
+     * @return the sequence number up to which the follower confirmed to hold the leader's log
+     */
+    public long getMatchSeq() {
+        return matchSeq;
+    }
+
+    /**
+     * Waits until the follower confirmed to hold the log up to the given sequence number.
+     *
+     * @return true if it did within the timeout
+     */
+    public synchronized boolean awaitMatchSeq(long seq, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (matchSeq < seq) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+                return false;
+            }
+            wait(remainingMs);
+        }
+        return true;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which the last ping was sent that the follower answered with
+     * {@code pong}, empty if it did not answer any yet
+     */
+    public OptionalLong getLastAcknowledged() {
+        return lastAcknowledged;
+    }
+
+    /**
+     * Sends a heartbeat unless a ping, replication batch or snapshot part was sent to the follower within the given
+     * time, which it takes as heartbeats as well. While replication is busy the link therefore sends hardly any pings.
+     * Other requests over the same connection, like those of {@link QueuePartitioning}, do not count as heartbeats.
+     * A follower that may have missed the declare is always pinged, the answer makes the link declare again.
+     */
+    public void sendHeartbeat(long quietNanos) {
+        long now = System.nanoTime();
+        if (declareNeeded || now - Math.max(lastStreamed, lastPinged) >= quietNanos) {
+            ping();
+        }
+    }
+
+    /**
+     * Sends a heartbeat like {@link #sendHeartbeat(long)} on the given executor of the follower, so that connecting to
+     * an unreachable follower only delays its own heartbeats. No further heartbeat is queued while one still waits
+     * there.
+     */
+    public void sendHeartbeat(long quietNanos, Executor executor) {
+        if (!heartbeatQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                heartbeatQueued.set(false);
+                sendHeartbeat(quietNanos);
+            });
+        } catch (RejectedExecutionException e) {
+            heartbeatQueued.set(false); // the follower was removed from the cluster in the meantime
+        }
+    }
+
+    /**
+     * Sends a ping, with terms of the current term.
+     *
+     * @return whether the follower answered with {@code pong}
+     */
+    public CompletableFuture<Boolean> ping() {
+        long sent = System.nanoTime();
+        lastPinged = sent;
+        String message = broker.hasRaftTerms() ? "ping " + broker.getCurrentTerm() : "ping";
+        return connection.send(message).thenApply(response -> {
+            if (response == null) {
+                declareNeeded = true;
+                return false;
+            }
+            if ("pong".equals(response)) {
+                lastAcknowledged = OptionalLong.of(sent); // answered in order, so never older than before
+                if (declareNeeded) {
+                    declareNeeded = false;
+                    connection.send(broker.declareMessage());
+                }
+                return true;
+            }
+            if (response != null && response.startsWith("error stale term ")) {
+                try {
+                    broker.observeTerm(Long.parseLong(response.substring("error stale term ".length())));
+                } catch (NumberFormatException e) {
+                    // not a follower of this cluster
+                }
+            }
+            return false;
+        });
+    }
+
+    private void streamLog() {
+        try {
+            while (open) {
+                long fromSeq;
+                long batchGeneration;
+                boolean snapshot;
+                synchronized (this) {
+                    fromSeq = nextSeq;
+                    batchGeneration = generation;
+                    snapshot = snapshotNeeded;
+                }
+
+                if (snapshot) {
+                    if (!sendSnapshot()) {
+                        Thread.sleep(RETRY_DELAY_MS);
+                    }
+                    continue;
+                }
+
+                List<String> entries = log.read(fromSeq, batchSize, READ_TIMEOUT_MS);
+                if (entries == null) {
+                    System.out.println("Node " + getPeerId() + " fell behind the retained replication log, sending a snapshot");
+                    synchronized (this) {
+                        snapshotNeeded = true;
+                    }
+                    continue;
+                }
+                if (entries.isEmpty()) {
+                    continue;
+                }
+
+                long lastSeq = fromSeq + entries.size() - 1;
+                synchronized (this) {
+                    if (batchGeneration != generation) {
+                        continue; // the follower asked to go back in the meantime
+                    }
+                    nextSeq = lastSeq + 1;
+                }
+
+                String[] lines = new String[entries.size() + 1];
+                lines[0] = "replicate " + log.getEpoch() + " " + fromSeq + " " + entries.size();
+                long seq = fromSeq;
+                for (int i = 0; i < entries.size(); i++) {
+                    lines[i + 1] = seq++ + " " + entries.get(i);
+                }
+
+                CompletableFuture<String> response = connection.send(lines);
+                lastStreamed = System.nanoTime();
+                response.thenAccept(line -> handleReplicated(batchGeneration, lastSeq, line));
+                if (response.isDone() && response.join() == null) {
+                    Thread.sleep(RETRY_DELAY_MS); // the follower is unreachable, do not try again right away
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Streams a snapshot of the store to the follower.
+     *
+     * @return true if the follower loaded it
+     */
+    private boolean sendSnapshot() {
+        Snapshot snapshot = store.takeSnapshot(log);
+        if (snapshot == null) {
+            open = false; // no longer the leader
+            return false;
+        }
+
+        String prefix = "snapshot " + snapshot.getEpoch() + " " + snapshot.getSeq();
+        SnapshotParts parts = new SnapshotParts(prefix);
+        try (OutputStream out = new DeflaterOutputStream(parts)) {
+            snapshot.writeTo(out);
+        } catch (IOException e) {
+            return false;
+        }
+
+        // answered after all parts, as the follower answers in order
+        String response = connection.request(prefix + " end");
+        if (parts.failed || !("replicated " + snapshot.getEpoch() + " " + snapshot.getSeq()).equals(response)) {
+            return false;
+        }
+
+        synchronized (this) {
+            generation++; // answers to batches sent before the snapshot are outdated
+            nextSeq = snapshot.getSeq() + 1;
+            matchSeq = snapshot.getSeq();
+            snapshotNeeded = false;
+            notifyAll();
+        }
+        System.out.println("Node " + getPeerId() + " loaded a snapshot up to " + snapshot.getSeq());
+        return true;
+    }
+
+    private synchronized void handleReplicated(long batchGeneration, long batchLastSeq, String response) {
+        long appliedSeq = matchSeq;
+        if (response != null && response.startsWith("replicated")) {
+            String[] parts = response.split(" ");
+            try {
+                if (parts.length == 3 && Long.parseLong(parts[1]) == log.getEpoch()) {
+                    appliedSeq = Long.parseLong(parts[2]);
+                }
+            } catch (NumberFormatException e) {
+                // handled like a lost batch
+            }
+        }
+
+        if (batchGeneration == generation && appliedSeq < matchSeq) {
+            // the follower lost what it confirmed before, it was restarted
+            generation++;
+            snapshotNeeded = true;
+            return;
+        }
+
+        matchSeq = Math.max(matchSeq, appliedSeq);
+        notifyAll();
+        if (batchGeneration != generation || appliedSeq >= batchLastSeq) {
+            return;
+        }
+
+        // the follower could not apply the batch, resend everything it is missing and ignore the
+        // answers to batches that were sent before
+        generation++;
+        nextSeq = appliedSeq + 1;
+    }
+
+    public void close() {
+        open = false;
+    }
+
+    /**
+     * Sends the compressed snapshot in parts as it is written, without waiting for the follower in between.
+     */
+    private class SnapshotParts extends OutputStream {
+        private final String prefix;
+        private final byte[] buffer = new byte[SNAPSHOT_PART_BYTES];
+        private int length;
+        private int part;
+        private volatile boolean failed;
+
+        SnapshotParts(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer[length++] = (byte) b;
+            if (length == buffer.length) {
+                sendPart();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, buffer.length - length);
+                System.arraycopy(b, off, buffer, length, n);
+                length += n;
+                off += n;
+                len -= n;
+                if (length == buffer.length) {
+                    sendPart();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            sendPart();
+        }
+
+        private void sendPart() throws IOException {
+            if (length == 0) {
+                return;
+            }
+            if (!open || failed) {
+                throw new IOException("snapshot for Node " + getPeerId() + " aborted");
+            }
+
+            String data = Base64.getEncoder().encodeToString(Arrays.copyOf(buffer, length));
+            lastStreamed = System.nanoTime();
+            connection.send(prefix + " " + part++ + " " + data).thenAccept(response -> {
+                if (!"ok".equals(response)) {
+                    failed = true;
+                }
+            });
+            length = 0;
+        }
+    }
+}
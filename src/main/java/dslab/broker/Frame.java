@@ -0,0 +1,94 @@
+package dslab.broker;
+
+import dslab.broker.enums.Opcode;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A frame of the binary SMQP protocol. Every frame is laid out as
+ * <pre>
+ * | int length | byte opcode | short key length | key (UTF-8) | payload |
+ * </pre>
+ * where {@code length} counts all bytes following the length field. The payload is passed through as opaque bytes.
+ */
+public record Frame(Opcode opcode, String key, byte[] payload) {
+
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    private static final int HEADER_LENGTH = 1 + 2;
+    private static final byte[] EMPTY = new byte[0];
+
+    public static Frame of(Opcode opcode) {
+        return new Frame(opcode, "", EMPTY);
+    }
+
+    public static Frame of(Opcode opcode, String key) {
+        return new Frame(opcode, key, EMPTY);
+    }
+
+    /**
+     * Reads the next frame from the stream.
+     *
+     * @param in the stream to read from
+     * @return the frame, or null if the stream ended before a new frame started
+     * @throws IOException if the stream ends within a frame or the frame is malformed
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        if (length < HEADER_LENGTH || length > MAX_FRAME_LENGTH) {
+            throw new IOException("invalid frame length " + length);
+        }
+
+        Opcode opcode = Opcode.fromCode(in.readByte());
+        int keyLength = in.readUnsignedShort();
+        if (opcode == null || keyLength > length - HEADER_LENGTH) {
+            throw new IOException("malformed frame");
+        }
+
+        byte[] key = new byte[keyLength];
+        in.readFully(key);
+        byte[] payload = new byte[length - HEADER_LENGTH - keyLength];
+        in.readFully(payload);
+
+        return new Frame(opcode, new String(key, StandardCharsets.UTF_8), payload);
+    }
+
+    public ByteBuffer encode() {
+        return encode(opcode, key, payload);
+    }
+
+    public static ByteBuffer encode(Opcode opcode, String key, byte[] payload) {
+        ByteBuffer header = encodeHeader(opcode, key, payload.length);
+        return ByteBuffer.allocate(header.remaining() + payload.length)
+                .put(header)
+                .put(payload)
+                .flip();
+    }
+
+    /**
+     * Encodes everything of a frame except its payload, so the payload can be sent from its own buffer.
+     */
+    public static ByteBuffer encodeHeader(Opcode opcode, String key, int payloadLength) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("key too long");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + HEADER_LENGTH + keyBytes.length);
+        buffer.putInt(HEADER_LENGTH + keyBytes.length + payloadLength)
+                .put(opcode.getCode())
+                .putShort((short) keyBytes.length)
+                .put(keyBytes);
+        return buffer.flip();
+    }
+
+    public String payloadAsString() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,63 @@
+package dslab.broker;
+
+import dslab.broker.enums.Opcode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A published message. The payload is kept as raw bytes so it can be passed from publisher to subscriber
+ * without being decoded, regardless of whether either side speaks the text or the binary protocol.
+ * <p>
+ * The wire representation is encoded once, when the first subscriber needs it. Subscribers only ever write
+ * duplicates of these read-only buffers, so fanning a message out to many queues neither encodes nor copies it again.
+ * Messages published and delivered by an {@link EmbeddedClient} are never encoded.
+ */
+public class Message {
+    private static final ByteBuffer NEWLINE = ByteBuffer.wrap(new byte[]{'\n'}).asReadOnlyBuffer();
+
+    private final long id;
+    private final String routingKey;
+    private final byte[] payload;
+    private final ByteBuffer payloadBuffer;
+    private volatile ByteBuffer frameHeader; // encoding it twice in a race does no harm
+
+    public Message(long id, String routingKey, byte[] payload) {
+        this.id = id;
+        this.routingKey = routingKey;
+        this.payload = payload;
+        this.payloadBuffer = ByteBuffer.wrap(payload).asReadOnlyBuffer();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Stores the buffers holding this message as it is sent to a subscriber at the given position.
+     *
+     * @return the number of buffers stored, which is always 2
+     */
+    public int putFrame(boolean binary, ByteBuffer[] buffers, int offset) {
+        if (binary) {
+            ByteBuffer header = frameHeader;
+            if (header == null) {
+                header = Frame.encodeHeader(Opcode.MESSAGE, routingKey, payload.length).asReadOnlyBuffer();
+                frameHeader = header;
+            }
+            buffers[offset] = header.duplicate();
+            buffers[offset + 1] = payloadBuffer.duplicate();
+        } else {
+            buffers[offset] = payloadBuffer.duplicate();
+            buffers[offset + 1] = NEWLINE.duplicate();
+        }
+        return 2;
+    }
+}
@@ -0,0 +1,770 @@
+package dslab.broker;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Holds the exchanges and queues of a broker and performs every change to them.
+ * <p>
+ * While the broker is the leader of a replicated cluster, every change is also appended to the {@link ReplicationLog}
+ * in the same order in which it was applied locally. Followers apply the streamed entries with
+ * {@link #applyReplicated(long, long, List)} and thereby hold a copy of the leader's exchanges, bindings and queue
+ * contents. A follower that has nothing of the leader's log yet, lost its state or fell behind the retained log first
+ * loads a {@link Snapshot} of the leader's store.
+ * <p>
+ * Replicated entries have the form
+ * <pre>
+ * exchange &lt;type&gt; &lt;name&gt;
+ * queue &lt;name&gt;
+ * bind &lt;exchange&gt; &lt;queue&gt; &lt;binding-key&gt;
+ * publish &lt;message-id&gt; &lt;routing-key&gt; &lt;base64-payload&gt; &lt;queue&gt;[,&lt;queue&gt;...]
+ * dequeue &lt;queue&gt; &lt;message-id&gt;[,&lt;message-id&gt;...]
+ * requeue &lt;queue&gt; &lt;message-id&gt; &lt;routing-key&gt; &lt;base64-payload&gt;
+ * federate &lt;exchange&gt; &lt;queue&gt;
+ * </pre>
+ * <p>
+ * Messages taken from a queue for delivery are only dequeued once they were written. If they are put back instead,
+ * a {@code requeue} entry restores them on the followers that loaded a snapshot while they were taken, the other
+ * followers still hold them.
+ * <p>
+ * Followers may deliver messages from their copy as well. Before a follower writes a message to a subscriber it claims
+ * it from the leader through the {@link ClaimHandler}, the leader only grants messages that are still in its queue and
+ * removes them, so every message is delivered by one broker only. Claimed messages that could not be written are
+ * released back to the leader.
+ * <p>
+ * With {@link Partitioning} every queue is owned by one broker of the cluster. Exchanges, queues and bindings are
+ * still known everywhere, declarations are announced to the other brokers, but messages are only held by the owner of
+ * their queue. Messages for queues of other brokers are forwarded to them when they are published.
+ */
+public class MessageStore {
+    private static final long CLAIM_RETRY_MS = 100;
+
+    /**
+     * Spreads the queues over the brokers of the cluster.
+     */
+    public interface Partitioning {
+        boolean isLocal(String queueName);
+
+        /**
+         * @return the address under which clients reach the owner of the queue, or null if it is unknown
+         */
+        String ownerAddress(String queueName);
+
+        /**
+         * Sends a message to the owners of the given queues, which are not local, and waits until they acknowledged
+         * it.
+         *
+         * @return false if an owner did not acknowledge the message, the other owners may have added it nonetheless
+         */
+        boolean forward(Message message, List<Queue> remoteQueues);
+
+        /**
+         * Tells the other brokers about a declared exchange, queue or binding, in the format of the replicated entries.
+         */
+        void announce(String entry);
+    }
+
+    /**
+     * Asks the leader for the permission to deliver messages from the local copy of a queue.
+     */
+    public interface ClaimHandler {
+        /**
+         * @return the ids of the messages that may be delivered, or null if the leader could not be asked
+         */
+        Set<Long> claim(Queue queue, List<Message> messages);
+
+        /**
+         * Gives a claimed message back to the leader, as it could not be written to the subscriber.
+         *
+         * @return false if the leader could not be reached
+         */
+        boolean release(Queue queue, Message message);
+    }
+
+    /**
+     * Confirms that the local state is the cluster's before a query is answered from it.
+     */
+    public interface LeadershipCheck {
+        /**
+         * @return true if this broker is the leader and no other broker can have become the leader in the meantime
+         */
+        boolean confirm();
+    }
+
+    private final Map<String, Exchange> exchanges = new ConcurrentHashMap<>();
+    private final Map<String, Queue> queues = new ConcurrentHashMap<>();
+    private final AtomicLong lastMessageId = new AtomicLong();
+    private final AtomicLong bindingEpoch = new AtomicLong(); // increased after every binding
+
+    private volatile ReplicationLog replicationLog;
+    private volatile ClaimHandler claimHandler;
+    private volatile LeadershipCheck leadershipCheck;
+    private volatile Partitioning partitioning;
+    private volatile boolean writesPaused;
+    private boolean applyingRemoteChange; // guarded by this
+
+    // follower side of the replication
+    private long replicaEpoch = -1;
+    private long lastAppliedSeq;
+    private long highestEpoch;
+    private Inflater snapshotInflater; // the snapshot being loaded, with the epoch and position it was taken at
+    private final ByteArrayOutputStream snapshotLine = new ByteArrayOutputStream();
+    private long snapshotEpoch;
+    private long snapshotSeq;
+    private int nextSnapshotPart;
+
+    public MessageStore() {
+        exchanges.put("default", new Exchange(ExchangeType.DEFAULT, "default"));
+    }
+
+    /**
+     * Starts (or with null stops) appending every change to the given log, used while being the leader.
+     */
+    public synchronized void setReplicationLog(ReplicationLog replicationLog) {
+        this.replicationLog = replicationLog;
+    }
+
+    public ReplicationLog getReplicationLog() {
+        return replicationLog;
+    }
+
+    /**
+     * Pauses publishing by clients while the leadership is handed over, so the new leader does not miss any message.
+     */
+    public void setWritesPaused(boolean writesPaused) {
+        this.writesPaused = writesPaused;
+    }
+
+    public boolean isWritable() {
+        return !writesPaused;
+    }
+
+    /**
+     * @return true if this store is a follower's copy of the leader's store. Clients may subscribe to its queues, but
+     * every change has to be made on the leader, the copy would be overwritten by the next snapshot.
+     */
+    public boolean isReplica() {
+        return claimHandler != null && replicationLog == null;
+    }
+
+    /**
+     * Sets the handler that is asked before messages are delivered while this store is not the leader's.
+     */
+    public void setClaimHandler(ClaimHandler claimHandler) {
+        this.claimHandler = claimHandler;
+    }
+
+    /**
+     * Sets the check that queries have to pass, without one every broker answers from its own state.
+     */
+    public void setLeadershipCheck(LeadershipCheck leadershipCheck) {
+        this.leadershipCheck = leadershipCheck;
+    }
+
+    /**
+     * @return the number of messages waiting in the queue, or -1 if this broker's copy may not be current
+     */
+    public int depth(Queue queue) {
+        LeadershipCheck check = leadershipCheck;
+        if (check != null && !check.confirm()) {
+            return -1;
+        }
+        return queue.size();
+    }
+
+    public void setPartitioning(Partitioning partitioning) {
+        this.partitioning = partitioning;
+    }
+
+    /**
+     * @return true if the messages of the queue are held by this broker
+     */
+    public boolean isLocal(Queue queue) {
+        Partitioning p = partitioning;
+        return p == null || p.isLocal(queue.getName());
+    }
+
+    /**
+     * @return the address under which clients reach the broker holding the messages of the queue, or null if unknown
+     */
+    public String ownerAddress(Queue queue) {
+        Partitioning p = partitioning;
+        return p == null ? null : p.ownerAddress(queue.getName());
+    }
+
+    /**
+     * @return an epoch for a new replication log that is higher than every epoch this store has seen
+     */
+    public synchronized long nextEpoch() {
+        highestEpoch += 1;
+        return highestEpoch;
+    }
+
+    public Exchange getExchange(String name) {
+        return exchanges.get(name);
+    }
+
+    public Queue getQueue(String name) {
+        return queues.get(name);
+    }
+
+    /**
+     * Declares an exchange if it does not exist yet.
+     *
+     * @return the exchange with the given name, or null if it already exists with a different type
+     */
+    public synchronized Exchange declareExchange(ExchangeType type, String name) {
+        Exchange exchange = exchanges.get(name);
+        if (exchange != null) {
+            return exchange.getType() == type ? exchange : null;
+        }
+
+        exchange = new Exchange(type, name);
+        exchanges.put(name, exchange);
+        changed("exchange " + type.name().toLowerCase() + " " + name);
+        return exchange;
+    }
+
+    /**
+     * Declares a queue if it does not exist yet and binds it to the default exchange with its name.
+     */
+    public synchronized Queue declareQueue(String name) {
+        Queue queue = queues.get(name);
+        if (queue != null) {
+            return queue;
+        }
+
+        queue = new Queue(name, messages -> requeued(name, messages));
+        queues.put(name, queue);
+        exchanges.get("default").bindQueue(name, queue);
+        bindingEpoch.incrementAndGet();
+        changed("queue " + name);
+        return queue;
+    }
+
+    public synchronized void bind(Exchange exchange, String bindingKey, Queue queue) {
+        exchange.bindQueue(bindingKey, queue);
+        bindingEpoch.incrementAndGet();
+        changed("bind " + exchange.getName() + " " + queue.getName() + " " + bindingKey);
+    }
+
+    /**
+     * Declares the queue from which a federation link forwards the messages of the exchange to another broker. The
+     * queue receives every message published to the exchange and keeps them while the link is down.
+     */
+    public synchronized Queue declareFederationQueue(Exchange exchange, String linkName) {
+        String name = "federation." + exchange.getName() + "." + linkName;
+        Queue queue = queues.get(name);
+        if (queue == null) {
+            queue = declareQueue(name);
+            exchange.bindFederationQueue(queue);
+            bindingEpoch.incrementAndGet();
+            changed("federate " + exchange.getName() + " " + name);
+        }
+        return queue;
+    }
+
+    /**
+     * Routes a new message through the exchange and adds it to all matching queues.
+     *
+     * @return the queues the message was added to, or null if the owner of one of them could not be reached, see
+     * {@link #publish(List, String, byte[])}
+     */
+    public List<Queue> publish(Exchange exchange, String routingKey, byte[] payload) {
+        List<Queue> targetQueues = exchange.routeMessage(routingKey);
+        return publish(targetQueues, routingKey, payload) ? targetQueues : null;
+    }
+
+    /**
+     * Adds a message that arrived over a federation link to the queues bound to the exchange. It is not forwarded
+     * over the federation links of this broker again, so links in both directions do not send it back and forth.
+     *
+     * @return the queues the message was added to, or null as for {@link #publish(Exchange, String, byte[])}
+     */
+    public List<Queue> publishFederated(Exchange exchange, String routingKey, byte[] payload) {
+        List<Queue> targetQueues = exchange.routeToBoundQueues(routingKey);
+        return publish(targetQueues, routingKey, payload) ? targetQueues : null;
+    }
+
+    /**
+     * Adds a new message to the queues the caller routed it to, e.g. with a route it kept from an earlier message
+     * with the same routing key. Such a route is valid as long as {@link #getBindingEpoch()} did not change since the
+     * route was determined. The list is not changed.
+     * <p>
+     * With partitioning, the message is forwarded to the owners of the queues that are not local before returning.
+     *
+     * @return false if an owner did not acknowledge the message, which the publisher has to be told, as the message
+     * may be missing in its queues
+     */
+    public boolean publish(List<Queue> targetQueues, String routingKey, byte[] payload) {
+        Message message = new Message(lastMessageId.incrementAndGet(), routingKey, payload);
+
+        Partitioning p = partitioning;
+        if (p == null) {
+            enqueue(message, targetQueues);
+            return true;
+        }
+
+        List<Queue> local = new ArrayList<>(targetQueues.size());
+        List<Queue> remote = new ArrayList<>();
+        for (Queue queue : targetQueues) {
+            (p.isLocal(queue.getName()) ? local : remote).add(queue);
+        }
+        enqueue(message, local);
+        return remote.isEmpty() || p.forward(message, remote);
+    }
+
+    /**
+     * @return a number that increases with every binding added to any exchange. As the binding keys belong to the
+     * queues, a binding can change the routes of other exchanges the queue is bound to as well.
+     */
+    public long getBindingEpoch() {
+        return bindingEpoch.get();
+    }
+
+    /**
+     * Adds a message that another broker forwarded to the queues this broker owns.
+     */
+    public void enqueueForwarded(List<String> queueNames, String routingKey, byte[] payload) {
+        Message message = new Message(lastMessageId.incrementAndGet(), routingKey, payload);
+        List<Queue> targetQueues = new ArrayList<>(queueNames.size());
+        for (String queueName : queueNames) {
+            Queue queue = queues.get(queueName);
+            targetQueues.add(queue != null ? queue : declareAnnouncedQueue(queueName));
+        }
+        enqueue(message, targetQueues);
+    }
+
+    /**
+     * Applies an exchange, queue or binding another broker announced.
+     *
+     * @return false if the entry is not a declaration
+     */
+    public synchronized boolean applyAnnouncement(String entry) {
+        String type = entry.split(" ", 2)[0];
+        if (!type.equals("exchange") && !type.equals("queue") && !type.equals("bind") && !type.equals("federate")) {
+            return false;
+        }
+
+        applyRemote(entry);
+        return true;
+    }
+
+    private synchronized Queue declareAnnouncedQueue(String name) {
+        applyingRemoteChange = true;
+        try {
+            return declareQueue(name);
+        } finally {
+            applyingRemoteChange = false;
+        }
+    }
+
+    /**
+     * Decides which of the messages taken from the queue may be written to a subscriber. On the leader, or without
+     * a claim handler, these are all of them. A follower only keeps the messages the leader granted, the others were
+     * already delivered by another broker. If the leader cannot be reached, the messages go back to the queue.
+     *
+     * @return the messages to deliver
+     */
+    public List<Message> claimForDelivery(Queue queue, List<Message> messages) {
+        ClaimHandler handler = claimHandler;
+        if (handler == null || replicationLog != null) {
+            return messages;
+        }
+
+        Set<Long> granted = handler.claim(queue, messages);
+        if (granted == null) {
+            queue.requeue(messages);
+            try {
+                Thread.sleep(CLAIM_RETRY_MS); // wait for the election or the leader to come back
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return List.of();
+        }
+
+        List<Message> claimed = new ArrayList<>(granted.size());
+        for (Message message : messages) {
+            if (granted.contains(message.getId())) {
+                claimed.add(message);
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Puts messages back that were taken from the queue for delivery but could not be written. A follower claimed
+     * them from the leader, which removed them from its queue, so they are released to the leader instead. The leader
+     * requeues them and replicates that, which restores them in this copy as well.
+     */
+    public void requeueUndelivered(Queue queue, List<Message> messages) {
+        ClaimHandler handler = claimHandler;
+        if (handler == null || replicationLog != null) {
+            queue.requeue(messages);
+            return;
+        }
+
+        // every release puts its message in front of the leader's queue, so the last one goes first
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            if (!handler.release(queue, messages.get(i))) {
+                // kept in case this broker becomes the leader, otherwise the next claim drops them
+                queue.requeue(messages.subList(0, i + 1));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Puts a message back into the leader's queue that a follower claimed but could not deliver.
+     */
+    public void release(String queueName, Message message) {
+        Queue queue = queues.get(queueName);
+        if (queue != null && !queue.contains(message.getId())) {
+            queue.requeue(List.of(message));
+        }
+    }
+
+    /**
+     * Removes the messages a follower wants to deliver from the leader's queue.
+     *
+     * @return the ids of the messages that were still in the queue and may be delivered by the follower
+     */
+    public List<Long> claim(String queueName, Set<Long> ids) {
+        Queue queue = queues.get(queueName);
+        if (queue == null) {
+            return List.of();
+        }
+
+        List<Long> claimed = queue.remove(ids);
+        appendDequeue(queue, claimed);
+        return claimed;
+    }
+
+    /**
+     * Records that the given messages were taken from the queue and written to a subscriber.
+     */
+    public void delivered(Queue queue, List<Message> messages) {
+        if (replicationLog == null) {
+            return;
+        }
+
+        List<Long> ids = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            ids.add(message.getId());
+        }
+        appendDequeue(queue, ids);
+    }
+
+    private void requeued(String queueName, List<Message> messages) {
+        ReplicationLog log = replicationLog;
+        if (log == null) {
+            return;
+        }
+
+        // every entry puts its message in front of the queue, so the last one goes first
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            Message message = messages.get(i);
+            log.append("requeue " + queueName + " " + message.getId() + " " + message.getRoutingKey() + " " +
+                    Base64.getEncoder().encodeToString(message.getPayload()));
+        }
+    }
+
+    private void appendDequeue(Queue queue, List<Long> ids) {
+        ReplicationLog log = replicationLog;
+        if (log == null || ids.isEmpty()) {
+            return;
+        }
+
+        StringJoiner joiner = new StringJoiner(",");
+        for (long id : ids) {
+            joiner.add(Long.toString(id));
+        }
+        log.append("dequeue " + queue.getName() + " " + joiner);
+    }
+
+    /**
+     * Applies a batch of entries streamed by the leader. Entries that were applied before are skipped. If the batch
+     * does not continue the entries applied so far, nothing is applied and the leader has to resend from the returned
+     * sequence number on.
+     *
+     * @param epoch    the epoch of the leader's log
+     * @param firstSeq the sequence number of the first entry
+     * @param entries  the entries in order
+     * @return the sequence number of the last entry applied from the leader's log
+     */
+    public synchronized long applyReplicated(long epoch, long firstSeq, List<String> entries) {
+        if (epoch != replicaEpoch) {
+            if (firstSeq != 1) {
+                // a new leader's log, but this is not its beginning
+                return 0;
+            }
+            replicaEpoch = epoch;
+            highestEpoch = Math.max(highestEpoch, epoch);
+            lastAppliedSeq = 0;
+        }
+
+        if (firstSeq > lastAppliedSeq + 1) {
+            return lastAppliedSeq;
+        }
+
+        long seq = firstSeq;
+        for (String entry : entries) {
+            if (seq > lastAppliedSeq) {
+                applyRemote(entry);
+                lastAppliedSeq = seq;
+            }
+            seq++;
+        }
+        return lastAppliedSeq;
+    }
+
+    /**
+     * Takes a snapshot of the current state, which matches the state after the last entry of the replication log.
+     *
+     * @return the snapshot, or null if the given log is not the one this store appends to anymore
+     */
+    public synchronized Snapshot takeSnapshot(ReplicationLog log) {
+        if (log != replicationLog) {
+            return null;
+        }
+
+        Map<String, List<Message>> messages = new LinkedHashMap<>();
+        // holding the log's lock as well, as publishes are appended under it without the lock of the store
+        synchronized (log) {
+            for (Queue queue : queues.values()) {
+                messages.put(queue.getName(), queue.copyMessages());
+            }
+            return new Snapshot(log.getEpoch(), log.getLastSeq(), getDeclarations(), messages);
+        }
+    }
+
+    /**
+     * @return the exchanges, queues and bindings in the format of the replicated entries, every exchange and queue
+     * before the bindings that refer to it
+     */
+    public synchronized List<String> getDeclarations() {
+        List<String> declarations = new ArrayList<>();
+        for (Exchange exchange : exchanges.values()) {
+            declarations.add("exchange " + exchange.getType().name().toLowerCase() + " " + exchange.getName());
+        }
+        for (Queue queue : queues.values()) {
+            declarations.add("queue " + queue.getName());
+        }
+        for (Exchange exchange : exchanges.values()) {
+            for (Queue queue : exchange.getBoundQueues()) {
+                for (String bindingKey : queue.getBindingKeys()) {
+                    declarations.add("bind " + exchange.getName() + " " + queue.getName() + " " + bindingKey);
+                }
+            }
+            for (Queue queue : exchange.getFederationQueues()) {
+                declarations.add("federate " + exchange.getName() + " " + queue.getName());
+            }
+        }
+        return declarations;
+    }
+
+    /**
+     * Forwards the messages of the queues that another broker owns since the membership of the cluster changed to
+     * their new owner. Messages the owner does not acknowledge are kept, they are forwarded with the next change.
+     */
+    public void rebalance() {
+        Partitioning p = partitioning;
+        if (p == null) {
+            return;
+        }
+
+        for (Queue queue : queues.values()) {
+            if (!p.isLocal(queue.getName())) {
+                List<Message> messages = queue.drain();
+                for (int i = 0; i < messages.size(); i++) {
+                    if (!p.forward(messages.get(i), List.of(queue))) {
+                        queue.requeue(messages.subList(i, messages.size()));
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the next part of a compressed snapshot streamed by the leader. The first part discards the messages of all
+     * queues, the declarations are kept as the snapshot contains all of them again.
+     *
+     * @return false if the part does not continue the snapshot being loaded or cannot be decompressed
+     */
+    public synchronized boolean loadSnapshotPart(long epoch, long seq, int part, byte[] data) {
+        if (part == 0) {
+            abortSnapshot();
+            for (Queue queue : queues.values()) {
+                queue.clear();
+            }
+            replicaEpoch = -1; // nothing of the previous log can be continued anymore
+            lastAppliedSeq = 0;
+            snapshotInflater = new Inflater();
+            snapshotEpoch = epoch;
+            snapshotSeq = seq;
+            nextSnapshotPart = 0;
+        }
+        if (snapshotInflater == null || epoch != snapshotEpoch || seq != snapshotSeq || part != nextSnapshotPart) {
+            return false;
+        }
+        nextSnapshotPart++;
+
+        snapshotInflater.setInput(data);
+        byte[] buffer = new byte[8192];
+        try {
+            int length;
+            while ((length = snapshotInflater.inflate(buffer)) > 0) {
+                for (int i = 0; i < length; i++) {
+                    if (buffer[i] == '\n') {
+                        applyRemote(snapshotLine.toString(StandardCharsets.UTF_8));
+                        snapshotLine.reset();
+                    } else {
+                        snapshotLine.write(buffer[i]);
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            System.out.println("Discarding corrupt snapshot: " + e.getMessage());
+            abortSnapshot();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Completes loading a snapshot, the log of the given epoch is continued after its position from now on.
+     *
+     * @return the sequence number of the last entry applied from the leader's log, 0 if the snapshot is incomplete
+     */
+    public synchronized long finishSnapshot(long epoch, long seq) {
+        boolean complete = snapshotInflater != null && snapshotInflater.finished()
+                && epoch == snapshotEpoch && seq == snapshotSeq;
+        abortSnapshot();
+        if (!complete) {
+            return 0;
+        }
+
+        replicaEpoch = epoch;
+        highestEpoch = Math.max(highestEpoch, epoch);
+        lastAppliedSeq = seq;
+        return seq;
+    }
+
+    // must hold the lock of the store
+    private void abortSnapshot() {
+        if (snapshotInflater != null) {
+            snapshotInflater.end();
+            snapshotInflater = null;
+        }
+        snapshotLine.reset();
+    }
+
+    // must hold the lock of the store
+    private void applyRemote(String entry) {
+        applyingRemoteChange = true; // changes made by other brokers are not announced again
+        try {
+            apply(entry);
+        } finally {
+            applyingRemoteChange = false;
+        }
+    }
+
+    private void apply(String entry) {
+        String[] parts = entry.split(" ");
+        switch (parts[0]) {
+            case "exchange" -> declareExchange(Exchange.convertType(parts[1]), parts[2]);
+            case "queue" -> declareQueue(parts[1]);
+            case "bind" -> {
+                Exchange exchange = exchanges.get(parts[1]);
+                if (exchange != null) {
+                    exchange.bindQueue(parts[3], declareQueue(parts[2]));
+                    bindingEpoch.incrementAndGet();
+                }
+            }
+            case "federate" -> {
+                Exchange exchange = exchanges.get(parts[1]);
+                if (exchange != null) {
+                    exchange.bindFederationQueue(declareQueue(parts[2]));
+                    bindingEpoch.incrementAndGet();
+                }
+            }
+            case "publish" -> {
+                long id = Long.parseLong(parts[1]);
+                lastMessageId.accumulateAndGet(id, Math::max);
+                Message message = new Message(id, parts[2], Base64.getDecoder().decode(parts[3]));
+                for (String queueName : parts[4].split(",")) {
+                    declareQueue(queueName).addMessage(message);
+                }
+            }
+            case "dequeue" -> {
+                Queue queue = queues.get(parts[1]);
+                if (queue != null) {
+                    Set<Long> ids = new HashSet<>();
+                    for (String id : parts[2].split(",")) {
+                        ids.add(Long.parseLong(id));
+                    }
+                    queue.remove(ids);
+                }
+            }
+            case "requeue" -> {
+                Queue queue = declareQueue(parts[1]);
+                long id = Long.parseLong(parts[2]);
+                if (!queue.contains(id)) {
+                    lastMessageId.accumulateAndGet(id, Math::max);
+                    queue.requeue(List.of(new Message(id, parts[3], Base64.getDecoder().decode(parts[4]))));
+                }
+            }
+            default -> System.out.println("ignoring unknown replication entry: " + parts[0]);
+        }
+    }
+
+    private void enqueue(Message message, List<Queue> targetQueues) {
+        ReplicationLog log = replicationLog;
+        if (log == null) {
+            addToQueues(message, targetQueues);
+            return;
+        }
+
+        // the log decides the order in which followers apply publishes, so appending and enqueueing happen together
+        synchronized (log) {
+            addToQueues(message, targetQueues);
+            if (!targetQueues.isEmpty()) {
+                log.append(publishEntry(message, targetQueues));
+            }
+        }
+    }
+
+    private static void addToQueues(Message message, List<Queue> targetQueues) {
+        for (Queue queue : targetQueues) {
+            queue.addMessage(message);
+        }
+    }
+
+    // must hold the lock of the store
+    private void changed(String entry) {
+        ReplicationLog log = replicationLog;
+        if (log != null) {
+            log.append(entry);
+        }
+
+        Partitioning p = partitioning;
+        if (p != null && !applyingRemoteChange) {
+            p.announce(entry);
+        }
+    }
+
+    private static String publishEntry(Message message, List<Queue> targetQueues) {
+        StringJoiner queueNames = new StringJoiner(",");
+        for (Queue queue : targetQueues) {
+            queueNames.add(queue.getName());
+        }
+        return "publish " + message.getId() + " " + message.getRoutingKey() + " " +
+                Base64.getEncoder().encodeToString(message.getPayload()) + " " + queueNames;
+    }
+}
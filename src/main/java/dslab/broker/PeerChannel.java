@@ -0,0 +1,47 @@
+package dslab.broker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The channel over which all LEP messages to one peer are sent, opened by the {@link Transport}. The peer answers
+ * every message with a single line, in the order the messages were sent.
+ */
+public interface PeerChannel {
+    int RESPONSE_TIMEOUT_MS = 5000;
+
+    int getPeerId();
+
+    /**
+     * Sends a message without waiting for the response. Messages that span several lines, like {@code replicate},
+     * are answered with a single line as well.
+     *
+     * @return the response, completed with null if the peer could not be reached or the message was lost
+     */
+    CompletableFuture<String> send(String... lines);
+
+    /**
+     * Sends a message and waits for the response.
+     *
+     * @return the response, or null if the peer could not be reached or did not answer in time
+     */
+    default String request(String message) {
+        try {
+            return send(message).get(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            System.out.println("No response from Node " + getPeerId() + " to " + message.split(" ")[0]);
+            return null;
+        }
+    }
+
+    /**
+     * Closes the channel for good, the peer left the cluster or this broker shuts down. Messages sent afterwards are
+     * answered with null.
+     */
+    void close();
+}
@@ -0,0 +1,168 @@
+package dslab.broker;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The long-lived TCP connection to the election port of one peer, over which all LEP messages to that peer are sent.
+ * <p>
+ * The peer answers the messages of a connection one after another with a single line each, so requests are
+ * pipelined and every line read is the response to the oldest request still waiting. The connection is opened on the
+ * first message and again after it broke or was idle for so long that the peer may have closed it. Requests that were
+ * sent over a broken connection are answered with null, they are never sent twice since the peer may already have
+ * processed them.
+ */
+public class PeerConnection implements PeerChannel {
+    private static final int CONNECT_TIMEOUT_MS = 200; // peers are in the same network, a dead one must not stall elections
+    private static final long MAX_IDLE_MS = 4000; // the peer closes connections that are idle for 5 seconds
+    private static final long RECONNECT_BACKOFF_MS = 100;
+
+    private final int peerId;
+    private final String host;
+    private final int port;
+
+    // guarded by this
+    private final ArrayDeque<CompletableFuture<String>> pending = new ArrayDeque<>();
+    private Socket socket;
+    private Writer out;
+    private long lastUsed;
+    private long lastFailedConnect;
+    private boolean closed;
+
+    public PeerConnection(int peerId, String host, int port) {
+        this.peerId = peerId;
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public int getPeerId() {
+        return peerId;
+    }
+
+    @Override
+    public CompletableFuture<String> send(String... lines) {
+        CompletableFuture<String> response = new CompletableFuture<>();
+        List<CompletableFuture<String>> failed = new ArrayList<>();
+
+        synchronized (this) {
+            try {
+                if (closed) {
+                    throw new IOException("connection to Node " + peerId + " closed");
+                }
+                if (socket == null || System.currentTimeMillis() - lastUsed > MAX_IDLE_MS) {
+                    failed.addAll(disconnect()); // nothing can be answered anymore over an idle connection
+                    connect();
+                }
+
+                pending.addLast(response);
+                for (String line : lines) {
+                    out.write(line);
+                    out.write('\n');
+                }
+                out.flush();
+                lastUsed = System.currentTimeMillis();
+            } catch (IOException e) {
+                failed.addAll(disconnect());
+                failed.add(response); // in case it was not sent at all
+            }
+        }
+
+        complete(failed);
+        return response;
+    }
+
+    // must hold the lock of this connection
+    private void connect() throws IOException {
+        if (System.currentTimeMillis() - lastFailedConnect < RECONNECT_BACKOFF_MS) {
+            throw new IOException("Node " + peerId + " was unreachable just before");
+        }
+
+        Socket newSocket = new Socket();
+        try {
+            newSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            newSocket.setSoTimeout(RESPONSE_TIMEOUT_MS);
+            BufferedReader in = new BufferedReader(new InputStreamReader(newSocket.getInputStream(), StandardCharsets.UTF_8));
+            String greeting = in.readLine();
+            if (!"ok LEP".equals(greeting)) {
+                throw new IOException("unexpected greeting " + greeting);
+            }
+            newSocket.setSoTimeout(0); // from now on the reader waits for responses as long as the connection exists
+
+            socket = newSocket;
+            out = new BufferedWriter(new OutputStreamWriter(newSocket.getOutputStream(), StandardCharsets.UTF_8));
+            Thread.ofVirtual().start(() -> readResponses(newSocket, in));
+        } catch (IOException e) {
+            lastFailedConnect = System.currentTimeMillis();
+            newSocket.close();
+            System.out.println("Unable to contact Node " + peerId);
+            throw e;
+        }
+    }
+
+    private void readResponses(Socket connection, BufferedReader in) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                CompletableFuture<String> response;
+                synchronized (this) {
+                    if (socket != connection) {
+                        return;
+                    }
+                    response = pending.pollFirst();
+                }
+                if (response != null) {
+                    response.complete(line);
+                }
+            }
+        } catch (IOException e) {
+            // the connection is closed below
+        }
+
+        List<CompletableFuture<String>> failed;
+        synchronized (this) {
+            if (socket != connection) {
+                return;
+            }
+            failed = disconnect();
+        }
+        complete(failed);
+    }
+
+    @Override
+    public void close() {
+        List<CompletableFuture<String>> failed;
+        synchronized (this) {
+            closed = true; // requests still running on the peer's executor must not connect again
+            failed = disconnect();
+        }
+        complete(failed);
+    }
+
+    // must hold the lock of this connection, the returned requests have to be completed after releasing it
+    private List<CompletableFuture<String>> disconnect() {
+        List<CompletableFuture<String>> failed = new ArrayList<>(pending);
+        pending.clear();
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.out.println("Error closing connection to Node " + peerId + ": " + e.getMessage());
+            }
+            socket = null;
+        }
+        return failed;
+    }
+
+    private static void complete(List<CompletableFuture<String>> failed) {
+        for (CompletableFuture<String> response : failed) {
+            response.complete(null);
+        }
+    }
+}
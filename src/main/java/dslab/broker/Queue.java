@@ -1,17 +1,32 @@
 package dslab.broker;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
 public class Queue {
-    private final LinkedList<String> queue;
+    private final LinkedList<Message> queue;
     private final String name;
+    private final Consumer<List<Message>> requeued;
     public final TopicTrie trie = new TopicTrie();
     public final HashSet<String> bindings = new HashSet<>();
 
     public Queue(String name) {
+        this(name, messages -> {
+        });
+    }
+
+    /**
+     * @param requeued called with the messages put back by {@link #requeue(List)}, after they are in the queue again
+     */
+    public Queue(String name, Consumer<List<Message>> requeued) {
         this.name = name;
         this.queue = new LinkedList<>();
+        this.requeued = requeued;
     }
 
     public void bind(String bindingKey) {
@@ -34,7 +49,11 @@ public class Queue {
         return name;
     }
 
-    public void addMessage(String message) {
+    public synchronized List<String> getBindingKeys() {
+        return new ArrayList<>(bindings);
+    }
+
+    public void addMessage(Message message) {
         synchronized (queue) {
             queue.add(message);
             queue.notifyAll(); // Notify any waiting threads that a new message is available
@@ -42,7 +61,89 @@ public class Queue {
     }
 
 
-    public String getMessage() throws InterruptedException {
+    /**
+     * Puts messages that were taken but could not be delivered back to the front of the queue, keeping their order.
+     */
+    public void requeue(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        synchronized (queue) {
+            queue.addAll(0, messages);
+            queue.notifyAll();
+        }
+        requeued.accept(messages);
+    }
+
+    /**
+     * @return whether the message with the given id is in the queue
+     */
+    public boolean contains(long id) {
+        synchronized (queue) {
+            for (Message message : queue) {
+                if (message.getId() == id) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Removes the messages with the given ids, wherever they are in the queue.
+     *
+     * @return the ids of the messages that were in the queue
+     */
+    public List<Long> remove(Set<Long> ids) {
+        List<Long> removed = new ArrayList<>();
+        synchronized (queue) {
+            Iterator<Message> iterator = queue.iterator();
+            while (iterator.hasNext() && removed.size() < ids.size()) {
+                Message message = iterator.next();
+                if (ids.contains(message.getId())) {
+                    iterator.remove();
+                    removed.add(message.getId());
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return the messages currently in the queue, in order
+     */
+    public List<Message> copyMessages() {
+        synchronized (queue) {
+            return new ArrayList<>(queue);
+        }
+    }
+
+    public void clear() {
+        synchronized (queue) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Removes all messages at once.
+     *
+     * @return the removed messages, in order
+     */
+    public List<Message> drain() {
+        synchronized (queue) {
+            List<Message> messages = new ArrayList<>(queue);
+            queue.clear();
+            return messages;
+        }
+    }
+
+    public int size() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    public Message getMessage() throws InterruptedException {
         synchronized (queue) {
             while (queue.isEmpty()) {
                 queue.wait(); // Wait until a message is available
@@ -51,4 +152,48 @@ public class Queue {
         }
     }
 
+    /**
+     * Waits until a message is available and then removes up to {@code maxMessages} messages at once. No further
+     * messages are taken once their payloads add up to {@code maxBytes}, but at least one message is always returned.
+     */
+    public List<Message> getMessages(int maxMessages, int maxBytes) throws InterruptedException {
+        synchronized (queue) {
+            while (queue.isEmpty()) {
+                queue.wait();
+            }
+            return takeMessages(maxMessages, maxBytes);
+        }
+    }
+
+    /**
+     * Like {@link #getMessages(int, int)}, but waits at most {@code timeoutMs} milliseconds for the first message.
+     *
+     * @return the removed messages, empty if none arrived in time
+     */
+    public List<Message> getMessages(int maxMessages, int maxBytes, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000;
+        synchronized (queue) {
+            while (queue.isEmpty()) {
+                long remainingMs = (deadline - System.nanoTime()) / 1_000_000;
+                if (remainingMs <= 0) {
+                    return new ArrayList<>();
+                }
+                queue.wait(remainingMs);
+            }
+            return takeMessages(maxMessages, maxBytes);
+        }
+    }
+
+    // must hold the queue lock
+    private List<Message> takeMessages(int maxMessages, int maxBytes) {
+        List<Message> messages = new ArrayList<>(Math.min(maxMessages, queue.size()));
+        int bytes = 0;
+        while (!queue.isEmpty() && messages.size() < maxMessages && bytes < maxBytes) {
+            Message message = queue.poll();
+            bytes += message.getPayload().length;
+            messages.add(message);
+        }
+        return messages;
+    }
+
 }
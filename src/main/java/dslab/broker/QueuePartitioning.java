@@ -0,0 +1,100 @@
+package dslab.broker;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Spreads the queues over this broker and its election peers with a {@link ConsistentHashRing}. Messages for queues
+ * owned by a peer are forwarded with {@code enqueue}, declarations are announced to every peer with {@code metadata}
+ * so that all brokers route with the same bindings.
+ * <p>
+ * When the membership of the cluster changes the ring is rebuilt from the new members, so only the queues between
+ * the points of the joined or left broker change their owner.
+ */
+public class QueuePartitioning implements MessageStore.Partitioning {
+    private final int id;
+    private final Sender sender;
+    private volatile ConsistentHashRing ring;
+    private final Map<Integer, String> addresses = new ConcurrentHashMap<>();
+    private final ExecutorService announcer = Executors.newSingleThreadExecutor(Thread.ofVirtual().factory());
+
+    public QueuePartitioning(int id, int[] peerIds, Sender sender) {
+        this.id = id;
+        this.sender = sender;
+
+        int[] memberIds = Arrays.copyOf(peerIds, peerIds.length + 1);
+        memberIds[peerIds.length] = id;
+        this.ring = new ConsistentHashRing(memberIds);
+    }
+
+    /**
+     * Spreads the queues over the given members from now on, which include this broker.
+     */
+    public void setMembers(int[] memberIds) {
+        ring = new ConsistentHashRing(memberIds);
+        addresses.clear(); // an id that left and joined again may have a new address
+    }
+
+    @Override
+    public boolean isLocal(String queueName) {
+        return ring.owner(queueName) == id;
+    }
+
+    @Override
+    public String ownerAddress(String queueName) {
+        int owner = ring.owner(queueName);
+        String address = addresses.get(owner);
+        if (address != null) {
+            return address;
+        }
+
+        String response = sender.request(owner, "address");
+        if (response == null || !response.startsWith("address ")) {
+            return null;
+        }
+        String[] parts = response.split(" ");
+        address = parts[1] + ":" + parts[2];
+        addresses.put(owner, address);
+        return address;
+    }
+
+    @Override
+    public boolean forward(Message message, List<Queue> remoteQueues) {
+        Map<Integer, StringJoiner> owners = new HashMap<>();
+        for (Queue queue : remoteQueues) {
+            owners.computeIfAbsent(ring.owner(queue.getName()), o -> new StringJoiner(",")).add(queue.getName());
+        }
+
+        // one request per owner, even if the message goes to several of its queues
+        String payload = Base64.getEncoder().encodeToString(message.getPayload());
+        boolean acknowledged = true;
+        for (Map.Entry<Integer, StringJoiner> entry : owners.entrySet()) {
+            String response = sender.request(entry.getKey(),
+                    "enqueue " + entry.getValue() + " " + message.getRoutingKey() + " " + payload);
+            if (!"ok".equals(response)) {
+                System.out.println("Unable to forward message to Node " + entry.getKey() + ": " + response);
+                acknowledged = false;
+            }
+        }
+        return acknowledged;
+    }
+
+    @Override
+    public void announce(String entry) {
+        // sent in the background, as the peers may be announcing to this broker at the same time
+        announcer.submit(() -> {
+            for (int peerId : sender.getPeerIds()) {
+                String response = sender.request(peerId, "metadata " + entry);
+                if (!"ok".equals(response)) {
+                    System.out.println("Unable to announce '" + entry + "' to Node " + peerId + ": " + response);
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        announcer.shutdown();
+    }
+}
@@ -3,82 +3,93 @@ package dslab.broker;
 import dslab.broker.enums.ElectionState;
 import dslab.broker.enums.ElectionType;
 
-import java.io.*;
-import java.net.*;
-import java.util.Scanner;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
+/**
+ * Handles the LEP messages of the peers, which the {@link Transport} hands over one by one.
+ */
 public class Receiver implements Runnable {
     private final Broker broker;
-    private volatile boolean running;
-    private ServerSocket serverSocket;
-    private final ExecutorService executor;
+    private Closeable listener; // guarded by this
+    private boolean running = true; // guarded by this
+    private final ExecutorService electionExecutor; // handles elect and declare one after another in arrival order
 
 
     public Receiver(Broker broker) {
         this.broker = broker;
-        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.electionExecutor = Executors.newSingleThreadExecutor(Thread.ofVirtual().factory());
     }
 
     @Override
     public void run() {
-        this.running = true;
-
         try {
-            serverSocket = new ServerSocket(broker.getConfig().electionPort());
-            while (running) {
-                acceptClientConnections();
+            Closeable opened = broker.getTransport().listen(broker.getConfig().electionPort(), this);
+            synchronized (this) {
+                if (running) {
+                    listener = opened;
+                    return;
+                }
             }
+            opened.close(); // shut down in the meantime
         } catch (IOException e) {
             System.out.println(e.getMessage());
         }
     }
 
-
-    private void acceptClientConnections(){
-        try {
-            Socket clientSocket = serverSocket.accept();
-            clientSocket.setSoTimeout(5000);
-            executor.submit(() -> handleConnection(clientSocket));
-        } catch (SocketException e) {
-            if (running) {
-                System.err.println("Socket exception: " + e.getMessage());
-            }
-        } catch (IOException e) {
-            System.err.println("Error accepting client connection: " + e.getMessage());
-        }
+    /**
+     * Called when a peer opened a connection, which counts as a heartbeat.
+     */
+    public void peerConnected() {
+        broker.updateHeartbeat(); // update heartbeat, directly after connection
     }
 
-    private void handleConnection(Socket clientSocket) {
-        try (clientSocket;
-             Scanner in = new Scanner(clientSocket.getInputStream());
-             PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
-
-            out.println("ok LEP");
-            broker.updateHeartbeat(); // update heartbeat, directly after connection
-
-            while(in.hasNextLine()){
-                processClientCommand(in.nextLine(), out);
-            }
-        } catch (IOException e) {
-            System.out.println(e.getMessage());
+    /**
+     * Handles one message of a peer. The response is passed on before the election handling the message triggers is
+     * started, and every message of a peer must be received only after the previous one was answered.
+     *
+     * @param message the command, followed by the entries if it is a {@code replicate} batch
+     * @param respond sends the response back to the peer
+     */
+    public void receive(String[] message, Consumer<String> respond) {
+        String command = message[0];
+        if (command.startsWith("replicate")) {
+            respond.accept(handleReplicateCommand(command.split(" "), message));
+            return;
         }
-
-
+        if (command.startsWith("snapshot")) {
+            respond.accept(handleSnapshotCommand(command.split(" ")));
+            return;
+        }
+        processClientCommand(command, respond);
     }
 
-    private void processClientCommand(String command, PrintWriter out) {
+    private void processClientCommand(String command, Consumer<String> respond) {
         if (command == null) {
             return;
         }
 
         String response = parseCommand(command); // Parse and validate the command
-        out.println(response);
+        respond.accept(response);
 
-        // If the response is valid, process the command
+        // If the response is valid, process the command. Elections forward messages to other peers and wait for
+        // their responses, which must not hold up the further messages of this connection.
         if (isResponseValid(response)) {
-            broker.handleMessage(command);
+            try {
+                electionExecutor.submit(() -> broker.handleMessage(command));
+            } catch (RejectedExecutionException e) {
+                // shut down while the message was received
+            }
         }
     }
 
@@ -93,13 +104,36 @@ public class Receiver implements Runnable {
 
         return switch (cmd) {
             case "elect" -> handleElectCommand(parts);
+            case "prevote" -> handlePreVoteCommand(parts);
             case "declare" -> handleDeclareCommand(parts);
             case "ping" -> handlePingCommand(parts);
+            case "claim" -> handleClaimCommand(parts);
+            case "release" -> handleReleaseCommand(parts);
+            case "enqueue" -> handleEnqueueCommand(parts);
+            case "metadata" -> handleMetadataCommand(command);
+            case "address" -> handleAddressCommand(parts);
+            case "transfer" -> handleTransferCommand(parts);
+            case "takeover" -> handleTakeoverCommand(parts);
+            case "join" -> handleJoinCommand(parts);
+            case "leave" -> handleLeaveCommand(parts);
+            case "members" -> handleMembersCommand(parts);
             default -> "error protocol error";
         };
     }
 
     private String handleElectCommand(String[] parts) {
+        if (broker.hasRaftTerms()) {
+            boolean transfer = parts.length == 4 && parts[3].equals("transfer");
+            if (parts.length != 3 && !transfer) {
+                return "error usage: elect <id> <term> [transfer]";
+            }
+            try {
+                return broker.handleVoteRequest(Integer.parseInt(parts[1]), Long.parseLong(parts[2]), transfer);
+            } catch (NumberFormatException e) {
+                return "error usage: elect <id> <term> [transfer]";
+            }
+        }
+
         broker.setElectionState(ElectionState.CANDIDATE);
 
         if (parts.length != 2) {
@@ -117,14 +151,222 @@ public class Receiver implements Runnable {
         return "ok";
     }
 
+    private String handlePreVoteCommand(String[] parts) {
+        if (parts.length != 3 || !broker.hasRaftTerms()) {
+            return "error usage: prevote <id> <term>";
+        }
+        try {
+            return broker.handlePreVoteRequest(Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+        } catch (NumberFormatException e) {
+            return "error usage: prevote <id> <term>";
+        }
+    }
+
     private String handleDeclareCommand(String[] parts) {
+        if (broker.hasRaftTerms()) {
+            if (parts.length != 3 || !parts[2].matches("\\d+")) {
+                return "error usage: declare <id> <term>";
+            }
+            return "ack " + broker.getId();
+        }
         if (parts.length != 2) {
             return "error usage: declare <id>";
         }
         return "ack " + broker.getId();
     }
 
+    private String handleReplicateCommand(String[] parts, String[] message) {
+        if (parts.length != 4) {
+            return "error usage: replicate <epoch> <first-seq> <count>";
+        }
+
+        broker.updateHeartbeat(); // replication traffic comes from the leader as well
+
+        long epoch;
+        long firstSeq;
+        int count;
+        try {
+            epoch = Long.parseLong(parts[1]);
+            firstSeq = Long.parseLong(parts[2]);
+            count = Integer.parseInt(parts[3]);
+        } catch (NumberFormatException e) {
+            return "error usage: replicate <epoch> <first-seq> <count>";
+        }
+
+        if (count != message.length - 1) {
+            return "error usage: replicate <epoch> <first-seq> <count>";
+        }
+        List<String> entries = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            entries.add(message[i].substring(message[i].indexOf(' ') + 1)); // strip the sequence number
+        }
+
+        long applied = broker.getStore().applyReplicated(epoch, firstSeq, entries);
+        return "replicated " + epoch + " " + applied;
+    }
+
+    private String handleSnapshotCommand(String[] parts) {
+        broker.updateHeartbeat(); // snapshots come from the leader as well
+
+        try {
+            if (parts.length == 4 && parts[3].equals("end")) {
+                long epoch = Long.parseLong(parts[1]);
+                return "replicated " + epoch + " " + broker.getStore().finishSnapshot(epoch, Long.parseLong(parts[2]));
+            }
+            if (parts.length == 5) {
+                boolean loaded = broker.getStore().loadSnapshotPart(Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                        Integer.parseInt(parts[3]), Base64.getDecoder().decode(parts[4]));
+                return loaded ? "ok" : "error snapshot part out of order";
+            }
+        } catch (IllegalArgumentException e) {
+            // malformed number or base64 data
+        }
+        return "error usage: snapshot <epoch> <seq> <part> <base64-data> | snapshot <epoch> <seq> end";
+    }
+
+    private String handleClaimCommand(String[] parts) {
+        if (parts.length != 3) {
+            return "error usage: claim <queue> <message-id>[,<message-id>...]";
+        }
+        if (broker.getElectionState() != ElectionState.LEADER) {
+            return "error not leader";
+        }
+
+        Set<Long> ids = new HashSet<>();
+        try {
+            for (String id : parts[2].split(",")) {
+                ids.add(Long.parseLong(id));
+            }
+        } catch (NumberFormatException e) {
+            return "error usage: claim <queue> <message-id>[,<message-id>...]";
+        }
+
+        StringJoiner claimed = new StringJoiner(",", "claimed ", "").setEmptyValue("claimed -");
+        for (long id : broker.getStore().claim(parts[1], ids)) {
+            claimed.add(Long.toString(id));
+        }
+        return claimed.toString();
+    }
+
+    private String handleReleaseCommand(String[] parts) {
+        if (parts.length != 5) {
+            return "error usage: release <queue> <message-id> <routing-key> <base64-message>";
+        }
+        if (broker.getElectionState() != ElectionState.LEADER) {
+            return "error not leader";
+        }
+
+        Message message;
+        try {
+            message = new Message(Long.parseLong(parts[2]), parts[3], Base64.getDecoder().decode(parts[4]));
+        } catch (IllegalArgumentException e) {
+            // malformed number or base64 data
+            return "error usage: release <queue> <message-id> <routing-key> <base64-message>";
+        }
+        broker.getStore().release(parts[1], message);
+        return "ok";
+    }
+
+    private String handleEnqueueCommand(String[] parts) {
+        if (parts.length != 4) {
+            return "error usage: enqueue <queue>[,<queue>...] <routing-key> <base64-message>";
+        }
+
+        byte[] payload;
+        try {
+            payload = Base64.getDecoder().decode(parts[3]);
+        } catch (IllegalArgumentException e) {
+            return "error usage: enqueue <queue>[,<queue>...] <routing-key> <base64-message>";
+        }
+        broker.getStore().enqueueForwarded(List.of(parts[1].split(",")), parts[2], payload);
+        return "ok";
+    }
+
+    private String handleMetadataCommand(String command) {
+        String[] parts = command.split(" ", 2);
+        try {
+            if (parts.length == 2 && broker.getStore().applyAnnouncement(parts[1])) {
+                return "ok";
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            // missing arguments of the declaration or an unknown exchange type
+        }
+        return "error usage: metadata <exchange|queue|bind> <args>";
+    }
+
+    private String handleAddressCommand(String[] parts) {
+        if (parts.length != 1) {
+            return "error usage: address";
+        }
+        return "address " + broker.getConfig().host() + " " + broker.getConfig().port();
+    }
+
+    private String handleTransferCommand(String[] parts) {
+        if (parts.length > 2) {
+            return "error usage: transfer [<id>]";
+        }
+        try {
+            return broker.transferLeadership(parts.length == 2 ? Integer.parseInt(parts[1]) : -1);
+        } catch (NumberFormatException e) {
+            return "error usage: transfer [<id>]";
+        }
+    }
+
+    private String handleTakeoverCommand(String[] parts) {
+        if (parts.length != 2) {
+            return "error usage: takeover <leader-id>";
+        }
+        if (broker.getElectionType() != ElectionType.RAFT) {
+            return "error leader transfer requires raft election";
+        }
+        if (!parts[1].equals(Integer.toString(broker.getLeader()))) {
+            return "error " + parts[1] + " is not the leader";
+        }
+        return "ok"; // the election is started by Broker.handleMessage
+    }
+
+    private String handleJoinCommand(String[] parts) {
+        if (parts.length != 4) {
+            return "error usage: join <id> <host> <election-port>";
+        }
+        try {
+            return broker.join(Integer.parseInt(parts[1]), parts[2], Integer.parseInt(parts[3]));
+        } catch (NumberFormatException e) {
+            return "error usage: join <id> <host> <election-port>";
+        }
+    }
+
+    private String handleLeaveCommand(String[] parts) {
+        if (parts.length != 2) {
+            return "error usage: leave <id>";
+        }
+        try {
+            return broker.leave(Integer.parseInt(parts[1]));
+        } catch (NumberFormatException e) {
+            return "error usage: leave <id>";
+        }
+    }
+
+    private String handleMembersCommand(String[] parts) {
+        if (parts.length != 2) {
+            return "error usage: members <id>:<host>:<election-port>[,...]";
+        }
+        try {
+            broker.updateMembers(parts[1]);
+            return "ok";
+        } catch (IllegalArgumentException e) {
+            return "error usage: members <id>:<host>:<election-port>[,...]";
+        }
+    }
+
     private String handlePingCommand(String[] parts) {
+        if (parts.length == 2 && broker.hasRaftTerms()) {
+            try {
+                return broker.handlePing(Long.parseLong(parts[1]));
+            } catch (NumberFormatException e) {
+                return "error usage: ping [<term>]";
+            }
+        }
         if (parts.length != 1) {
             return "error usage: ping";
         }
@@ -136,23 +378,20 @@ public class Receiver implements Runnable {
 
 
 
-    private void closeServerSocket() {
-        if (serverSocket != null) {
+    public void shutdown() {
+        Closeable opened;
+        synchronized (this) {
+            running = false;
+            opened = listener;
+        }
+        if (opened != null) {
             try {
-                serverSocket.close();
+                opened.close();
             } catch (IOException e) {
-                System.out.println("Error closing server socket: " + e.getMessage());
+                System.out.println("Error closing election port: " + e.getMessage());
             }
         }
-    }
-
-    public void shutdown() {
-        this.running = false;
-
-        closeServerSocket();
-        if (executor != null) {
-            executor.shutdown();
-        }
+        electionExecutor.shutdown();
     }
 
 }
\ No newline at end of file
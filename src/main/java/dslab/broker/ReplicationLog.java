@@ -0,0 +1,63 @@
+package dslab.broker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The leader's log of changes that are streamed to the followers. Every entry gets the next sequence number of the
+ * log's epoch. Only the latest {@code capacity} entries are retained, a follower that falls further behind cannot be
+ * caught up from the log anymore.
+ */
+public class ReplicationLog {
+    private final long epoch;
+    private final String[] entries; // ring buffer, the entry with sequence number n is at (n - 1) % capacity
+    private long firstSeq = 1; // sequence number of the oldest retained entry
+    private long lastSeq = 0;
+
+    public ReplicationLog(long epoch, int capacity) {
+        this.epoch = epoch;
+        this.entries = new String[capacity];
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    public synchronized long append(String entry) {
+        lastSeq++;
+        entries[index(lastSeq)] = entry;
+        firstSeq = Math.max(firstSeq, lastSeq - entries.length + 1);
+        notifyAll();
+        return lastSeq;
+    }
+
+    /**
+     * Waits up to the given time for entries starting at {@code fromSeq}.
+     *
+     * @return up to {@code max} entries starting at {@code fromSeq}, an empty list if there are none yet,
+     * or null if the entries were already discarded
+     */
+    public synchronized List<String> read(long fromSeq, int max, long timeoutMs) throws InterruptedException {
+        if (fromSeq > lastSeq) {
+            wait(timeoutMs);
+        }
+        if (fromSeq < firstSeq) {
+            return null;
+        }
+
+        long toSeq = Math.min(lastSeq, fromSeq + max - 1);
+        List<String> result = new ArrayList<>((int) Math.max(0, toSeq - fromSeq + 1));
+        for (long seq = fromSeq; seq <= toSeq; seq++) {
+            result.add(entries[index(seq)]);
+        }
+        return result;
+    }
+
+    private int index(long seq) {
+        return (int) ((seq - 1) % entries.length);
+    }
+}
@@ -3,142 +3,393 @@ package dslab.broker;
 import dslab.broker.enums.ElectionType;
 import dslab.config.BrokerConfig;
 
-import java.io.*;
-import java.net.*;
+import java.net.InetSocketAddress;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+
+public final class Sender {
+    /**
+     * A peer of the current membership. All LEP messages to it share one connection and are sent by one executor, so
+     * the peer gets them in order.
+     */
+    private record Peer(int id, String host, int port, InetSocketAddress address, PeerChannel connection,
+                        ExecutorService executor) {
+        void close() {
+            executor.shutdown();
+            connection.close();
+        }
+    }
 
-public class Sender {
     private final Broker broker;
-    private final int[] peerIds;
-    private final String[] peerHosts;
-    private final int[] peerPorts;
+    private volatile List<Peer> peers; // in ring order, replaced as a whole when the membership changes
 
-    private final Map<Integer, Socket> heartbeatConnections = new ConcurrentHashMap<>();
-    private final Map<Integer, PrintWriter> heartbeatWriters = new ConcurrentHashMap<>();
-    private Timer heartbeatTimer; // Reference to the heartbeat timer
+    private final Map<Integer, FollowerLink> followerLinks = new ConcurrentHashMap<>();
+    private final Set<Integer> undeclared = ConcurrentHashMap.newKeySet(); // peers that did not answer the last declare
+    private ReplicationLog leaderLog; // guarded by this
+    private boolean leading; // guarded by this
+    private final ScheduledExecutorService heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().factory());
+    private final long heartbeatIntervalMs;
+    private ScheduledFuture<?> heartbeats;
 
     public Sender(Broker broker) {
         this.broker = broker;
-        this.peerIds = broker.getConfig().electionPeerIds();
-        this.peerHosts = broker.getConfig().electionPeerHosts();
-        this.peerPorts = broker.getConfig().electionPeerPorts();
+
+        long configuredInterval = broker.getConfig().electionHeartbeatIntervalMs();
+        this.heartbeatIntervalMs = configuredInterval > 0
+                ? configuredInterval
+                : Math.max(1, broker.getConfig().electionHeartbeatTimeoutMs() / 5);
+
+        BrokerConfig config = broker.getConfig();
+        setPeers(config.electionPeerIds(), config.electionPeerHosts(), config.electionPeerPorts());
     }
 
-    public int sendMessage(String message) {
-        boolean success = false;
-        int votes = 0;
+    /**
+     * @return the ids of the current peers in ring order
+     */
+    public int[] getPeerIds() {
+        List<Peer> current = peers;
+        int[] ids = new int[current.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = current.get(i).id();
+        }
+        return ids;
+    }
 
+    /**
+     * @return the peers as {@code <id>:<host>:<port>} in ring order
+     */
+    public List<String> getPeerAddresses() {
+        List<String> addresses = new ArrayList<>();
+        for (Peer peer : peers) {
+            addresses.add(peer.id() + ":" + peer.host() + ":" + peer.port());
+        }
+        return addresses;
+    }
 
-        for (int i = 0; i < peerIds.length; i++) {
+    /**
+     * Replaces the peers, in ring order. Connections to peers that stay are kept. While being the leader, the new
+     * peers get a follower link right away and the links to the removed ones are closed.
+     */
+    public synchronized void setPeers(int[] ids, String[] hosts, int[] ports) {
+        Map<Integer, Peer> previous = new HashMap<>();
+        if (peers != null) {
+            for (Peer peer : peers) {
+                previous.put(peer.id(), peer);
+            }
+        }
 
-            if ((broker.getElectionType() == ElectionType.BULLY) && message.startsWith("elect"))
-            {
-                if (broker.getId() > broker.getConfig().electionPeerIds()[i]){
-                    continue;
+        List<Peer> updated = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            Peer peer = previous.remove(ids[i]);
+            if (peer == null || !peer.host().equals(hosts[i]) || peer.port() != ports[i]) {
+                if (peer != null) {
+                    previous.put(ids[i], peer); // moved to another address, closed below
                 }
+                peer = new Peer(ids[i], hosts[i], ports[i], new InetSocketAddress(hosts[i], ports[i]),
+                        broker.getTransport().connect(ids[i], hosts[i], ports[i]),
+                        Executors.newSingleThreadExecutor(Thread.ofVirtual().factory()));
             }
+            updated.add(peer);
+        }
+        peers = updated;
 
+        for (Peer removed : previous.values()) {
+            FollowerLink link = followerLinks.remove(removed.id());
+            if (link != null) {
+                link.close();
+            }
+            removed.close();
+        }
+        if (leading) {
+            for (Peer peer : updated) {
+                if (!followerLinks.containsKey(peer.id())) {
+                    startFollowerLink(peer);
+                }
+            }
+        }
+    }
 
-            try (Socket socket = new Socket(peerHosts[i], peerPorts[i]);
-                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+    /**
+     * Sends an election message to the peers. In a ring it goes to the next reachable peer only, otherwise it is sent
+     * to all peers concurrently, and the call returns as soon as the outcome is decided: for RAFT once a majority voted
+     * for this broker, for other elections once any peer answered. {@code prevote} is counted like {@code elect}. The
+     * remaining requests still complete in the background.
+     *
+     * @return for RAFT the number of votes for this broker, otherwise 1 if any peer answered and 0 if none did
+     */
+    public int sendMessage(String message) {
+        if (broker.getElectionType() == ElectionType.RING) {
+            return sendToNextInRing(message) ? 1 : 0;
+        }
 
-                socket.setSoTimeout(5000);
+        boolean raft = broker.getElectionType() == ElectionType.RAFT;
+        boolean election = message.startsWith("elect") || message.startsWith("prevote");
+        boolean declare = message.startsWith("declare");
 
-                String response = in.readLine();
+        BlockingQueue<Future<String>> completed = new LinkedBlockingQueue<>();
+        int requests = 0;
+        for (Peer peer : peers) {
+            if ((broker.getElectionType() == ElectionType.BULLY) && election && broker.getId() > peer.id()) {
+                continue;
+            }
+            try {
+                new ExecutorCompletionService<String>(peer.executor(), completed).submit(() -> {
+                    String response = exchange(peer, message);
+                    if (declare && response == null) {
+                        undeclared.add(peer.id()); // its follower link declares the leader again, see FollowerLink
+                    } else if (declare) {
+                        undeclared.remove(peer.id());
+                    }
+                    return response;
+                });
+                requests++;
+            } catch (RejectedExecutionException e) {
+                // the peer was removed from the cluster in the meantime
+            }
+        }
 
+        boolean success = false;
+        int votes = 0;
+        int majority = broker.votesNeeded();
+        try {
+            for (int i = 0; i < requests; i++) {
+                if (election && (raft ? votes >= majority : success)) {
+                    break;
+                }
 
-                if ((response == null) || !response.equals("ok LEP")){
+                String response;
+                try {
+                    response = completed.take().get();
+                } catch (ExecutionException e) {
+                    // only this peer failed, keep counting the others
+                    System.out.println("Election request failed: " + e.getCause().getMessage());
                     continue;
                 }
-
-                out.println(message);
-                response = in.readLine();
-                if (response != null){
-                    success = true;
-                    if (broker.getElectionType() == ElectionType.RING){
-                        break;
-                    } else if (broker.getElectionType() == ElectionType.RAFT){
-                        if (response.startsWith("vote")){
-                            String[] parts = response.split(" ");
-                            int vote = Integer.parseInt(parts[2]);
-                            if (vote == broker.getId()){
-                                votes += 1;
-                            }
-                        }
-
-                    }
+                if (response == null) {
+                    continue;
+                }
+                success = true;
+                if (raft && response.startsWith("vote") && isVoteFor(response, broker.getId())) {
+                    votes += 1;
                 }
-            } catch (IOException e) {
-                System.out.println("Unable to contact Node " + peerIds[i]);
             }
-
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
-        if (broker.getElectionType() == ElectionType.RAFT){
-            return votes;
+        return raft ? votes : (success ? 1 : 0);
+    }
+
+    /**
+     * Parses a {@code vote <sender> <candidate> [<term>]} response, observing its term. A malformed response counts
+     * as no vote.
+     */
+    private boolean isVoteFor(String response, int candidate) {
+        String[] parts = response.split(" ");
+        try {
+            if (parts.length == 4) {
+                broker.observeTerm(Long.parseLong(parts[3])); // a newer term ends this election
+            }
+            return parts.length >= 3 && Integer.parseInt(parts[2]) == candidate;
+        } catch (NumberFormatException e) {
+            System.out.println("Malformed vote: " + response);
+            return false;
         }
+    }
 
-        return success ? 1 : 0;
+    private boolean sendToNextInRing(String message) {
+        for (Peer peer : peers) {
+            if (exchange(peer, message) != null) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public void establishConnectionsForLeader() {
-        closeConnections(); // Ensure no stale connections
+    private String exchange(Peer peer, String message) {
+        return peer.connection().request(message);
+    }
 
-        for (int i = 0; i < peerIds.length; i++) {
+    /**
+     * Sends a message to all peers concurrently and waits for all responses.
+     *
+     * @return the number of peers that answered with {@code ok}
+     */
+    public int broadcast(String message) {
+        List<Future<String>> responses = new ArrayList<>();
+        for (Peer peer : peers) {
             try {
-                Socket socket = new Socket(peerHosts[i], peerPorts[i]);
-                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+                responses.add(peer.executor().submit(() -> exchange(peer, message)));
+            } catch (RejectedExecutionException e) {
+                // the peer was removed from the cluster in the meantime
+            }
+        }
+
+        int acknowledged = 0;
+        try {
+            for (Future<String> response : responses) {
+                if ("ok".equals(response.get())) {
+                    acknowledged++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.out.println("Broadcast failed: " + e.getCause().getMessage());
+        }
+        return acknowledged;
+    }
 
-                heartbeatConnections.put(peerIds[i], socket);
-                heartbeatWriters.put(peerIds[i], writer);
-            } catch (IOException e) {
-                System.out.println("Unable to establish connection to Node " + peerIds[i]);
+    /**
+     * Sends a single command to the given peer and waits for the response.
+     *
+     * @return the response, or null if the peer could not be reached
+     */
+    public String request(int peerId, String message) {
+        for (Peer peer : peers) {
+            if (peer.id() == peerId) {
+                return exchange(peer, message);
             }
+        }
+        return null;
+    }
+
+    /**
+     * Starts sending heartbeats to every peer and streaming the given log to them.
+     *
+     * @param log the log to replicate to the followers, or null if replication is disabled
+     */
+    public synchronized void establishConnectionsForLeader(ReplicationLog log) {
+        closeConnections(); // Ensure no stale links
 
+        leading = true;
+        leaderLog = log;
+        for (Peer peer : peers) {
+            startFollowerLink(peer);
         }
 
         startHeartbeatTimer();
     }
 
+    // must hold the lock of the sender
+    private void startFollowerLink(Peer peer) {
+        FollowerLink link = new FollowerLink(peer.connection(), broker, leaderLog, undeclared.contains(peer.id()));
+        followerLinks.put(peer.id(), link);
+        link.start();
+    }
+
+    /**
+     * @return the links to all followers while being the leader
+     */
+    public Collection<FollowerLink> getFollowerLinks() {
+        return followerLinks.values();
+    }
+
+    /**
+     * @param needed the number of followers that make a majority together with the leader
+     * @return the {@link System#nanoTime()} of the latest ping that at least {@code needed} followers answered, empty
+     * if not enough followers answered a ping yet
+     */
+    public OptionalLong getQuorumAcknowledged(int needed) {
+        if (needed <= 0) {
+            return OptionalLong.of(System.nanoTime());
+        }
+        List<Long> acknowledged = new ArrayList<>();
+        for (FollowerLink link : followerLinks.values()) {
+            link.getLastAcknowledged().ifPresent(acknowledged::add);
+        }
+        if (acknowledged.size() < needed) {
+            return OptionalLong.empty();
+        }
+        acknowledged.sort(Comparator.reverseOrder());
+        return OptionalLong.of(acknowledged.get(needed - 1));
+    }
+
+    /**
+     * Pings all followers at once and waits for their answers, at most for the heartbeat timeout.
+     *
+     * @return the number of followers that answered with {@code pong}
+     */
+    public int pingFollowers() {
+        List<CompletableFuture<Boolean>> responses = new ArrayList<>();
+        for (FollowerLink link : followerLinks.values()) {
+            responses.add(link.ping());
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(broker.getConfig().electionHeartbeatTimeoutMs());
+        int answered = 0;
+        for (CompletableFuture<Boolean> response : responses) {
+            try {
+                if (response.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    answered++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | TimeoutException e) {
+                // counts as not answered
+            }
+        }
+        return answered;
+    }
+
     private void startHeartbeatTimer() {
-        // Send periodic heartbeats
-        heartbeatTimer = new Timer();
-        heartbeatTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                for (PrintWriter writer : heartbeatWriters.values()) {
-                    writer.println("ping");
+        // Send periodic heartbeats, each on the follower's own executor, a follower that received replication
+        // messages recently is skipped. With leases every follower is pinged, only answered pings renew the lease.
+        // Over UDP the datagrams are the heartbeats, the followers are still pinged once per heartbeat timeout, as
+        // only the answers to pings tell this broker about newer terms and followers that missed its declare.
+        UdpHeartbeats udp = broker.getUdpHeartbeats();
+        long quietNanos;
+        if (broker.getLeaseNanos() > 0) {
+            quietNanos = 0;
+        } else if (udp != null) {
+            quietNanos = TimeUnit.MILLISECONDS.toNanos(broker.getConfig().electionHeartbeatTimeoutMs());
+        } else {
+            quietNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatIntervalMs) / 2;
+        }
+        heartbeats = heartbeatScheduler.scheduleAtFixedRate(() -> {
+            if (udp != null) {
+                List<InetSocketAddress> followers = new ArrayList<>();
+                for (Peer peer : peers) {
+                    if (followerLinks.containsKey(peer.id())) {
+                        followers.add(peer.address());
+                    }
                 }
+                udp.send(followers, broker.hasRaftTerms() ? broker.getCurrentTerm() : 0);
             }
-        }, 0, 20);
+            for (Peer peer : peers) {
+                FollowerLink link = followerLinks.get(peer.id());
+                if (link != null) {
+                    link.sendHeartbeat(quietNanos, peer.executor());
+                }
+            }
+        }, 0, heartbeatIntervalMs, TimeUnit.MILLISECONDS);
     }
 
     private void stopHeartbeatTimer() {
-        // Stop the heartbeat timer, when no longer leader
-        if (heartbeatTimer != null){
-            heartbeatTimer.cancel();
+        // Stop the heartbeats, when no longer leader
+        if (heartbeats != null) {
+            heartbeats.cancel(false);
         }
     }
 
-    public void closeConnections() {
+    public synchronized void closeConnections() {
         stopHeartbeatTimer();
+        leading = false;
+        leaderLog = null;
 
-        for (Socket socket : heartbeatConnections.values()) {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                System.out.println("Node " + broker.getId() + ": Error closing connection");
-                System.out.println(e.getMessage());
-            }
+        for (FollowerLink link : followerLinks.values()) {
+            link.close();
         }
-        heartbeatConnections.clear();
-        heartbeatWriters.clear();
+        followerLinks.clear();
 
     }
 
     public void shutdown() {
         closeConnections();
+        heartbeatScheduler.shutdown();
+        for (Peer peer : peers) {
+            peer.close();
+        }
     }
 }
\ No newline at end of file
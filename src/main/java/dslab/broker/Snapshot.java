@@ -0,0 +1,59 @@
+package dslab.broker;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A point-in-time copy of the exchanges, queues, bindings and queue contents of a {@link MessageStore}, taken at a
+ * position of the leader's {@link ReplicationLog}. A follower that loads it continues with the log entries after
+ * {@link #getSeq()}.
+ * <p>
+ * It is written in the format of the replicated entries, one per line, first the declarations and then the messages
+ * of every queue in order. Taking the snapshot only copies references to the messages, the entries are produced while
+ * writing, so a large backlog is never held twice in memory.
+ */
+public class Snapshot {
+    private final long epoch;
+    private final long seq;
+    private final List<String> declarations;
+    private final Map<String, List<Message>> messages;
+
+    public Snapshot(long epoch, long seq, List<String> declarations, Map<String, List<Message>> messages) {
+        this.epoch = epoch;
+        this.seq = seq;
+        this.declarations = declarations;
+        this.messages = messages;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return the sequence number of the last log entry the snapshot contains
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        for (String declaration : declarations) {
+            writer.write(declaration);
+            writer.write('\n');
+        }
+
+        Base64.Encoder encoder = Base64.getEncoder();
+        for (Map.Entry<String, List<Message>> queue : messages.entrySet()) {
+            for (Message message : queue.getValue()) {
+                writer.write("publish " + message.getId() + " " + message.getRoutingKey() + " " +
+                        encoder.encodeToString(message.getPayload()) + " " + queue.getKey());
+                writer.write('\n');
+            }
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,220 @@
+package dslab.broker;
+
+import dslab.broker.enums.SlowConsumerPolicy;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Delivers the messages of a queue to a subscribed client.
+ * <p>
+ * A pump thread moves messages from the queue into a bounded outbound buffer, from which a writer thread sends them
+ * to the client in batches. A client that stops reading can therefore only hold back a bounded amount of messages.
+ * Once its buffer is full the {@link SlowConsumerPolicy} decides whether delivery pauses, the client is disconnected
+ * or the buffered messages are handed back to the queue for other subscribers.
+ */
+public class Subscription {
+
+    /**
+     * Sends a batch of messages to the client.
+     */
+    public interface Writer {
+        /**
+         * @return false if the client is gone, which ends the subscription. The subscription does not put the batch
+         * back, a follower's writer has to release the messages it claimed to the leader instead, see
+         * {@link MessageStore#requeueUndelivered(Queue, List)}.
+         */
+        boolean write(List<Message> messages);
+    }
+
+    private final Queue queue;
+    private final Writer writer;
+    private final Runnable disconnect;
+    private final SlowConsumerPolicy policy;
+    private final int capacityBytes;
+    private final int batchMessages;
+    private final int batchBytes;
+    private final DeliveryMetrics metrics;
+
+    private final LinkedList<Message> buffer = new LinkedList<>();
+    private int bufferedBytes; // buffered and in-flight messages
+    private volatile boolean active;
+    private Thread pumpThread;
+    private Thread writerThread;
+
+    public Subscription(Queue queue, Writer writer, Runnable disconnect, SlowConsumerPolicy policy, int capacityBytes,
+                        int batchMessages, int batchBytes, DeliveryMetrics metrics) {
+        this.queue = queue;
+        this.writer = writer;
+        this.disconnect = disconnect;
+        this.policy = policy;
+        this.capacityBytes = capacityBytes;
+        this.batchMessages = batchMessages;
+        this.batchBytes = batchBytes;
+        this.metrics = metrics;
+    }
+
+    public void start() {
+        active = true;
+        pumpThread = Thread.ofVirtual().start(this::pump);
+        writerThread = Thread.ofVirtual().start(this::writeLoop);
+    }
+
+    /**
+     * Stops the delivery and puts all messages that were not yet written back into the queue.
+     */
+    public void stop() {
+        active = false;
+        if (pumpThread != null) {
+            pumpThread.interrupt(); // only waits on the queue or the buffer, never on the socket
+        }
+
+        synchronized (buffer) {
+            requeueBuffered();
+            buffer.notifyAll();
+        }
+    }
+
+    private void pump() {
+        try {
+            while (active) {
+                int free = awaitSpace();
+                if (free <= 0) {
+                    continue;
+                }
+
+                List<Message> messages = queue.getMessages(batchMessages, Math.min(batchBytes, free));
+                synchronized (buffer) {
+                    if (!active) {
+                        queue.requeue(messages);
+                        break;
+                    }
+                    buffer.addAll(messages);
+                    bufferedBytes += sizeOf(messages);
+                    buffer.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Blocks as long as the policy requires when the buffer is full.
+     *
+     * @return the number of bytes that may be added to the buffer
+     */
+    private int awaitSpace() throws InterruptedException {
+        synchronized (buffer) {
+            if (bufferedBytes < capacityBytes) {
+                return capacityBytes - bufferedBytes;
+            }
+
+            metrics.recordSlowConsumer();
+            System.out.println("slow consumer on queue " + queue.getName() + ": " + bufferedBytes +
+                    " bytes buffered, " + queue.size() + " messages waiting, applying policy " + policy);
+
+            long start = System.nanoTime();
+            switch (policy) {
+                case DISCONNECT: {
+                    active = false;
+                    requeueBuffered();
+                    metrics.recordDisconnect();
+                    break;
+                }
+                case REQUEUE: {
+                    // give the buffered messages to other subscribers, continue once the stuck write went through
+                    requeueBuffered();
+                    while (active && bufferedBytes > 0) {
+                        buffer.wait();
+                    }
+                    break;
+                }
+                case PAUSE: {
+                    while (active && bufferedBytes >= capacityBytes) {
+                        buffer.wait();
+                    }
+                    break;
+                }
+            }
+            if (policy != SlowConsumerPolicy.DISCONNECT) {
+                metrics.recordPause(System.nanoTime() - start);
+                return capacityBytes - bufferedBytes;
+            }
+        }
+
+        // without holding the buffer, as closing the connection stops this subscription
+        disconnect.run();
+        return 0;
+    }
+
+    private void writeLoop() {
+        try {
+            while (active) {
+                List<Message> batch = takeBatch();
+                if (batch == null) {
+                    break;
+                }
+
+                long start = System.nanoTime();
+                boolean written = writer.write(batch);
+                long writeNanos = System.nanoTime() - start;
+
+                synchronized (buffer) {
+                    bufferedBytes -= sizeOf(batch);
+                    buffer.notifyAll();
+                }
+
+                if (!written) {
+                    stop(); // the client is gone, the writer put the batch back
+                } else {
+                    metrics.recordWrite(batch.size(), writeNanos);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<Message> takeBatch() throws InterruptedException {
+        synchronized (buffer) {
+            while (active && buffer.isEmpty()) {
+                buffer.wait();
+            }
+            if (!active) {
+                return null;
+            }
+
+            List<Message> batch = new ArrayList<>(Math.min(batchMessages, buffer.size()));
+            int bytes = 0;
+            while (!buffer.isEmpty() && batch.size() < batchMessages && bytes < batchBytes) {
+                Message message = buffer.poll();
+                bytes += message.getPayload().length;
+                batch.add(message);
+            }
+            return batch;
+        }
+    }
+
+    // must hold the buffer lock
+    private void requeueBuffered() {
+        if (buffer.isEmpty()) {
+            return;
+        }
+
+        List<Message> messages = new ArrayList<>(buffer);
+        buffer.clear();
+        bufferedBytes -= sizeOf(messages);
+        queue.requeue(messages);
+        metrics.recordRequeue(messages.size());
+    }
+
+    private static int sizeOf(List<Message> messages) {
+        int bytes = 0;
+        for (Message message : messages) {
+            bytes += message.getPayload().length;
+        }
+        return bytes;
+    }
+}
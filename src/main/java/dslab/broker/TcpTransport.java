@@ -0,0 +1,121 @@
+package dslab.broker;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LEP over TCP. Every peer keeps one {@link PeerConnection} to the election port of every other peer and sends all
+ * its messages over it, the server answers them one after another with a line each.
+ */
+public class TcpTransport implements Transport {
+
+    @Override
+    public PeerChannel connect(int peerId, String host, int port) {
+        return new PeerConnection(peerId, host, port);
+    }
+
+    @Override
+    public Closeable listen(int port, Receiver receiver) throws IOException {
+        Listener listener = new Listener(new ServerSocket(port), receiver);
+        Thread.ofVirtual().start(listener::acceptConnections);
+        return listener;
+    }
+
+    private static class Listener implements Closeable {
+        private final ServerSocket serverSocket;
+        private final Receiver receiver;
+        private final Set<Socket> connections = ConcurrentHashMap.newKeySet(); // peers keep them open, closed on shutdown
+        private volatile boolean running = true;
+
+        Listener(ServerSocket serverSocket, Receiver receiver) {
+            this.serverSocket = serverSocket;
+            this.receiver = receiver;
+        }
+
+        private void acceptConnections() {
+            while (running) {
+                try {
+                    Socket clientSocket = serverSocket.accept();
+                    clientSocket.setSoTimeout(5000);
+                    connections.add(clientSocket);
+                    Thread.ofVirtual().start(() -> handleConnection(clientSocket));
+                } catch (SocketException e) {
+                    if (running) {
+                        System.err.println("Socket exception: " + e.getMessage());
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error accepting client connection: " + e.getMessage());
+                }
+            }
+        }
+
+        private void handleConnection(Socket clientSocket) {
+            try (clientSocket;
+                 BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                 PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
+
+                out.println("ok LEP");
+                receiver.peerConnected();
+
+                // peers keep their connection open and send all their messages over it
+                String command;
+                while ((command = in.readLine()) != null) {
+                    String[] message = new String[1 + followingLines(command)];
+                    message[0] = command;
+                    for (int i = 1; i < message.length; i++) {
+                        message[i] = in.readLine();
+                        if (message[i] == null) {
+                            throw new EOFException("connection closed within a replicate batch");
+                        }
+                    }
+                    receiver.receive(message, out::println);
+                }
+            } catch (SocketTimeoutException e) {
+                // the peer did not use the connection for a while, it reconnects when needed
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println(e.getMessage());
+                }
+            } finally {
+                connections.remove(clientSocket);
+            }
+        }
+
+        /**
+         * @return the number of lines that belong to the message after the command, the entries of a replicate batch
+         */
+        private static int followingLines(String command) {
+            String[] parts = command.split(" ");
+            if (!parts[0].equals("replicate") || parts.length != 4) {
+                return 0;
+            }
+            try {
+                return Math.max(0, Integer.parseInt(parts[3]));
+            } catch (NumberFormatException e) {
+                return 0; // rejected by the receiver
+            }
+        }
+
+        @Override
+        public void close() {
+            running = false;
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                System.out.println("Error closing server socket: " + e.getMessage());
+            }
+            for (Socket connection : connections) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    System.out.println("Error closing connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
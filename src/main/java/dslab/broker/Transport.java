@@ -0,0 +1,23 @@
+package dslab.broker;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Carries the LEP messages between the brokers of a cluster. {@link TcpTransport} is used by default, tests can run
+ * whole clusters inside one JVM over a simulated network instead.
+ */
+public interface Transport {
+    /**
+     * @return the channel for the messages to the given peer, which connects when it is first used
+     */
+    PeerChannel connect(int peerId, String host, int port);
+
+    /**
+     * Starts handing the messages that are sent to the given election port to the receiver, see
+     * {@link Receiver#receive(String[], java.util.function.Consumer)}.
+     *
+     * @return closes the port and the connections of the peers
+     */
+    Closeable listen(int port, Receiver receiver) throws IOException;
+}
@@ -0,0 +1,104 @@
+package dslab.broker;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Heartbeats over UDP, used instead of {@code ping} over the TCP connections if {@code election.heartbeat.udp} is set.
+ * <p>
+ * The leader sends the datagram {@code heartbeat <leader-id> <term> <seq>} to the election port of every follower,
+ * which is bound for UDP as well. The sequence number grows with every round, so followers drop heartbeats that arrive
+ * late or twice. Sending never blocks: if a datagram cannot be sent right away it is dropped like one lost on the
+ * network, so a stalled follower does not delay the heartbeats to the others. Followers do not answer.
+ */
+public class UdpHeartbeats implements Runnable {
+    private static final int MAX_DATAGRAM_BYTES = 128;
+
+    private final Broker broker;
+    private final DatagramSocket socket;
+    private final DatagramChannel channel;
+    private final Map<Integer, Long> lastSeqs = new HashMap<>(); // per leader, only used by the receiving thread
+    private long nextSeq = 1; // guarded by this
+    private volatile boolean running;
+
+    public UdpHeartbeats(Broker broker) throws IOException {
+        this.broker = broker;
+        this.socket = new DatagramSocket(broker.getConfig().electionPort());
+        this.channel = DatagramChannel.open();
+        this.channel.configureBlocking(false);
+    }
+
+    /**
+     * Sends one round of heartbeats to the given followers.
+     */
+    public void send(List<InetSocketAddress> followers, long term) {
+        long seq;
+        synchronized (this) {
+            seq = nextSeq++;
+        }
+        byte[] datagram = ("heartbeat " + broker.getId() + " " + term + " " + seq).getBytes(StandardCharsets.US_ASCII);
+
+        for (InetSocketAddress follower : followers) {
+            try {
+                channel.send(ByteBuffer.wrap(datagram), follower); // sends nothing if the buffer is full
+            } catch (IOException e) {
+                // unreachable right now, the next round tries again
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        running = true;
+        byte[] buffer = new byte[MAX_DATAGRAM_BYTES];
+        while (running) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketException e) {
+                break; // closed on shutdown
+            } catch (IOException e) {
+                System.out.println("Error receiving heartbeat: " + e.getMessage());
+                continue;
+            }
+
+            String[] parts = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.US_ASCII).split(" ");
+            if (parts.length != 4 || !parts[0].equals("heartbeat")) {
+                continue;
+            }
+            try {
+                int leaderId = Integer.parseInt(parts[1]);
+                long term = Long.parseLong(parts[2]);
+                long seq = Long.parseLong(parts[3]);
+                // a restarted leader begins again at 1, which is older than what it sent before
+                Long lastSeq = lastSeqs.get(leaderId);
+                if (lastSeq != null && seq <= lastSeq && seq != 1) {
+                    continue;
+                }
+                lastSeqs.put(leaderId, seq);
+                broker.acceptHeartbeat(leaderId, term);
+            } catch (NumberFormatException e) {
+                // not one of our heartbeats
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        socket.close();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing heartbeat channel: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package dslab.broker.enums;
+
+public enum Opcode {
+    EXCHANGE(1),
+    QUEUE(2),
+    BIND(3),
+    PUBLISH(4),
+    SUBSCRIBE(5),
+    STOP(6),
+    EXIT(7),
+    OK(8),
+    ERROR(9),
+    MESSAGE(10),
+    DEPTH(11),
+    CHANNEL(12),
+    FETCH(13);
+
+    private final byte code;
+
+    Opcode(int code) {
+        this.code = (byte) code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    public static Opcode fromCode(byte code) {
+        for (Opcode opcode : values()) {
+            if (opcode.code == code) {
+                return opcode;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,7 @@
+package dslab.broker.enums;
+
+public enum SlowConsumerPolicy {
+    PAUSE,
+    DISCONNECT,
+    REQUEUE
+}
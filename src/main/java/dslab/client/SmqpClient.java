@@ -0,0 +1,423 @@
+package dslab.client;
+
+import dslab.broker.DNSClient;
+import dslab.broker.ExchangeType;
+import dslab.broker.Frame;
+import dslab.broker.enums.Opcode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client for applications that publish to and subscribe at the broker cluster over SMQP.
+ * <p>
+ * The client finds the leader by resolving the election domain at the DNS server, the result is cached until a
+ * connection to the leader fails. Publishes are spread over a pool of connections in binary mode and pipelined, see
+ * {@link #publish(String, String, byte[])}. After a failover the connections are opened again to the new leader, and
+ * the exchanges, queues and bindings declared through this client are declared there again.
+ * <p>
+ * Subscriptions follow the leader as well. The subscriptions to one broker share a connection, each on a channel of
+ * its own, see {@link #subscribe(String, MessageHandler)}. Consumers that would rather pull batches of messages
+ * use {@link #fetch(String, int, long)}.
+ */
+public class SmqpClient implements AutoCloseable {
+    static final long REQUEST_TIMEOUT_MS = 5000;
+    private static final long RECONNECT_TIMEOUT_MS = 10_000;
+    private static final long MAX_BACKOFF_MS = 1000;
+
+    /**
+     * Receives the messages of a subscription, one after another in the order of the queue.
+     */
+    public interface MessageHandler {
+        void onMessage(String routingKey, byte[] payload);
+    }
+
+    private final String dnsHost;
+    private final int dnsPort;
+    private final String electionDomain;
+    private final String fixedAddress;
+    private volatile String leaderAddress; // cached until a connection to it fails
+
+    private final SmqpConnection[] pool; // guarded by poolLocks of the same index
+    private final Object[] poolLocks;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private final Map<String, String> exchangeTypes = new ConcurrentHashMap<>(); // by exchange name
+    private final Map<String, Frame[]> declarations = new LinkedHashMap<>(); // for new connections, guarded by itself
+    private final Set<SmqpSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final Map<String, List<SmqpConnection>> subscriberConnections = new HashMap<>(); // guarded by this
+    private final Map<String, SmqpConnection> fetchConnections = new HashMap<>(); // guarded by itself
+    private volatile boolean closed;
+
+    /**
+     * Creates a client for the cluster whose leader is registered under the given election domain.
+     *
+     * @param connections the number of connections publishes are spread over
+     */
+    public SmqpClient(String dnsHost, int dnsPort, String electionDomain, int connections) {
+        this(dnsHost, dnsPort, electionDomain, null, connections);
+    }
+
+    /**
+     * Creates a client for a single broker, without leader discovery.
+     *
+     * @param address the broker's SMQP address as {@code <host>:<port>}
+     */
+    public SmqpClient(String address, int connections) {
+        this(null, 0, null, address, connections);
+    }
+
+    private SmqpClient(String dnsHost, int dnsPort, String electionDomain, String fixedAddress, int connections) {
+        this.dnsHost = dnsHost;
+        this.dnsPort = dnsPort;
+        this.electionDomain = electionDomain;
+        this.fixedAddress = fixedAddress;
+        this.pool = new SmqpConnection[Math.max(1, connections)];
+        this.poolLocks = new Object[pool.length];
+        for (int i = 0; i < poolLocks.length; i++) {
+            poolLocks[i] = new Object();
+        }
+        exchangeTypes.put("default", "default");
+    }
+
+    /**
+     * Declares an exchange and waits for the broker to confirm it.
+     *
+     * @throws SmqpException if the exchange already exists with a different type
+     */
+    public void declareExchange(ExchangeType type, String name) throws IOException {
+        String typeName = type.name().toLowerCase();
+        declare("exchange " + name, new Frame(Opcode.EXCHANGE, name, typeName.getBytes(StandardCharsets.UTF_8)));
+        exchangeTypes.put(name, typeName);
+    }
+
+    /**
+     * Declares a queue, which is bound to the default exchange with its name, and waits for the broker to confirm it.
+     */
+    public void declareQueue(String name) throws IOException {
+        declare("queue " + name, Frame.of(Opcode.QUEUE, name));
+    }
+
+    /**
+     * Binds the queue to the exchange, both have to be declared through this client before.
+     */
+    public void bind(String exchange, String queue, String bindingKey) throws IOException {
+        byte[] type = exchangeType(exchange).getBytes(StandardCharsets.UTF_8);
+        declare("bind " + exchange + " " + queue + " " + bindingKey, new Frame(Opcode.EXCHANGE, exchange, type),
+                Frame.of(Opcode.QUEUE, queue), Frame.of(Opcode.BIND, bindingKey));
+    }
+
+    /**
+     * Publishes a message without waiting for the broker's confirmation. The messages published to one connection of
+     * the pool are written together as they queue up, and their confirmations arrive in order.
+     * <p>
+     * A publish that was not confirmed when the connection failed completes exceptionally, the broker may or may not
+     * have received it. The next publishes go to the new leader once it is known.
+     *
+     * @param exchange an exchange declared through this client, or {@code default}
+     * @return completed once the broker confirmed the message
+     */
+    public CompletableFuture<Void> publish(String exchange, String routingKey, byte[] payload) {
+        String type = exchangeType(exchange);
+
+        SmqpConnection connection;
+        try {
+            connection = connection();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return connection.publish(exchange, type, routingKey, payload).handle((frame, error) -> {
+            if (error == null) {
+                return null;
+            }
+            if (error instanceof SmqpException && error.getMessage().equals("leader transfer in progress")) {
+                leaderMoved(connection); // the next publishes go to the new leader
+            }
+            throw new CompletionException(error);
+        });
+    }
+
+    /**
+     * Subscribes at the queue on a channel of its own. The queue is declared first, and subscribed again after a
+     * failover. Messages that were sent to the subscriber while its connection failed may be lost.
+     *
+     * @return the subscription, which ends with {@link SmqpSubscription#close()}
+     */
+    public SmqpSubscription subscribe(String queue, MessageHandler handler) {
+        if (closed) {
+            throw new IllegalStateException("client closed");
+        }
+        SmqpSubscription subscription = new SmqpSubscription(this, queue, handler);
+        subscriptions.add(subscription);
+        subscription.start();
+        return subscription;
+    }
+
+    /**
+     * Takes up to {@code maxMessages} messages from the queue at once. If the queue is empty, the broker waits up to
+     * {@code maxWaitMs} for the first message. The queue is declared first.
+     * <p>
+     * Fetches use a connection of their own per broker, as the broker reads no other requests of a connection while
+     * a fetch waits. Fetches of several threads take turns on it. With partitioning, a fetch follows
+     * {@code error moved} to the broker that owns the queue. Messages that were sent when the connection failed are
+     * lost.
+     *
+     * @return the messages in the order of the queue, empty if none arrived in time
+     */
+    public List<SmqpMessage> fetch(String queue, int maxMessages, long maxWaitMs) throws IOException {
+        String owner = null; // the broker holding the queue, if it is not the leader
+        while (true) {
+            SmqpConnection connection = fetchConnection(owner);
+            try {
+                CompletableFuture<List<Frame>> fetched = connection.fetch(queue, maxMessages, maxWaitMs);
+                List<SmqpMessage> messages = new ArrayList<>();
+                for (Frame frame : await(fetched, maxWaitMs + REQUEST_TIMEOUT_MS)) {
+                    messages.add(new SmqpMessage(frame.key(), frame.payload()));
+                }
+                return messages;
+            } catch (SmqpException e) {
+                if (owner == null && e.getMessage().startsWith("moved ")) {
+                    owner = e.getMessage().substring("moved ".length());
+                    continue;
+                }
+                throw e;
+            } catch (IOException e) {
+                if (owner == null) {
+                    leaderMoved(connection); // the next fetch goes to the new leader once it is known
+                } else {
+                    connection.close();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Waits for the confirmations of the messages published so far, at most {@link #REQUEST_TIMEOUT_MS}, and closes
+     * all connections and subscriptions.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (SmqpSubscription subscription : subscriptions) {
+            subscription.close();
+        }
+        for (int i = 0; i < pool.length; i++) {
+            synchronized (poolLocks[i]) {
+                if (pool[i] != null) {
+                    pool[i].close(REQUEST_TIMEOUT_MS);
+                }
+            }
+        }
+        synchronized (this) {
+            for (List<SmqpConnection> connections : subscriberConnections.values()) {
+                for (SmqpConnection connection : connections) {
+                    connection.close();
+                }
+            }
+        }
+        synchronized (fetchConnections) {
+            for (SmqpConnection connection : fetchConnections.values()) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * A channel of a connection, reserved for one subscription.
+     */
+    record Channel(SmqpConnection connection, int id) {
+    }
+
+    /**
+     * Reserves a channel on a connection to the leader or the given broker. The subscriptions to one broker share a
+     * connection as long as it has free channels.
+     *
+     * @param owner the broker to connect to, null for the leader
+     */
+    synchronized Channel openChannel(String owner, MessageHandler handler) throws IOException {
+        List<SmqpConnection> connections = subscriberConnections.computeIfAbsent(owner == null ? "" : owner,
+                address -> new ArrayList<>());
+        connections.removeIf(connection -> !connection.isOpen());
+        for (SmqpConnection connection : connections) {
+            int id = connection.openChannel(handler);
+            if (id > 0) {
+                return new Channel(connection, id);
+            }
+        }
+
+        SmqpConnection connection = connect(owner);
+        connections.add(connection);
+        return new Channel(connection, connection.openChannel(handler));
+    }
+
+    void removeSubscription(SmqpSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @param owner the broker to connect to, null for the leader
+     */
+    private SmqpConnection fetchConnection(String owner) throws IOException {
+        synchronized (fetchConnections) {
+            SmqpConnection connection = fetchConnections.get(owner == null ? "" : owner);
+            if (connection == null || !connection.isOpen()) {
+                connection = connect(owner);
+                fetchConnections.put(owner == null ? "" : owner, connection);
+            }
+            return connection;
+        }
+    }
+
+    private SmqpConnection connection() throws IOException {
+        int index = Math.floorMod(nextConnection.getAndIncrement(), pool.length);
+        synchronized (poolLocks[index]) {
+            if (pool[index] == null || !pool[index].isOpen()) {
+                pool[index] = connect(null);
+            }
+            return pool[index];
+        }
+    }
+
+    /**
+     * Opens a connection to the leader, or to the given broker, and declares everything declared through this client
+     * on it. Retries with growing pauses until {@link #RECONNECT_TIMEOUT_MS} passed.
+     *
+     * @param address the broker to connect to, null for the leader
+     */
+    private SmqpConnection connect(String address) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECONNECT_TIMEOUT_MS);
+        long backoffMs = 50;
+        while (true) {
+            if (closed) {
+                throw new IOException("client closed");
+            }
+
+            SmqpConnection connection = null;
+            try {
+                connection = new SmqpConnection(address != null ? address : leaderAddress());
+                List<Frame[]> replayed;
+                synchronized (declarations) {
+                    replayed = new ArrayList<>(declarations.values());
+                }
+                for (Frame[] declaration : replayed) {
+                    for (Frame frame : declaration) {
+                        await(connection.send(frame.opcode(), frame.key(), frame.payload()));
+                    }
+                }
+                return connection;
+            } catch (IOException e) {
+                if (connection != null) {
+                    connection.close();
+                }
+                if (address == null) {
+                    leaderAddress = null; // resolved again, the leader may have changed
+                }
+                boolean expired = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMs) > deadline;
+                if (e instanceof SmqpException || expired) {
+                    throw e; // an error response does not go away by reconnecting
+                }
+            }
+
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while reconnecting");
+            }
+            backoffMs = Math.min(MAX_BACKOFF_MS, backoffMs * 2);
+        }
+    }
+
+    /**
+     * Forgets the cached leader after the connection to it failed or it handed the leadership over.
+     */
+    void leaderMoved(SmqpConnection connection) {
+        if (connection.getAddress().equals(leaderAddress)) {
+            leaderAddress = null;
+        }
+        connection.close();
+    }
+
+    private String leaderAddress() throws IOException {
+        if (fixedAddress != null) {
+            return fixedAddress;
+        }
+
+        String address = leaderAddress;
+        if (address != null) {
+            return address;
+        }
+
+        DNSClient dns = new DNSClient(dnsHost, dnsPort);
+        if (!dns.connect()) {
+            throw new IOException("DNS server unavailable");
+        }
+        String response = dns.resolve(electionDomain);
+        dns.exit();
+        if (response == null || response.startsWith("error")) {
+            throw new IOException("no leader registered for " + electionDomain);
+        }
+
+        leaderAddress = response.trim();
+        return leaderAddress;
+    }
+
+    /**
+     * Sends a declaration and remembers it for new connections, once per key however often it is repeated.
+     */
+    private void declare(String key, Frame... frames) throws IOException {
+        SmqpConnection connection = connection();
+        for (Frame frame : frames) {
+            await(connection.send(frame.opcode(), frame.key(), frame.payload()));
+        }
+        synchronized (declarations) {
+            declarations.put(key, frames);
+        }
+    }
+
+    private String exchangeType(String exchange) {
+        String type = exchangeTypes.get(exchange);
+        if (type == null) {
+            throw new IllegalArgumentException("exchange " + exchange + " not declared");
+        }
+        return type;
+    }
+
+    /**
+     * Waits for a response.
+     *
+     * @throws SmqpException if the broker answered with an error
+     */
+    static Frame await(CompletableFuture<Frame> response) throws IOException {
+        return await(response, REQUEST_TIMEOUT_MS);
+    }
+
+    static <T> T await(CompletableFuture<T> response, long timeoutMs) throws IOException {
+        try {
+            return response.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("no response within " + timeoutMs + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a response");
+        }
+    }
+}
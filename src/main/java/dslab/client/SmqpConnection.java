@@ -0,0 +1,363 @@
+package dslab.client;
+
+import dslab.broker.Frame;
+import dslab.broker.enums.Opcode;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One connection to a broker in binary SMQP mode.
+ * <p>
+ * Requests are pipelined: they are sent without waiting for the responses to the previous ones, which the broker
+ * sends in the same order. A writer thread sends all requests that queued up in the meantime with a single flush, and
+ * a reader thread completes the pending requests as their responses arrive. At most {@link #MAX_IN_FLIGHT} requests
+ * wait for their response, further ones block until there is room.
+ * <p>
+ * Publishes and declarations use channel 0, every subscription gets a channel of its own, see
+ * {@link #openChannel(SmqpClient.MessageHandler)}. The broker answers the requests of all channels in order.
+ */
+class SmqpConnection implements Closeable {
+    static final int MAX_IN_FLIGHT = 4096;
+    static final int MAX_CHANNELS = 1024; // as accepted by the broker
+    private static final byte[] EMPTY = new byte[0];
+
+    private record Request(ByteBuffer header, byte[] payload) {
+    }
+
+    /**
+     * A request waiting for its response. A fetch also collects the messages that follow its response.
+     */
+    private record Pending(CompletableFuture<Frame> response, List<Frame> fetched) {
+    }
+
+    private final String address;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Map<Integer, SmqpClient.MessageHandler> handlers = new ConcurrentHashMap<>(); // by channel
+    private final BlockingQueue<Request> outbound = new LinkedBlockingQueue<>();
+    private final java.util.Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final AtomicBoolean open = new AtomicBoolean(true);
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    private final Thread writerThread;
+    private int inputChannel; // the channel of the frames read, only used by the reader
+    private Pending fetching; // the fetch whose messages are read, only used by the reader
+    private int fetchRemaining; // only used by the reader
+    private int outputChannel; // guarded by this
+    private int lastOpenedChannel; // guarded by this
+    private String currentExchange; // of channel 0, guarded by this
+
+    /**
+     * Connects to the broker and switches to binary mode.
+     *
+     * @param address the broker's SMQP address as {@code <host>:<port>}
+     */
+    SmqpConnection(String address) throws IOException {
+        this.address = address;
+
+        int separator = address.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IOException("invalid broker address " + address);
+        }
+        try {
+            socket = new Socket(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid broker address " + address);
+        }
+
+        try {
+            socket.setTcpNoDelay(true); // requests are batched by the writer already
+            BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            expectLine(input, "ok SMQP");
+            out.write("binary\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            expectLine(input, "ok");
+            in = new DataInputStream(input);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        writerThread = Thread.ofVirtual().start(this::writeRequests);
+        Thread.ofVirtual().start(this::readResponses);
+    }
+
+    String getAddress() {
+        return address;
+    }
+
+    boolean isOpen() {
+        return open.get();
+    }
+
+    /**
+     * @return completed once the connection is closed, by either side
+     */
+    CompletableFuture<Void> closed() {
+        return closed;
+    }
+
+    /**
+     * Reserves a channel for a subscription. The channels are handed out in turn, so a closed channel is reused as
+     * late as possible, after the messages the broker still sent on it arrived.
+     *
+     * @param handler receives the messages of the channel
+     * @return the channel, or -1 if all channels are in use
+     */
+    synchronized int openChannel(SmqpClient.MessageHandler handler) {
+        for (int i = 0; i < MAX_CHANNELS - 1; i++) {
+            int id = lastOpenedChannel % (MAX_CHANNELS - 1) + 1;
+            lastOpenedChannel = id;
+            if (!handlers.containsKey(id)) {
+                handlers.put(id, handler);
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Releases the channel, messages that still arrive on it are dropped.
+     */
+    void closeChannel(int channel) {
+        handlers.remove(channel);
+    }
+
+    CompletableFuture<Frame> send(Opcode opcode, String key, byte[] payload) {
+        return send(0, opcode, key, payload);
+    }
+
+    /**
+     * Sends a request on the given channel, blocking while too many requests wait for their response.
+     *
+     * @return the response, completed exceptionally with a {@link SmqpException} for an error response or with an
+     * {@link IOException} if the connection was closed before the response arrived
+     */
+    CompletableFuture<Frame> send(int channel, Opcode opcode, String key, byte[] payload) {
+        return send(channel, opcode, key, payload, null);
+    }
+
+    private CompletableFuture<Frame> send(int channel, Opcode opcode, String key, byte[] payload, List<Frame> fetched) {
+        CompletableFuture<Frame> response = new CompletableFuture<>();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.completeExceptionally(e);
+            return response;
+        }
+
+        queue(channel, opcode, key, payload, new Pending(response, fetched));
+        if (!open.get()) {
+            failPending(); // closed while the request was queued, it is never answered
+        }
+        return response;
+    }
+
+    CompletableFuture<Frame> send(int channel, Opcode opcode, String key) {
+        return send(channel, opcode, key, EMPTY);
+    }
+
+    /**
+     * Sends a request the broker does not answer, like {@code stop}.
+     */
+    void sendWithoutResponse(int channel, Opcode opcode) {
+        queue(channel, opcode, "", EMPTY, null);
+    }
+
+    /**
+     * Fetches up to the given number of messages from the queue, which is declared on channel 0 first. The broker
+     * waits at most {@code maxWaitMs} for the first message and reads no further requests of this connection in the
+     * meantime.
+     * <p>
+     * The messages are only told apart from the responses by the count in the {@code ok} response. If that count is
+     * malformed, the frames that follow cannot be assigned to a request, so the connection is closed and all pending
+     * requests fail with an {@link IOException}.
+     *
+     * @return the {@link Opcode#MESSAGE} frames, empty if no message arrived in time
+     */
+    synchronized CompletableFuture<List<Frame>> fetch(String queue, int maxMessages, long maxWaitMs) {
+        send(Opcode.QUEUE, queue, EMPTY);
+        List<Frame> messages = new ArrayList<>();
+        byte[] args = (maxMessages + " " + maxWaitMs).getBytes(StandardCharsets.UTF_8);
+        return send(0, Opcode.FETCH, "", args, messages).thenApply(ok -> messages);
+    }
+
+    private synchronized void queue(int channel, Opcode opcode, String key, byte[] payload, Pending response) {
+        // responses arrive in the order in which the requests are queued
+        if (channel != outputChannel) {
+            // selecting a channel has no response
+            outbound.add(new Request(Frame.encodeHeader(Opcode.CHANNEL, Integer.toString(channel), 0), EMPTY));
+            outputChannel = channel;
+        }
+        if (opcode == Opcode.EXCHANGE && channel == 0) {
+            currentExchange = key;
+        }
+        if (response != null) {
+            pending.add(response);
+        }
+        outbound.add(new Request(Frame.encodeHeader(opcode, key, payload.length), payload));
+    }
+
+    /**
+     * Publishes to the given exchange, which is declared on this connection first if it is not the current one.
+     */
+    synchronized CompletableFuture<Frame> publish(String exchange, String type, String routingKey, byte[] payload) {
+        if (!exchange.equals(currentExchange)) {
+            // a failed declaration fails the publish as well, with "no exchange declared"
+            send(Opcode.EXCHANGE, exchange, type.getBytes(StandardCharsets.UTF_8));
+        }
+        return send(Opcode.PUBLISH, routingKey, payload);
+    }
+
+    private void writeRequests() {
+        List<Request> batch = new ArrayList<>();
+        try {
+            while (open.get()) {
+                batch.add(outbound.take());
+                outbound.drainTo(batch);
+                for (Request request : batch) {
+                    out.write(request.header().array(), 0, request.header().limit());
+                    out.write(request.payload());
+                }
+                out.flush();
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void readResponses() {
+        try {
+            Frame frame;
+            while ((frame = Frame.read(in)) != null) {
+                if (frame.opcode() == Opcode.CHANNEL) {
+                    inputChannel = Integer.parseInt(frame.key());
+                    continue;
+                }
+                if (frame.opcode() == Opcode.MESSAGE) {
+                    if (fetching == null) {
+                        deliver(frame);
+                    } else {
+                        fetching.fetched().add(frame);
+                        if (--fetchRemaining == 0) {
+                            fetching.response().complete(frame);
+                            fetching = null;
+                        }
+                    }
+                    continue;
+                }
+
+                Pending response = pending.poll();
+                if (response == null) {
+                    System.err.println("unexpected response from " + address + ": " + frame.opcode());
+                    break;
+                }
+                inFlight.release();
+                if (frame.opcode() == Opcode.ERROR) {
+                    response.response().completeExceptionally(new SmqpException(frame.payloadAsString()));
+                } else if (response.fetched() == null) {
+                    response.response().complete(frame);
+                } else {
+                    fetchRemaining = Integer.parseInt(frame.payloadAsString());
+                    if (fetchRemaining > 0) {
+                        fetching = response; // completed with its last message
+                    } else {
+                        response.response().complete(frame);
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // connection lost or malformed channel or count, the pending requests fail below
+        } finally {
+            close();
+            if (fetching != null) {
+                fetching.response().completeExceptionally(new IOException("connection to " + address + " closed"));
+            }
+        }
+    }
+
+    private void deliver(Frame frame) {
+        SmqpClient.MessageHandler handler = handlers.get(inputChannel);
+        if (handler == null) {
+            return; // the subscription was closed in the meantime
+        }
+        try {
+            handler.onMessage(frame.key(), frame.payload());
+        } catch (RuntimeException e) {
+            System.err.println("error in message handler: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits until the requests sent so far were answered, at most for the given time, and closes the connection.
+     */
+    void close(long timeoutMs) {
+        CompletableFuture<?>[] responses = pending.stream().map(Pending::response).toArray(CompletableFuture<?>[]::new);
+        try {
+            CompletableFuture.allOf(responses).get(timeoutMs, java.util.concurrent.TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // failed or not answered in time, fails with the close
+        }
+        close();
+    }
+
+    @Override
+    public void close() {
+        if (!open.compareAndSet(true, false)) {
+            return;
+        }
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("error when closing socket");
+        }
+        writerThread.interrupt();
+        failPending();
+        inFlight.release(MAX_IN_FLIGHT); // senders waiting for room see the closed connection
+        closed.complete(null);
+    }
+
+    private void failPending() {
+        Pending response;
+        while ((response = pending.poll()) != null) {
+            response.response().completeExceptionally(new IOException("connection to " + address + " closed"));
+        }
+    }
+
+    private static void expectLine(InputStream in, String expected) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("connection closed during the handshake");
+            }
+            line.write(b);
+        }
+        String received = line.toString(StandardCharsets.UTF_8).trim();
+        if (!received.equals(expected)) {
+            throw new IOException("unexpected handshake response: " + received);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package dslab.client;
+
+import java.io.IOException;
+
+/**
+ * An error response of the broker, the message is the text after {@code error}, e.g.
+ * {@code exchange already exists with different type}.
+ */
+public class SmqpException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public SmqpException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package dslab.client;
+
+/**
+ * A message fetched with {@link SmqpClient#fetch(String, int, long)}.
+ */
+public record SmqpMessage(String routingKey, byte[] payload) {
+}
@@ -0,0 +1,110 @@
+package dslab.client;
+
+import dslab.broker.enums.Opcode;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A subscription of a {@link SmqpClient} at a queue. It uses a channel of a connection it shares with the other
+ * subscriptions to the same broker, and takes a channel on a new connection whenever that connection fails, to the
+ * new leader after a failover. If the broker answers that another broker of the cluster holds the messages of the
+ * queue, the subscription moves to that broker instead.
+ */
+public class SmqpSubscription implements AutoCloseable {
+    private static final long RETRY_MS = 100;
+
+    private final SmqpClient client;
+    private final String queue;
+    private final SmqpClient.MessageHandler handler;
+    private volatile SmqpClient.Channel channel;
+    private volatile boolean closed;
+    private Thread thread;
+
+    SmqpSubscription(SmqpClient client, String queue, SmqpClient.MessageHandler handler) {
+        this.client = client;
+        this.queue = queue;
+        this.handler = handler;
+    }
+
+    void start() {
+        thread = Thread.ofVirtual().start(this::subscribe);
+    }
+
+    public String getQueue() {
+        return queue;
+    }
+
+    /**
+     * @return true while the subscription is connected to a broker, false while it reconnects
+     */
+    public boolean isConnected() {
+        SmqpClient.Channel current = channel;
+        return current != null && current.connection().isOpen();
+    }
+
+    private void subscribe() {
+        String owner = null; // the broker holding the queue, if it is not the leader
+        while (!closed && !client.isClosed()) {
+            try {
+                SmqpClient.Channel current = client.openChannel(owner, handler);
+                channel = current;
+                if (closed) {
+                    current.connection().closeChannel(current.id()); // closed while connecting
+                    break;
+                }
+
+                SmqpConnection connection = current.connection();
+                SmqpClient.await(connection.send(current.id(), Opcode.QUEUE, queue));
+                try {
+                    SmqpClient.await(connection.send(current.id(), Opcode.SUBSCRIBE, ""));
+                } catch (SmqpException e) {
+                    connection.closeChannel(current.id());
+                    if (e.getMessage().startsWith("moved ")) {
+                        owner = e.getMessage().substring("moved ".length());
+                        continue;
+                    }
+                    throw e;
+                }
+
+                connection.closed().get();
+                if (owner == null && !closed) {
+                    client.leaderMoved(connection);
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("subscription to " + queue + " failed: " + e.getMessage());
+                }
+            } catch (ExecutionException e) {
+                // the closed future never fails
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            owner = null; // the queue may have moved, or the owner failed
+            try {
+                Thread.sleep(RETRY_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Ends the subscription. The messages the broker had not sent yet stay in the queue, the connection stays open for
+     * the other subscriptions.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        client.removeSubscription(this);
+        SmqpClient.Channel current = channel;
+        if (current != null) {
+            current.connection().sendWithoutResponse(current.id(), Opcode.STOP);
+            current.connection().closeChannel(current.id());
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+}
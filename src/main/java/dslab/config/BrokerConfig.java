@@ -1,7 +1,17 @@
 package dslab.config;
 
+import lombok.Builder;
+
 import java.util.Objects;
 
+/**
+ * The settings of a broker. A config that differs from an existing one in a few settings, e.g. one with all optional
+ * settings at their defaults, is derived with its builder:
+ * <pre>
+ * config.toBuilder().replicationEnabled(true).electionLeaseMs(200).build()
+ * </pre>
+ */
+@Builder(toBuilder = true, builderClassName = "Builder")
 public record BrokerConfig(
         String componentId,
         String host,
@@ -18,8 +28,67 @@ public record BrokerConfig(
         int[] electionPeerIds,
         long electionHeartbeatTimeoutMs,
         String monitoringHost,
-        int monitoringPort
+        int monitoringPort,
+        int deliveryBatchMessages,
+        int deliveryBatchBytes,
+        int subscriberBufferBytes,
+        String slowConsumerPolicy,
+        String unixSocketPath,
+        int acceptorThreads,
+        boolean replicationEnabled,
+        int replicationBatchSize,
+        int replicationLogCapacity,
+        boolean partitioningEnabled,
+        String federationLinks,
+        long electionHeartbeatIntervalMs,
+        double electionPhiThreshold,
+        boolean electionRaftTerms,
+        boolean electionRaftPreVote,
+        long electionTimeoutJitterMs,
+        boolean electionJoin,
+        boolean electionHeartbeatUdp,
+        long electionLeaseMs
 ) {
+
+    public static final int DEFAULT_DELIVERY_BATCH_MESSAGES = 64;
+    public static final int DEFAULT_DELIVERY_BATCH_BYTES = 64 * 1024;
+    public static final int DEFAULT_SUBSCRIBER_BUFFER_BYTES = 1024 * 1024;
+    public static final String DEFAULT_SLOW_CONSUMER_POLICY = "pause";
+    public static final int DEFAULT_REPLICATION_BATCH_SIZE = 128;
+    public static final int DEFAULT_REPLICATION_LOG_CAPACITY = 100_000;
+    public static final double DEFAULT_PHI_THRESHOLD = 8.0;
+
+    /**
+     * Creates a config in which all optional settings are set to their defaults.
+     */
+    public BrokerConfig(String componentId, String host, int port, String dnsHost, int dnsPort, String domain,
+                        int electionId, String electionType, int electionPort, String electionDomain,
+                        String[] electionPeerHosts, int[] electionPeerPorts, int[] electionPeerIds,
+                        long electionHeartbeatTimeoutMs, String monitoringHost, int monitoringPort) {
+        this(componentId, host, port, dnsHost, dnsPort, domain, electionId, electionType, electionPort, electionDomain,
+                electionPeerHosts, electionPeerPorts, electionPeerIds, electionHeartbeatTimeoutMs, monitoringHost,
+                monitoringPort,
+                DEFAULT_DELIVERY_BATCH_MESSAGES,
+                DEFAULT_DELIVERY_BATCH_BYTES,
+                DEFAULT_SUBSCRIBER_BUFFER_BYTES,
+                DEFAULT_SLOW_CONSUMER_POLICY,
+                "",
+                1,
+                false,
+                DEFAULT_REPLICATION_BATCH_SIZE,
+                DEFAULT_REPLICATION_LOG_CAPACITY,
+                false,
+                "",
+                0,
+                DEFAULT_PHI_THRESHOLD,
+                false,
+                false,
+                0,
+                false,
+                false,
+                0);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -31,6 +100,25 @@ public record BrokerConfig(
                 electionPort == that.electionPort &&
                 electionHeartbeatTimeoutMs == that.electionHeartbeatTimeoutMs &&
                 monitoringPort == that.monitoringPort &&
+                deliveryBatchMessages == that.deliveryBatchMessages &&
+                deliveryBatchBytes == that.deliveryBatchBytes &&
+                subscriberBufferBytes == that.subscriberBufferBytes &&
+                Objects.equals(slowConsumerPolicy, that.slowConsumerPolicy) &&
+                Objects.equals(unixSocketPath, that.unixSocketPath) &&
+                acceptorThreads == that.acceptorThreads &&
+                replicationEnabled == that.replicationEnabled &&
+                replicationBatchSize == that.replicationBatchSize &&
+                replicationLogCapacity == that.replicationLogCapacity &&
+                partitioningEnabled == that.partitioningEnabled &&
+                Objects.equals(federationLinks, that.federationLinks) &&
+                electionHeartbeatIntervalMs == that.electionHeartbeatIntervalMs &&
+                Double.compare(electionPhiThreshold, that.electionPhiThreshold) == 0 &&
+                electionRaftTerms == that.electionRaftTerms &&
+                electionRaftPreVote == that.electionRaftPreVote &&
+                electionTimeoutJitterMs == that.electionTimeoutJitterMs &&
+                electionJoin == that.electionJoin &&
+                electionHeartbeatUdp == that.electionHeartbeatUdp &&
+                electionLeaseMs == that.electionLeaseMs &&
                 Objects.equals(domain, that.domain) &&
                 Objects.equals(dnsHost, that.dnsHost) &&
                 Objects.equals(host, that.host) &&
@@ -11,7 +11,7 @@ public class ConfigParser {
     }
 
     public BrokerConfig toBrokerConfig() {
-        return new BrokerConfig(
+        BrokerConfig required = new BrokerConfig(
                 componentId,
                 config.getString("broker.host"),
                 config.getInt("broker.port"),
@@ -29,6 +29,45 @@ public class ConfigParser {
                 config.getString("monitoring.host"),
                 config.getInt("monitoring.port")
         );
+
+        // optional settings, the defaults are those of the config created above
+        return required.toBuilder()
+                .deliveryBatchMessages(getInt("broker.delivery.batch.messages", required.deliveryBatchMessages()))
+                .deliveryBatchBytes(getInt("broker.delivery.batch.bytes", required.deliveryBatchBytes()))
+                .subscriberBufferBytes(getInt("broker.subscriber.buffer.bytes", required.subscriberBufferBytes()))
+                .slowConsumerPolicy(getString("broker.subscriber.slow.policy", required.slowConsumerPolicy()))
+                .unixSocketPath(getString("broker.unix.socket.path", required.unixSocketPath()))
+                .acceptorThreads(getInt("broker.acceptors", required.acceptorThreads()))
+                .replicationEnabled(getBoolean("election.replication.enabled", required.replicationEnabled()))
+                .replicationBatchSize(getInt("election.replication.batch.size", required.replicationBatchSize()))
+                .replicationLogCapacity(getInt("election.replication.log.size", required.replicationLogCapacity()))
+                .partitioningEnabled(getBoolean("broker.partitioning.enabled", required.partitioningEnabled()))
+                .federationLinks(getString("broker.federation.links", required.federationLinks()))
+                .electionHeartbeatIntervalMs(getLong("election.heartbeat.interval.ms", required.electionHeartbeatIntervalMs()))
+                .electionPhiThreshold(Double.parseDouble(getString("election.failure.phi.threshold", String.valueOf(required.electionPhiThreshold()))))
+                .electionRaftTerms(getBoolean("election.raft.terms", required.electionRaftTerms()))
+                .electionRaftPreVote(getBoolean("election.raft.prevote", required.electionRaftPreVote()))
+                .electionTimeoutJitterMs(getLong("election.timeout.jitter.ms", required.electionTimeoutJitterMs()))
+                .electionJoin(getBoolean("election.join", required.electionJoin()))
+                .electionHeartbeatUdp(getBoolean("election.heartbeat.udp", required.electionHeartbeatUdp()))
+                .electionLeaseMs(getLong("election.lease.ms", required.electionLeaseMs()))
+                .build();
+    }
+
+    private int getInt(String key, int defaultValue) {
+        return config.containsKey(key) ? config.getInt(key) : defaultValue;
+    }
+
+    private String getString(String key, String defaultValue) {
+        return config.containsKey(key) ? config.getString(key) : defaultValue;
+    }
+
+    private long getLong(String key, long defaultValue) {
+        return config.containsKey(key) ? Long.parseLong(config.getString(key)) : defaultValue;
+    }
+
+    private boolean getBoolean(String key, boolean defaultValue) {
+        return config.containsKey(key) ? Boolean.parseBoolean(config.getString(key)) : defaultValue;
     }
 
     public DNSServerConfig toDNSServerConfig() {
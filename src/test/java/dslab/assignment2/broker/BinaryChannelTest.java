@@ -0,0 +1,101 @@
+package dslab.assignment2.broker;
+
+import dslab.broker.Frame;
+import dslab.broker.enums.Opcode;
+import dslab.util.Constants;
+import dslab.util.Global;
+import dslab.util.helper.BinaryClientHelper;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static dslab.util.CommandBuilder.exchange;
+import static dslab.util.CommandBuilder.publish;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class BinaryChannelTest extends BaseSingleBrokerTest {
+
+    private final String queue1Name = String.format("queue-%s", Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String queue2Name = String.format("queue-%s", Global.SECURE_STRING_GENERATOR.getSecureString());
+    private BinaryClientHelper subscriber;
+    private TelnetClientHelper publisher;
+
+    @Override
+    protected void initTelnetClientHelpers() throws IOException {
+        subscriber = new BinaryClientHelper(Constants.LOCALHOST, config.port());
+        publisher = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+    }
+
+    @Override
+    protected void closeTelnetClientHelpers() throws IOException {
+        subscriber.disconnect();
+        publisher.disconnect();
+    }
+
+    @Test
+    @Timeout(value = 1500, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void subscribe_onTwoChannels_ofOneConnection_deliversEachQueueOnItsChannel() throws IOException {
+        assertEquals("ok", subscriber.connectAndSwitchToBinary());
+        publisher.connectAndReadResponse();
+
+        subscribe(0, queue1Name);
+        subscribe(1, queue2Name);
+
+        publisher.sendCommandAndReadResponse(exchange("default", "default"));
+        publisher.sendCommandAndReadResponse(publish(queue1Name, "VERIFICATION-MESSAGE-1"));
+        publisher.sendCommandAndReadResponse(publish(queue2Name, "VERIFICATION-MESSAGE-2"));
+        publisher.sendCommandAndReadResponse(publish(queue1Name, "VERIFICATION-MESSAGE-3"));
+
+        List<String> channel0 = new ArrayList<>();
+        List<String> channel1 = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Frame message = subscriber.read();
+            assertEquals(Opcode.MESSAGE, message.opcode());
+            (subscriber.getChannel() == 0 ? channel0 : channel1).add(message.payloadAsString());
+        }
+
+        assertThat(channel0).containsExactly("VERIFICATION-MESSAGE-1", "VERIFICATION-MESSAGE-3");
+        assertThat(channel1).containsExactly("VERIFICATION-MESSAGE-2");
+    }
+
+    @Test
+    @Timeout(value = 1500, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void stop_onOneChannel_keepsOtherChannelSubscribed() throws IOException {
+        assertEquals("ok", subscriber.connectAndSwitchToBinary());
+        publisher.connectAndReadResponse();
+
+        subscribe(0, queue1Name);
+        subscribe(1, queue2Name);
+
+        subscriber.selectChannel(0);
+        subscriber.send(Frame.of(Opcode.STOP));
+        // stop has no response, a stopped channel accepts commands again
+        subscriber.send(Frame.of(Opcode.QUEUE, queue1Name));
+        assertEquals(Opcode.OK, subscriber.read().opcode());
+        assertEquals(0, subscriber.getChannel());
+
+        publisher.sendCommandAndReadResponse(exchange("default", "default"));
+        publisher.sendCommandAndReadResponse(publish(queue1Name, "VERIFICATION-MESSAGE-1"));
+        publisher.sendCommandAndReadResponse(publish(queue2Name, "VERIFICATION-MESSAGE-2"));
+
+        Frame message = subscriber.read();
+        assertEquals("VERIFICATION-MESSAGE-2", message.payloadAsString());
+        assertEquals(1, subscriber.getChannel());
+    }
+
+    private void subscribe(int channel, String queueName) throws IOException {
+        subscriber.selectChannel(channel);
+        subscriber.send(Frame.of(Opcode.QUEUE, queueName));
+        assertEquals(Opcode.OK, subscriber.read().opcode());
+        assertEquals(channel, subscriber.getChannel());
+        subscriber.send(Frame.of(Opcode.SUBSCRIBE));
+        assertEquals(Opcode.OK, subscriber.read().opcode());
+        assertEquals(channel, subscriber.getChannel());
+    }
+}
@@ -0,0 +1,98 @@
+package dslab.assignment2.broker;
+
+import dslab.util.Constants;
+import dslab.util.Global;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static dslab.util.CommandBuilder.exchange;
+import static dslab.util.CommandBuilder.publish;
+import static dslab.util.CommandBuilder.queue;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class FetchTest extends BaseSingleBrokerTest {
+
+    private final String queueName = String.format("queue-%s", Global.SECURE_STRING_GENERATOR.getSecureString());
+    private TelnetClientHelper consumer;
+    private TelnetClientHelper publisher;
+
+    @Override
+    protected void initTelnetClientHelpers() throws IOException {
+        consumer = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+        publisher = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+    }
+
+    @Override
+    protected void closeTelnetClientHelpers() throws IOException {
+        consumer.disconnect();
+        publisher.disconnect();
+    }
+
+    @Test
+    @Timeout(value = 1500, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void fetch_onEmptyQueue_returnsNoMessagesAfterWait() throws IOException {
+        consumer.connectAndReadResponse();
+        consumer.sendCommandAndReadResponse(queue(queueName));
+
+        long start = System.nanoTime();
+        assertEquals("ok 0", consumer.sendCommandAndReadResponse("fetch 10 200"));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(200L);
+    }
+
+    @Test
+    @Timeout(value = 1500, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void fetch_returnsAtMostMaxMessages() throws IOException {
+        consumer.connectAndReadResponse();
+        consumer.sendCommandAndReadResponse(queue(queueName));
+        publishMessages(3);
+
+        assertEquals("ok 2", consumer.sendCommandAndReadResponse("fetch 2 0"));
+        assertEquals("VERIFICATION-MESSAGE-0", consumer.readResponse());
+        assertEquals("VERIFICATION-MESSAGE-1", consumer.readResponse());
+
+        assertEquals("ok 1", consumer.sendCommandAndReadResponse("fetch 5 0"));
+        assertEquals("VERIFICATION-MESSAGE-2", consumer.readResponse());
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void fetch_writeFails_requeuesMessages() throws IOException, InterruptedException {
+        consumer.connectAndReadResponse();
+        consumer.sendCommandAndReadResponse(queue(queueName));
+
+        // a consumer that resets its connection while its fetch waits
+        try (Socket broken = new Socket(Constants.LOCALHOST, config.port())) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(broken.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = broken.getOutputStream();
+            reader.readLine();
+            out.write("%s\nfetch 1 1000\n".formatted(queue(queueName)).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("ok", reader.readLine());
+            broken.setSoLinger(true, 0);
+        }
+        Thread.sleep(100);
+
+        publishMessages(1);
+
+        assertEquals("ok 1", consumer.sendCommandAndReadResponse("fetch 1 1000"));
+        assertEquals("VERIFICATION-MESSAGE-0", consumer.readResponse());
+    }
+
+    private void publishMessages(int count) throws IOException {
+        publisher.connectAndReadResponse();
+        publisher.sendCommandAndReadResponse(exchange("default", "default"));
+        for (int i = 0; i < count; i++) {
+            publisher.sendCommandAndReadResponse(publish(queueName, "VERIFICATION-MESSAGE-" + i));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package dslab.assignment2.broker;
+
+import dslab.util.Constants;
+import dslab.util.Global;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static dslab.util.CommandBuilder.bind;
+import static dslab.util.CommandBuilder.exchange;
+import static dslab.util.CommandBuilder.publish;
+import static dslab.util.CommandBuilder.queue;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests that the routes a connection remembers for repeated routing keys follow bindings made afterwards.
+ */
+public class RouteCacheTest extends BaseSingleBrokerTest {
+
+    private final String exchangeName = String.format("exchange-%s", Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String queue1Name = String.format("queue-%s", Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String queue2Name = String.format("queue-%s", Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String routingKey = String.format("rk-%s", Global.SECURE_STRING_GENERATOR.getSecureString());
+    private TelnetClientHelper publisher;
+    private TelnetClientHelper admin;
+    private TelnetClientHelper subscriber1;
+    private TelnetClientHelper subscriber2;
+
+    @Override
+    protected void initTelnetClientHelpers() throws IOException {
+        publisher = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+        admin = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+        subscriber1 = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+        subscriber2 = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+    }
+
+    @Override
+    protected void closeTelnetClientHelpers() throws IOException {
+        publisher.disconnect();
+        admin.disconnect();
+        subscriber1.disconnect();
+        subscriber2.disconnect();
+    }
+
+    @Test
+    @Timeout(value = 1500, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void bind_onSameConnection_afterRepeatedPublish_routesToNewQueue() throws IOException {
+        publisher.connectAndReadResponse();
+        subscriber1.connectAndReadResponse();
+        subscriber2.connectAndReadResponse();
+
+        publisher.sendCommandAndReadResponse(exchange("direct", exchangeName));
+        publisher.sendCommandAndReadResponse(queue(queue1Name));
+        publisher.sendCommandAndReadResponse(bind(routingKey));
+        subscriber1.subscribe(queue1Name);
+
+        publisher.publish(routingKey, "VERIFICATION-MESSAGE-1");
+        publisher.publish(routingKey, "VERIFICATION-MESSAGE-2");
+        assertEquals("VERIFICATION-MESSAGE-1", subscriber1.readResponse());
+        assertEquals("VERIFICATION-MESSAGE-2", subscriber1.readResponse());
+
+        publisher.sendCommandAndReadResponse(queue(queue2Name));
+        publisher.sendCommandAndReadResponse(bind(routingKey));
+        subscriber2.subscribe(queue2Name);
+
+        publisher.publish(routingKey, "VERIFICATION-MESSAGE-3");
+        assertEquals("VERIFICATION-MESSAGE-3", subscriber1.readResponse());
+        assertEquals("VERIFICATION-MESSAGE-3", subscriber2.readResponse());
+    }
+
+    @Test
+    @Timeout(value = 1500, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void bind_onOtherConnection_afterRepeatedPublish_routesToNewQueue() throws IOException {
+        publisher.connectAndReadResponse();
+        admin.connectAndReadResponse();
+        subscriber1.connectAndReadResponse();
+        subscriber2.connectAndReadResponse();
+
+        subscriber1.subscribe(exchangeName, "direct", queue1Name, routingKey);
+        publisher.sendCommandAndReadResponse(exchange("direct", exchangeName));
+
+        publisher.publish(routingKey, "VERIFICATION-MESSAGE-1");
+        publisher.publish(routingKey, "VERIFICATION-MESSAGE-2");
+        assertEquals("VERIFICATION-MESSAGE-1", subscriber1.readResponse());
+        assertEquals("VERIFICATION-MESSAGE-2", subscriber1.readResponse());
+
+        admin.sendCommandAndReadResponse(exchange("direct", exchangeName));
+        admin.sendCommandAndReadResponse(queue(queue2Name));
+        admin.sendCommandAndReadResponse(bind(routingKey));
+        subscriber2.subscribe(queue2Name);
+
+        publisher.publish(routingKey, "VERIFICATION-MESSAGE-3");
+        assertEquals("VERIFICATION-MESSAGE-3", subscriber1.readResponse());
+        assertEquals("VERIFICATION-MESSAGE-3", subscriber2.readResponse());
+    }
+}
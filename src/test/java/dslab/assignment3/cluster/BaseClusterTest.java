@@ -0,0 +1,246 @@
+package dslab.assignment3.cluster;
+
+import dslab.ComponentFactory;
+import dslab.broker.Broker;
+import dslab.broker.IBroker;
+import dslab.broker.Queue;
+import dslab.config.BrokerConfig;
+import dslab.config.DNSServerConfig;
+import dslab.dns.IDNSServer;
+import dslab.util.ConfigFactory;
+import dslab.util.Constants;
+import dslab.util.Util;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+
+/**
+ * Base class for tests of a cluster of RAFT brokers with terms that replicate their state. The brokers have the ids
+ * {@code 0} to {@code n - 1}, which are also their indices in {@link #brokers}, and share one heartbeat timeout plus a
+ * random extra delay, so any of them may become the leader.
+ *
+ * <p>Subclasses may change the configuration of the brokers with {@link #configure(BrokerConfig)}, and start a DNS
+ * server at which the leader registers the election domain with {@link #startsDnsServer()}. A broker that a test shut
+ * down is set to null in {@link #brokers}.</p>
+ */
+public abstract class BaseClusterTest {
+
+    protected static final long TIMEOUT_MS = 300;
+    protected static final long JITTER_MS = 300;
+
+    protected final int NUM_BROKERS = getNumOfBrokers();
+    protected BrokerConfig[] brokerConfigs;
+    protected IBroker[] brokers;
+    protected Thread[] brokerThreads;
+
+    private final List<TelnetClientHelper> clients = new ArrayList<>();
+    private final DNSServerConfig dnsConfig = ConfigFactory.createDNSServerConfig();
+    private IDNSServer dnsServer;
+    private Thread dnsThread;
+
+    protected int getNumOfBrokers() {
+        return 3;
+    }
+
+    protected BrokerConfig configure(BrokerConfig config) {
+        return config.toBuilder().replicationEnabled(true).build();
+    }
+
+    protected boolean startsDnsServer() {
+        return false;
+    }
+
+    @Timeout(value = 1500, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    @BeforeEach
+    public void beforeEach() {
+        if (startsDnsServer()) {
+            // started first, so the first leader can register
+            dnsServer = ComponentFactory.createDNSServer(dnsConfig);
+            dnsThread = new Thread(dnsServer);
+            dnsThread.start();
+
+            TelnetClientHelper waitForDnsConnHelper = new TelnetClientHelper(Constants.LOCALHOST, dnsConfig.port());
+            waitForDnsConnHelper.waitForInitConnection();
+            try {
+                waitForDnsConnHelper.disconnect();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+
+        brokerConfigs = ConfigFactory.createRaftBrokerConfigs(NUM_BROKERS, TIMEOUT_MS, true, false, JITTER_MS);
+        for (int i = 0; i < NUM_BROKERS; i++) {
+            brokerConfigs[i] = configure(brokerConfigs[i]);
+        }
+
+        brokers = new IBroker[NUM_BROKERS];
+        brokerThreads = new Thread[NUM_BROKERS];
+        for (int i = 0; i < NUM_BROKERS; i++) {
+            brokers[i] = ComponentFactory.createBroker(brokerConfigs[i]);
+            brokerThreads[i] = new Thread(brokers[i]);
+            brokerThreads[i].start();
+        }
+
+        // If this helper connects successfully, then the broker is ready to accept further connections
+        for (BrokerConfig config : brokerConfigs) {
+            TelnetClientHelper waitForBrokerConnHelper = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+            waitForBrokerConnHelper.waitForInitConnection();
+            try {
+                waitForBrokerConnHelper.disconnect();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    @AfterEach
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    public void afterEach() {
+        for (TelnetClientHelper client : clients) {
+            try {
+                client.disconnect();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+
+        for (IBroker broker : brokers) {
+            if (broker != null) {
+                broker.shutdown();
+            }
+        }
+
+        try {
+            for (Thread brokerThread : brokerThreads) {
+                if (brokerThread != null && brokerThread.isAlive()) {
+                    brokerThread.join();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (BrokerConfig config : brokerConfigs) {
+            Util.waitForTcpPortsToClose(config.port(), config.electionPort());
+        }
+
+        if (dnsServer != null) {
+            dnsServer.shutdown();
+            try {
+                dnsThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Util.waitForTcpPortsToClose(dnsConfig.port());
+        }
+    }
+
+    /**
+     * Connects to the messaging port of the given broker and reads the greeting. The connection is closed after the
+     * test.
+     */
+    protected TelnetClientHelper connect(int brokerId) throws IOException {
+        TelnetClientHelper client = new TelnetClientHelper(Constants.LOCALHOST, brokerConfigs[brokerId].port());
+        clients.add(client);
+        client.connectAndReadResponse();
+        return client;
+    }
+
+    /**
+     * Connects to the election port of the given broker and reads the greeting, like a peer would. The connection is
+     * closed after the test.
+     */
+    protected TelnetClientHelper connectToElectionPort(int brokerId) throws IOException {
+        TelnetClientHelper client = new TelnetClientHelper(Constants.LOCALHOST, brokerConfigs[brokerId].electionPort());
+        clients.add(client);
+        client.connectAndReadResponse();
+        return client;
+    }
+
+    /**
+     * Shuts the given broker down and waits until its ports are closed.
+     */
+    protected void shutdown(int brokerId) throws InterruptedException {
+        brokers[brokerId].shutdown();
+        brokers[brokerId] = null;
+        brokerThreads[brokerId].join();
+        Util.waitForTcpPortsToClose(brokerConfigs[brokerId].port(), brokerConfigs[brokerId].electionPort());
+    }
+
+    /**
+     * Starts a broker that was shut down again, with an empty state, and waits until it accepts connections.
+     */
+    protected void restart(int brokerId) {
+        brokers[brokerId] = ComponentFactory.createBroker(brokerConfigs[brokerId]);
+        brokerThreads[brokerId] = new Thread(brokers[brokerId]);
+        brokerThreads[brokerId].start();
+
+        TelnetClientHelper waitForBrokerConnHelper = new TelnetClientHelper(Constants.LOCALHOST, brokerConfigs[brokerId].port());
+        waitForBrokerConnHelper.waitForInitConnection();
+        try {
+            waitForBrokerConnHelper.disconnect();
+        } catch (IOException e) {
+            // ignored
+        }
+    }
+
+    /**
+     * Waits until the running brokers agree on a leader other than the excluded one.
+     *
+     * @return the id of that leader
+     */
+    protected int awaitLeader(int excludedId) {
+        return await()
+                .atMost(5, TimeUnit.SECONDS)
+                .pollInterval(10, TimeUnit.MILLISECONDS)
+                .until(() -> agreedLeader(excludedId), leader -> leader >= 0);
+    }
+
+    private int agreedLeader(int excludedId) {
+        int leader = -1;
+        for (IBroker broker : brokers) {
+            if (broker == null) {
+                continue;
+            }
+            if (broker.getLeader() < 0 || broker.getLeader() == excludedId
+                    || (leader >= 0 && broker.getLeader() != leader)) {
+                return -1;
+            }
+            leader = broker.getLeader();
+        }
+        return leader;
+    }
+
+    /**
+     * Waits until every running broker holds the given number of messages in its copy of the queue.
+     */
+    protected void awaitReplicated(String queueName, int messages) {
+        await()
+                .atMost(5, TimeUnit.SECONDS)
+                .pollInterval(10, TimeUnit.MILLISECONDS)
+                .until(() -> {
+                    for (IBroker broker : brokers) {
+                        if (broker != null && size(broker, queueName) != messages) {
+                            return false;
+                        }
+                    }
+                    return true;
+                });
+    }
+
+    /**
+     * @return the number of messages in the broker's copy of the queue, -1 if it does not know the queue
+     */
+    protected static int size(IBroker broker, String queueName) {
+        Queue queue = ((Broker) broker).getStore().getQueue(queueName);
+        return queue == null ? -1 : queue.size();
+    }
+}
@@ -0,0 +1,126 @@
+package dslab.assignment3.cluster;
+
+import dslab.util.Constants;
+import dslab.util.Global;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static dslab.util.CommandBuilder.bind;
+import static dslab.util.CommandBuilder.exchange;
+import static dslab.util.CommandBuilder.publish;
+import static dslab.util.CommandBuilder.queue;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests that followers serve subscriptions from their replicated queues, and that only the leader answers queries.
+ */
+public class FollowerSubscriptionTest extends BaseClusterTest {
+
+    private final String exchangeName = "exchange-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String queueName = "queue-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String routingKey = "rk-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void subscribe_onFollower_deliversMessagePublishedOnLeader() throws IOException {
+        int leader = awaitLeader(-1);
+        int follower = (leader + 1) % NUM_BROKERS;
+
+        TelnetClientHelper publisher = connect(leader);
+        publisher.sendCommandAndReadResponse(exchange("direct", exchangeName));
+        publisher.sendCommandAndReadResponse(queue(queueName));
+        publisher.sendCommandAndReadResponse(bind(routingKey));
+        awaitReplicated(queueName, 0);
+
+        TelnetClientHelper subscriber = connect(follower);
+        subscriber.subscribe(queueName);
+
+        assertEquals("ok", publisher.sendCommandAndReadResponse(publish(routingKey, "VERIFICATION-MESSAGE")));
+        assertEquals("VERIFICATION-MESSAGE", subscriber.readResponse());
+
+        // the follower claimed the message, the leader removed it and replicated the removal
+        awaitReplicated(queueName, 0);
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void fetch_onFollower_writeFails_releasesMessageToLeader() throws IOException, InterruptedException {
+        int leader = awaitLeader(-1);
+        int follower = (leader + 1) % NUM_BROKERS;
+
+        TelnetClientHelper publisher = connect(leader);
+        publisher.sendCommandAndReadResponse(exchange("direct", exchangeName));
+        publisher.sendCommandAndReadResponse(queue(queueName));
+        publisher.sendCommandAndReadResponse(bind(routingKey));
+        awaitReplicated(queueName, 0);
+
+        // a consumer of the follower that resets its connection while its fetch waits
+        try (Socket broken = new Socket(Constants.LOCALHOST, brokerConfigs[follower].port())) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(broken.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = broken.getOutputStream();
+            reader.readLine();
+            out.write("%s\nfetch 1 3000\n".formatted(queue(queueName)).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("ok", reader.readLine());
+            broken.setSoLinger(true, 0);
+        }
+        Thread.sleep(100);
+
+        assertEquals("ok", publisher.sendCommandAndReadResponse(publish(routingKey, "VERIFICATION-MESSAGE")));
+        Thread.sleep(500); // the follower claims the message and fails to write it
+
+        // the leader put the released message back and replicated that
+        awaitReplicated(queueName, 1);
+        publisher.sendCommandAndReadResponse(queue(queueName));
+        assertEquals("ok 1", publisher.sendCommandAndReadResponse("fetch 1 1000"));
+        assertEquals("VERIFICATION-MESSAGE", publisher.readResponse());
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void depth_onFollower_returnsNotLeader() throws IOException {
+        int leader = awaitLeader(-1);
+        int follower = (leader + 1) % NUM_BROKERS;
+
+        TelnetClientHelper leaderClient = connect(leader);
+        leaderClient.sendCommandAndReadResponse(queue(queueName));
+        awaitReplicated(queueName, 0);
+
+        TelnetClientHelper followerClient = connect(follower);
+        followerClient.sendCommandAndReadResponse(queue(queueName));
+
+        assertEquals("ok 0", leaderClient.sendCommandAndReadResponse("depth"));
+        assertEquals("error not leader", followerClient.sendCommandAndReadResponse("depth"));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void publish_onFollower_returnsNotLeader() throws IOException {
+        int leader = awaitLeader(-1);
+        int follower = (leader + 1) % NUM_BROKERS;
+
+        TelnetClientHelper leaderClient = connect(leader);
+        leaderClient.sendCommandAndReadResponse(exchange("direct", exchangeName));
+        leaderClient.sendCommandAndReadResponse(queue(queueName));
+        awaitReplicated(queueName, 0);
+
+        // the replicated exchange and queue can be selected, but nothing changed
+        TelnetClientHelper followerClient = connect(follower);
+        assertEquals("ok", followerClient.sendCommandAndReadResponse(exchange("direct", exchangeName)));
+        assertEquals("ok", followerClient.sendCommandAndReadResponse(queue(queueName)));
+        assertEquals("error not leader", followerClient.sendCommandAndReadResponse(bind(routingKey)));
+        assertEquals("error not leader", followerClient.sendCommandAndReadResponse(publish(routingKey, "VERIFICATION-MESSAGE")));
+        assertEquals("error not leader", followerClient.sendCommandAndReadResponse(queue(queueName + "-new")));
+
+        assertEquals("ok 0", leaderClient.sendCommandAndReadResponse("depth"));
+    }
+}
@@ -0,0 +1,83 @@
+package dslab.assignment3.cluster;
+
+import dslab.broker.Broker;
+import dslab.config.BrokerConfig;
+import dslab.util.Global;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static dslab.util.CommandBuilder.exchange;
+import static dslab.util.CommandBuilder.publish;
+import static dslab.util.CommandBuilder.queue;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests the leader lease: within it the leader answers {@code depth} from its own state, and followers that still
+ * hear from the leader refuse to vote for other candidates. The heartbeat timeout is raised so the lease outlasts
+ * shutting the followers down.
+ */
+public class LeaderLeaseTest extends BaseClusterTest {
+
+    private static final long HEARTBEAT_TIMEOUT_MS = 1500;
+    private static final long LEASE_MS = 1200;
+
+    private final String queueName = "queue-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+
+    @Override
+    protected BrokerConfig configure(BrokerConfig config) {
+        return config.toBuilder()
+                .replicationEnabled(true)
+                .electionHeartbeatTimeoutMs(HEARTBEAT_TIMEOUT_MS)
+                .electionHeartbeatIntervalMs(100)
+                .electionLeaseMs(LEASE_MS)
+                .build();
+    }
+
+    @Test
+    @Timeout(value = 20, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void depth_withinLease_answersWithoutFollowers_refusesOnceLeaseExpired() throws IOException, InterruptedException {
+        int leader = awaitLeaderWithLease();
+        TelnetClientHelper client = connect(leader);
+        client.sendCommandAndReadResponse(exchange("default", "default"));
+        client.sendCommandAndReadResponse(queue(queueName));
+        client.sendCommandAndReadResponse(publish(queueName, "VERIFICATION-MESSAGE"));
+
+        for (int i = 1; i < NUM_BROKERS; i++) {
+            shutdown((leader + i) % NUM_BROKERS);
+        }
+        // no follower could answer a ping anymore
+        assertEquals("ok 1", client.sendCommandAndReadResponse("depth"));
+
+        await().atMost(2 * LEASE_MS, TimeUnit.MILLISECONDS).pollInterval(100, TimeUnit.MILLISECONDS)
+                .until(() -> client.sendCommandAndReadResponse("depth").equals("error not leader"));
+    }
+
+    @Test
+    @Timeout(value = 20, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void elect_whileFollowerHearsLeader_isRefusedUnlessTransfer() throws IOException {
+        int leader = awaitLeaderWithLease();
+        int follower = (leader + 1) % NUM_BROKERS;
+        int candidate = (leader + 2) % NUM_BROKERS;
+        Broker followerBroker = (Broker) brokers[follower];
+        long term = followerBroker.getCurrentTerm();
+
+        TelnetClientHelper peer = connectToElectionPort(follower);
+        String refused = peer.sendCommandAndReadResponse("elect %d %d".formatted(candidate, term + 1));
+        assertEquals("vote %d %d %d".formatted(follower, followerBroker.getCurrentVote(), term), refused);
+        assertEquals(term, followerBroker.getCurrentTerm());
+
+        assertEquals("vote %d %d %d".formatted(follower, candidate, term + 1),
+                peer.sendCommandAndReadResponse("elect %d %d transfer".formatted(candidate, term + 1)));
+    }
+
+    private int awaitLeaderWithLease() {
+        int leader = awaitLeader(-1);
+        await().atMost(1, TimeUnit.SECONDS).until(() -> ((Broker) brokers[leader]).hasLease());
+        return leader;
+    }
+}
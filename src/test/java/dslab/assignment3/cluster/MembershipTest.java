@@ -0,0 +1,98 @@
+package dslab.assignment3.cluster;
+
+import dslab.config.BrokerConfig;
+import dslab.util.Constants;
+import dslab.util.Global;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static dslab.util.CommandBuilder.bind;
+import static dslab.util.CommandBuilder.exchange;
+import static dslab.util.CommandBuilder.publish;
+import static dslab.util.CommandBuilder.queue;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests changing the members of a running cluster. The brokers {@code 0} to {@code 2} form the cluster, broker
+ * {@code 3} is started with {@code election.join=true} and joins it.
+ */
+public class MembershipTest extends BaseClusterTest {
+
+    private static final int JOINING_ID = 3;
+
+    private final String exchangeName = "exchange-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String queueName = "queue-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String routingKey = "rk-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+
+    @Override
+    protected int getNumOfBrokers() {
+        return 4;
+    }
+
+    @Override
+    protected BrokerConfig configure(BrokerConfig config) {
+        BrokerConfig.Builder builder = config.toBuilder().replicationEnabled(true);
+        if (config.electionId() == JOINING_ID) {
+            return builder.electionJoin(true).build();
+        }
+
+        // the members do not know the joining broker yet
+        List<Integer> peers = new ArrayList<>();
+        for (int i = 0; i < config.electionPeerIds().length; i++) {
+            if (config.electionPeerIds()[i] != JOINING_ID) {
+                peers.add(i);
+            }
+        }
+        int[] ids = new int[peers.size()];
+        int[] ports = new int[peers.size()];
+        String[] hosts = new String[peers.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = config.electionPeerIds()[peers.get(i)];
+            ports[i] = config.electionPeerPorts()[peers.get(i)];
+            hosts[i] = config.electionPeerHosts()[peers.get(i)];
+        }
+        return builder.electionPeerIds(ids).electionPeerPorts(ports).electionPeerHosts(hosts).build();
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void broker_withJoin_joinsRunningCluster_andReceivesReplicatedMessages() throws IOException {
+        // the joining broker only knows a leader once it was accepted
+        int leader = awaitLeader(-1);
+        assertThat(leader).isNotEqualTo(JOINING_ID);
+
+        TelnetClientHelper publisher = connect(leader);
+        publisher.sendCommandAndReadResponse(exchange("direct", exchangeName));
+        publisher.sendCommandAndReadResponse(queue(queueName));
+        publisher.sendCommandAndReadResponse(bind(routingKey));
+        assertEquals("ok", publisher.sendCommandAndReadResponse(publish(routingKey, "VERIFICATION-MESSAGE")));
+
+        awaitReplicated(queueName, 1);
+    }
+
+    @Test
+    @Timeout(value = 15, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void leave_removesMember_remainingMajorityElectsNewLeader() throws IOException, InterruptedException {
+        int leader = awaitLeader(-1);
+        int leaving = leader == 0 ? 1 : 0;
+
+        TelnetClientHelper admin = connectToElectionPort(leader);
+        String response = admin.sendCommandAndReadResponse("leave " + leaving);
+        assertThat(response).startsWith("ok members ");
+        assertThat(List.of(response.substring("ok members ".length()).split(",")))
+                .hasSize(NUM_BROKERS - 1)
+                .doesNotContain("%d:%s:%d".formatted(leaving, Constants.LOCALHOST, brokerConfigs[leaving].electionPort()));
+        shutdown(leaving);
+
+        // two of the three remaining members are a majority, two of the four previous ones were not
+        shutdown(leader);
+        assertThat(awaitLeader(leader)).isNotEqualTo(leaving);
+    }
+}
@@ -0,0 +1,113 @@
+package dslab.assignment3.cluster;
+
+import dslab.broker.Broker;
+import dslab.broker.IBroker;
+import dslab.broker.MessageStore;
+import dslab.broker.Queue;
+import dslab.config.BrokerConfig;
+import dslab.util.Constants;
+import dslab.util.Global;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static dslab.util.CommandBuilder.SUBSCRIBE;
+import static dslab.util.CommandBuilder.bind;
+import static dslab.util.CommandBuilder.exchange;
+import static dslab.util.CommandBuilder.publish;
+import static dslab.util.CommandBuilder.queue;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests that with partitioning every queue is held by one broker, to which the other brokers forward the messages
+ * published for it and send its subscribers.
+ */
+public class PartitioningTest extends BaseClusterTest {
+
+    private final String exchangeName = "exchange-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String queueName = "queue-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String routingKey = "rk-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+
+    @Override
+    protected BrokerConfig configure(BrokerConfig config) {
+        return config.toBuilder().partitioningEnabled(true).build();
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void publish_onOtherBroker_forwardsMessageToOwner() throws IOException {
+        awaitLeader(-1);
+        int owner = declareAndFindOwner();
+        int other = (owner + 1) % NUM_BROKERS;
+
+        TelnetClientHelper subscriber = connect(owner);
+        subscriber.subscribe(queueName);
+
+        TelnetClientHelper publisher = connect(other);
+        publisher.sendCommandAndReadResponse(exchange("direct", exchangeName));
+        assertEquals("ok", publisher.sendCommandAndReadResponse(publish(routingKey, "VERIFICATION-MESSAGE")));
+
+        assertEquals("VERIFICATION-MESSAGE", subscriber.readResponse());
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void subscribe_onOtherBroker_returnsMovedToOwner() throws IOException {
+        awaitLeader(-1);
+        int owner = declareAndFindOwner();
+        int other = (owner + 1) % NUM_BROKERS;
+
+        TelnetClientHelper subscriber = connect(other);
+        subscriber.sendCommandAndReadResponse(queue(queueName));
+
+        assertEquals("error moved %s:%d".formatted(Constants.LOCALHOST, brokerConfigs[owner].port()),
+                subscriber.sendCommandAndReadResponse(SUBSCRIBE));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void metadata_withUnknownExchangeType_returnsUsage() throws IOException {
+        awaitLeader(-1);
+        TelnetClientHelper peer = connectToElectionPort(0);
+
+        assertEquals("error usage: metadata <exchange|queue|bind> <args>",
+                peer.sendCommandAndReadResponse("metadata exchange unknown " + exchangeName));
+        assertEquals("error usage: metadata <exchange|queue|bind> <args>",
+                peer.sendCommandAndReadResponse("metadata exchange"));
+        assertEquals("ok", peer.sendCommandAndReadResponse("metadata exchange direct " + exchangeName));
+    }
+
+    /**
+     * Declares the exchange, the queue and its binding on one broker and waits until all brokers know them.
+     *
+     * @return the id of the broker that holds the queue
+     */
+    private int declareAndFindOwner() throws IOException {
+        TelnetClientHelper client = connect(0);
+        client.sendCommandAndReadResponse(exchange("direct", exchangeName));
+        client.sendCommandAndReadResponse(queue(queueName));
+        client.sendCommandAndReadResponse(bind(routingKey));
+
+        await().atMost(5, TimeUnit.SECONDS).pollInterval(10, TimeUnit.MILLISECONDS).until(() -> {
+            for (IBroker broker : brokers) {
+                Queue queue = ((Broker) broker).getStore().getQueue(queueName);
+                if (queue == null || !queue.getBindingKeys().contains(routingKey)) {
+                    return false;
+                }
+            }
+            return true;
+        });
+
+        for (int id = 0; id < NUM_BROKERS; id++) {
+            MessageStore store = ((Broker) brokers[id]).getStore();
+            if (store.isLocal(store.getQueue(queueName))) {
+                return id;
+            }
+        }
+        throw new AssertionError("no broker holds " + queueName);
+    }
+}
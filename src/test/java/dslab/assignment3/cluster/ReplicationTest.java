@@ -0,0 +1,108 @@
+package dslab.assignment3.cluster;
+
+import dslab.util.Global;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static dslab.util.CommandBuilder.SUBSCRIBE;
+import static dslab.util.CommandBuilder.bind;
+import static dslab.util.CommandBuilder.exchange;
+import static dslab.util.CommandBuilder.publish;
+import static dslab.util.CommandBuilder.queue;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests that the leader replicates published messages to the followers, so that they survive a failover, and that
+ * followers delivering from their copies do not deliver a message twice.
+ */
+public class ReplicationTest extends BaseClusterTest {
+
+    private final String exchangeName = "exchange-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String queueName = "queue-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String routingKey = "rk-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void publish_onLeader_leaderShutsDown_newLeaderDeliversMessage() throws IOException, InterruptedException {
+        int leader = awaitLeader(-1);
+
+        TelnetClientHelper publisher = connect(leader);
+        declareQueue(publisher);
+        assertEquals("ok", publisher.sendCommandAndReadResponse(publish(routingKey, "VERIFICATION-MESSAGE")));
+        awaitReplicated(queueName, 1);
+
+        shutdown(leader);
+        int newLeader = awaitLeader(leader);
+
+        TelnetClientHelper subscriber = connect(newLeader);
+        subscriber.subscribe(queueName);
+        assertEquals("VERIFICATION-MESSAGE", subscriber.readResponse());
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void subscribe_onAllBrokers_deliversEveryMessageOnce() throws IOException, InterruptedException {
+        final int numOfMessages = 50;
+        int leader = awaitLeader(-1);
+
+        TelnetClientHelper publisher = connect(leader);
+        declareQueue(publisher);
+        awaitReplicated(queueName, 0);
+
+        // every broker delivers from its own copy of the queue, the followers claim each message from the leader
+        List<String> received = new ArrayList<>();
+        for (int id = 0; id < NUM_BROKERS; id++) {
+            TelnetClientHelper subscriber = connect(id);
+            subscriber.subscribe(queueName);
+            Thread reader = new Thread(() -> readAll(subscriber, received));
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        for (int i = 0; i < numOfMessages; i++) {
+            assertEquals("ok", publisher.sendCommandAndReadResponse(publish(routingKey, "VERIFICATION-MESSAGE-" + i)));
+        }
+
+        await().atMost(5, TimeUnit.SECONDS).until(() -> size(received) >= numOfMessages);
+        Thread.sleep(500); // a message delivered twice would arrive in the meantime
+
+        synchronized (received) {
+            assertThat(received).hasSize(numOfMessages);
+            assertThat(new HashSet<>(received)).hasSize(numOfMessages);
+        }
+    }
+
+    private void declareQueue(TelnetClientHelper client) throws IOException {
+        client.sendCommandAndReadResponse(exchange("direct", exchangeName));
+        client.sendCommandAndReadResponse(queue(queueName));
+        client.sendCommandAndReadResponse(bind(routingKey));
+    }
+
+    private static void readAll(TelnetClientHelper subscriber, List<String> received) {
+        try {
+            String message;
+            while ((message = subscriber.readResponse()) != null) {
+                synchronized (received) {
+                    received.add(message);
+                }
+            }
+        } catch (IOException e) {
+            // disconnected after the test
+        }
+    }
+
+    private static int size(List<String> received) {
+        synchronized (received) {
+            return received.size();
+        }
+    }
+}
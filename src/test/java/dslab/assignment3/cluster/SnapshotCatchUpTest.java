@@ -0,0 +1,58 @@
+package dslab.assignment3.cluster;
+
+import dslab.config.BrokerConfig;
+import dslab.util.Global;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static dslab.util.CommandBuilder.bind;
+import static dslab.util.CommandBuilder.exchange;
+import static dslab.util.CommandBuilder.publish;
+import static dslab.util.CommandBuilder.queue;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests that a follower that needs entries the leader's replication log no longer retains catches up from a snapshot.
+ */
+public class SnapshotCatchUpTest extends BaseClusterTest {
+
+    private static final int LOG_CAPACITY = 8;
+
+    private final String exchangeName = "exchange-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String queueName = "queue-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String routingKey = "rk-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+
+    @Override
+    protected BrokerConfig configure(BrokerConfig config) {
+        return config.toBuilder().replicationEnabled(true).replicationLogCapacity(LOG_CAPACITY).build();
+    }
+
+    @Test
+    @Timeout(value = 15, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void follower_restartsAfterLogWrapped_catchesUpFromSnapshot() throws IOException, InterruptedException {
+        final int numOfMessages = 4 * LOG_CAPACITY;
+        int leader = awaitLeader(-1);
+        int follower = (leader + 1) % NUM_BROKERS;
+
+        shutdown(follower);
+
+        TelnetClientHelper publisher = connect(leader);
+        publisher.sendCommandAndReadResponse(exchange("direct", exchangeName));
+        publisher.sendCommandAndReadResponse(queue(queueName));
+        publisher.sendCommandAndReadResponse(bind(routingKey));
+        for (int i = 0; i < numOfMessages; i++) {
+            assertEquals("ok", publisher.sendCommandAndReadResponse(publish(routingKey, "VERIFICATION-MESSAGE-" + i)));
+        }
+
+        restart(follower);
+        awaitReplicated(queueName, numOfMessages);
+
+        // after the snapshot the follower is streamed the log again
+        assertEquals("ok", publisher.sendCommandAndReadResponse(publish(routingKey, "VERIFICATION-MESSAGE")));
+        awaitReplicated(queueName, numOfMessages + 1);
+    }
+}
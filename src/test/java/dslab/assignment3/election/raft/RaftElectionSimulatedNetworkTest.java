@@ -0,0 +1,132 @@
+package dslab.assignment3.election.raft;
+
+import dslab.ComponentFactory;
+import dslab.broker.IBroker;
+import dslab.config.BrokerConfig;
+import dslab.util.ConfigFactory;
+import dslab.util.Util;
+import dslab.util.network.SimulatedNetwork;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+/**
+ * Runs a RAFT cluster inside one JVM over a {@link SimulatedNetwork}, with terms, pre-vote and randomized timeouts,
+ * and checks that it elects a leader, replaces a failed one and recovers from a partition.
+ */
+public class RaftElectionSimulatedNetworkTest {
+
+    private static final int NUM_BROKERS = 5;
+    private static final long TIMEOUT_MS = 300;
+    private static final long JITTER_MS = 300;
+
+    private SimulatedNetwork network;
+    private BrokerConfig[] brokerConfigs;
+    private IBroker[] brokers;
+
+    @BeforeEach
+    void beforeEach() {
+        network = new SimulatedNetwork(42);
+        network.setLatency(1, 5);
+        brokerConfigs = ConfigFactory.createRaftBrokerConfigs(NUM_BROKERS, TIMEOUT_MS, true, true, JITTER_MS);
+
+        brokers = new IBroker[NUM_BROKERS];
+        for (int i = 0; i < NUM_BROKERS; i++) {
+            brokers[i] = ComponentFactory.createBroker(brokerConfigs[i], network.transport(brokerConfigs[i].electionId()));
+        }
+        for (IBroker broker : brokers) {
+            new Thread(broker).start();
+        }
+    }
+
+    @AfterEach
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void afterEach() {
+        for (IBroker broker : brokers) {
+            if (broker != null) {
+                broker.shutdown();
+            }
+        }
+        for (BrokerConfig config : brokerConfigs) {
+            Util.waitForTcpPortsToClose(config.port());
+        }
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void raft_overSimulatedNetwork_electsLeader_andSendsHeartbeats() {
+        int leader = awaitLeader(brokers, -1);
+
+        assertThat(leader).isBetween(0, NUM_BROKERS - 1);
+        network.resetMessageCounts();
+        await().atMost(2, TimeUnit.SECONDS).until(() -> network.getMessageCount("ping") >= NUM_BROKERS - 1);
+        assertThat(brokers[leader].getLeader()).isEqualTo(leader);
+    }
+
+    @Test
+    @Timeout(value = 15, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void raft_overSimulatedNetwork_leaderShutsDown_electsNewLeader() {
+        int leader = awaitLeader(brokers, -1);
+
+        brokers[leader].shutdown();
+        brokers[leader] = null;
+
+        assertThat(awaitLeader(brokers, leader)).isNotEqualTo(leader);
+    }
+
+    @Test
+    @Timeout(value = 15, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void raft_overSimulatedNetwork_leaderInMinority_majorityElectsNewLeader_andOldLeaderFollowsAfterHeal() {
+        int leader = awaitLeader(brokers, -1);
+
+        // the leader and the broker after it form the minority
+        int[] minority = {leader, (leader + 1) % NUM_BROKERS};
+        int[] majority = new int[NUM_BROKERS - minority.length];
+        IBroker[] majorityBrokers = new IBroker[NUM_BROKERS];
+        for (int i = 0; i < majority.length; i++) {
+            majority[i] = (leader + minority.length + i) % NUM_BROKERS;
+            majorityBrokers[majority[i]] = brokers[majority[i]];
+        }
+        network.partition(minority, majority);
+
+        int newLeader = awaitLeader(majorityBrokers, leader);
+        assertThat(majorityBrokers[newLeader]).isNotNull();
+
+        network.heal();
+
+        assertThat(awaitLeader(brokers, leader)).isEqualTo(newLeader);
+    }
+
+    /**
+     * Waits until the brokers that are not null agree on a leader other than the excluded one.
+     *
+     * @return the id of that leader
+     */
+    private static int awaitLeader(IBroker[] brokers, int excludedId) {
+        IBroker[] alive = Arrays.stream(brokers).filter(Objects::nonNull).toArray(IBroker[]::new);
+        await()
+                .atMost(5, TimeUnit.SECONDS)
+                .pollInterval(10, TimeUnit.MILLISECONDS)
+                .until(() -> {
+                    int leader = alive[0].getLeader();
+                    if (leader < 0 || leader == excludedId) {
+                        return false;
+                    }
+                    for (IBroker broker : alive) {
+                        if (broker.getLeader() != leader) {
+                            return false;
+                        }
+                    }
+                    return true;
+                });
+        return alive[0].getLeader();
+    }
+}
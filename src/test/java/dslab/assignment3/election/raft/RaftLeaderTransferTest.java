@@ -0,0 +1,69 @@
+package dslab.assignment3.election.raft;
+
+import dslab.assignment3.cluster.BaseClusterTest;
+import dslab.util.Global;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static dslab.util.CommandBuilder.bind;
+import static dslab.util.CommandBuilder.exchange;
+import static dslab.util.CommandBuilder.publish;
+import static dslab.util.CommandBuilder.queue;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests handing the leadership over to a follower with {@code transfer}.
+ */
+public class RaftLeaderTransferTest extends BaseClusterTest {
+
+    private final String exchangeName = "exchange-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String queueName = "queue-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String routingKey = "rk-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void transfer_toFollower_followerBecomesLeaderWithMessages() throws IOException {
+        int leader = awaitLeader(-1);
+        int follower = (leader + 1) % NUM_BROKERS;
+
+        TelnetClientHelper publisher = connect(leader);
+        declareQueue(publisher);
+        assertEquals("ok", publisher.sendCommandAndReadResponse(publish(routingKey, "VERIFICATION-MESSAGE")));
+
+        TelnetClientHelper admin = connectToElectionPort(leader);
+        assertEquals("ok transfer " + follower, admin.sendCommandAndReadResponse("transfer " + follower));
+
+        assertEquals(follower, awaitLeader(leader));
+
+        TelnetClientHelper subscriber = connect(follower);
+        subscriber.subscribe(queueName);
+        assertEquals("VERIFICATION-MESSAGE", subscriber.readResponse());
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void transfer_toUnreachableFollower_fails_andLeaderAcceptsPublishesAgain() throws IOException, InterruptedException {
+        int leader = awaitLeader(-1);
+        int follower = (leader + 1) % NUM_BROKERS;
+
+        TelnetClientHelper publisher = connect(leader);
+        declareQueue(publisher);
+        shutdown(follower);
+
+        TelnetClientHelper admin = connectToElectionPort(leader);
+        assertEquals("error no follower could take over", admin.sendCommandAndReadResponse("transfer " + follower));
+
+        assertEquals(leader, brokers[leader].getLeader());
+        assertEquals("ok", publisher.sendCommandAndReadResponse(publish(routingKey, "VERIFICATION-MESSAGE")));
+    }
+
+    private void declareQueue(TelnetClientHelper client) throws IOException {
+        client.sendCommandAndReadResponse(exchange("direct", exchangeName));
+        client.sendCommandAndReadResponse(queue(queueName));
+        client.sendCommandAndReadResponse(bind(routingKey));
+    }
+}
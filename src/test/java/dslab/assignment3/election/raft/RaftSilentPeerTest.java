@@ -0,0 +1,69 @@
+package dslab.assignment3.election.raft;
+
+import dslab.assignment3.cluster.BaseClusterTest;
+import dslab.broker.PeerChannel;
+import dslab.util.Constants;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Tests that a candidate does not wait for peers that accept its connection but never answer: the election is decided
+ * as soon as a majority voted, long before the response timeout of the silent peer.
+ */
+public class RaftSilentPeerTest extends BaseClusterTest {
+
+    @Override
+    protected int getNumOfBrokers() {
+        return 5;
+    }
+
+    @Test
+    @Timeout(value = 15, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void leaderFails_withSilentPeer_electsNewLeaderBeforeResponseTimeout() throws IOException, InterruptedException {
+        int leader = awaitLeader(-1);
+        int silent = (leader + 1) % NUM_BROKERS;
+
+        shutdown(silent);
+        List<Socket> accepted = Collections.synchronizedList(new ArrayList<>());
+        try (ServerSocket silentPeer = new ServerSocket(brokerConfigs[silent].electionPort(), 50,
+                InetAddress.getByName(Constants.LOCALHOST))) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        accepted.add(silentPeer.accept()); // never sends the greeting or a response
+                    }
+                } catch (IOException e) {
+                    // closed at the end of the test
+                }
+            });
+            acceptor.start();
+
+            shutdown(leader);
+            long start = System.nanoTime();
+            int newLeader = awaitLeader(leader);
+
+            assertNotEquals(silent, newLeader);
+            // the remaining three brokers form a majority of the five without the silent peer
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+                    .isLessThan((long) PeerChannel.RESPONSE_TIMEOUT_MS / 2);
+        } finally {
+            synchronized (accepted) {
+                for (Socket socket : accepted) {
+                    socket.close();
+                }
+            }
+        }
+    }
+}
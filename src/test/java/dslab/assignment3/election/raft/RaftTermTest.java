@@ -0,0 +1,74 @@
+package dslab.assignment3.election.raft;
+
+import dslab.assignment3.cluster.BaseClusterTest;
+import dslab.broker.Broker;
+import dslab.broker.enums.ElectionState;
+import dslab.config.BrokerConfig;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests RAFT elections in numbered terms with pre-vote: a newer term deposes the leader, an older one is refused, and
+ * followers that hear from their leader deny pre-votes.
+ */
+public class RaftTermTest extends BaseClusterTest {
+
+    @Override
+    protected BrokerConfig configure(BrokerConfig config) {
+        return config.toBuilder().electionRaftPreVote(true).build();
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void leader_receivesNewerTerm_stepsDown() throws IOException {
+        int leader = awaitLeader(-1);
+        Broker leaderBroker = (Broker) brokers[leader];
+        long term = leaderBroker.getCurrentTerm();
+
+        TelnetClientHelper peer = connectToElectionPort(leader);
+        assertEquals("pong", peer.sendCommandAndReadResponse("ping " + (term + 1)));
+
+        assertThat(leaderBroker.getElectionState()).isNotEqualTo(ElectionState.LEADER);
+        assertThat(leaderBroker.getCurrentTerm()).isGreaterThanOrEqualTo(term + 1);
+
+        // the cluster elects a leader in a newer term
+        int newLeader = awaitLeader(-1);
+        assertThat(((Broker) brokers[newLeader]).getCurrentTerm()).isGreaterThan(term);
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void follower_receivesOlderTerm_returnsStaleTerm() throws IOException {
+        int leader = awaitLeader(-1);
+        int follower = (leader + 1) % NUM_BROKERS;
+        long term = ((Broker) brokers[follower]).getCurrentTerm();
+
+        TelnetClientHelper peer = connectToElectionPort(follower);
+        assertEquals("error stale term " + term, peer.sendCommandAndReadResponse("ping " + (term - 1)));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void follower_whileLeaderAlive_deniesPreVote() throws IOException {
+        int leader = awaitLeader(-1);
+        int follower = (leader + 1) % NUM_BROKERS;
+        int candidate = (leader + 2) % NUM_BROKERS;
+        Broker followerBroker = (Broker) brokers[follower];
+        long term = followerBroker.getCurrentTerm();
+
+        TelnetClientHelper peer = connectToElectionPort(follower);
+        assertEquals("vote %d -1 %d".formatted(follower, term),
+                peer.sendCommandAndReadResponse("prevote %d %d".formatted(candidate, term + 1)));
+
+        // a pre-vote changes nothing
+        assertEquals(term, followerBroker.getCurrentTerm());
+        assertEquals(leader, followerBroker.getLeader());
+    }
+}
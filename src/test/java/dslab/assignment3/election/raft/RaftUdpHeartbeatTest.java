@@ -0,0 +1,55 @@
+package dslab.assignment3.election.raft;
+
+import dslab.assignment3.cluster.BaseClusterTest;
+import dslab.broker.Broker;
+import dslab.config.BrokerConfig;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests that a leader sending its heartbeats over UDP still pings the followers over their connections, so followers
+ * that missed its declare learn about it and a newer term of a follower deposes it.
+ */
+public class RaftUdpHeartbeatTest extends BaseClusterTest {
+
+    @Override
+    protected BrokerConfig configure(BrokerConfig config) {
+        return config.toBuilder().electionRaftPreVote(true).electionHeartbeatUdp(true).build();
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void follower_restarts_learnsLeaderAgain() throws InterruptedException {
+        int leader = awaitLeader(-1);
+        int follower = (leader + 1) % NUM_BROKERS;
+
+        shutdown(follower);
+        Thread.sleep(2 * TIMEOUT_MS); // a ping fails in the meantime
+        restart(follower);
+
+        // the datagrams of a leader the follower does not know are dropped, only the ping makes the leader declare
+        assertEquals(leader, awaitLeader(-1));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void follower_receivesNewerTerm_leaderStepsDown() throws IOException {
+        int leader = awaitLeader(-1);
+        int follower = (leader + 1) % NUM_BROKERS;
+        Broker leaderBroker = (Broker) brokers[leader];
+        long term = leaderBroker.getCurrentTerm();
+
+        TelnetClientHelper peer = connectToElectionPort(follower);
+        assertEquals("pong", peer.sendCommandAndReadResponse("ping " + (term + 1)));
+
+        // the follower answers the leader's next ping with error stale term
+        await().atMost(3, TimeUnit.SECONDS).until(() -> leaderBroker.getCurrentTerm() > term);
+    }
+}
@@ -0,0 +1,220 @@
+package dslab.benchmark;
+
+import dslab.ComponentFactory;
+import dslab.broker.IBroker;
+import dslab.config.BrokerConfig;
+import dslab.util.ConfigFactory;
+import dslab.util.Util;
+import dslab.util.network.SimulatedNetwork;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures elections in large clusters that run inside one JVM over a {@link SimulatedNetwork}: the time until the
+ * brokers agree on a leader after it failed, and the number of election messages that took. All brokers have the
+ * same timeout with a random extra delay, RAFT uses terms. Every round uses a new cluster and network, with the round
+ * number as the seed of the network.
+ * <p>
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+public class ElectionScaleBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final long ROUND_LIMIT_MS = 30_000;
+    private static final long SETTLE_MS = 1000; // elections that were still running when the brokers agreed end
+    private static final long TIMEOUT_MS = 300;
+    private static final long JITTER_MS = 300;
+
+    /**
+     * Shuts the leader down and measures the time until the others agreed on a new one. Bully only runs with few
+     * brokers, every broker forwards each {@code elect} to all brokers with higher ids, with 20 brokers and more the
+     * elections do not settle.
+     */
+    @ParameterizedTest
+    @CsvSource({
+            "bully, 10, 0, 0, 0.0",
+            "ring, 10, 0, 0, 0.0",
+            "ring, 50, 0, 0, 0.0",
+            "ring, 50, 1, 5, 0.01",
+            "raft, 10, 0, 0, 0.0",
+            "raft, 50, 0, 0, 0.0",
+            "raft, 50, 1, 5, 0.01"})
+    @Timeout(value = 600, unit = TimeUnit.SECONDS)
+    void failover(String electionType, int brokers, long minLatencyMs, long maxLatencyMs, double lossRate)
+            throws Exception {
+        List<Long> times = new ArrayList<>();
+        List<Long> messages = new ArrayList<>();
+        int unresolved = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            SimulatedNetwork network = new SimulatedNetwork(round);
+            network.setLatency(minLatencyMs, maxLatencyMs);
+            network.setLossRate(lossRate);
+
+            // terms only apply to RAFT
+            BrokerConfig[] configs = ConfigFactory.createUniformBrokerConfigs(brokers, electionType, TIMEOUT_MS, true,
+                    false, JITTER_MS);
+            IBroker[] cluster = startCluster(configs, network);
+            try {
+                if (awaitLeader(cluster, -1) < 0) {
+                    unresolved++;
+                    continue;
+                }
+                Thread.sleep(SETTLE_MS);
+
+                int leader = cluster[0].getLeader();
+                network.resetMessageCounts();
+                cluster[leader].shutdown();
+                cluster[leader] = null;
+
+                long time = awaitLeader(cluster, leader);
+                if (time < 0) {
+                    unresolved++;
+                } else {
+                    times.add(time);
+                    messages.add(electionMessages(network));
+                }
+            } finally {
+                stopCluster(cluster, configs);
+            }
+        }
+
+        Collections.sort(times);
+        Collections.sort(messages);
+        System.out.printf("%s brokers=%d latency=%d-%dms loss=%.2f rounds=%d unresolved=%d median=%.1fms p90=%.1fms " +
+                        "median messages=%d%n", electionType, brokers, minLatencyMs, maxLatencyMs, lossRate, ROUNDS,
+                unresolved, percentile(times, 0.5) / 1e6, percentile(times, 0.9) / 1e6,
+                messages.isEmpty() ? 0 : messages.get(messages.size() / 2));
+    }
+
+    /**
+     * Cuts the leader off together with a minority of the cluster and measures the time until the majority elected a
+     * new leader, with RAFT terms, pre-vote and a randomized timeout.
+     */
+    @ParameterizedTest
+    @ValueSource(ints = {5, 51})
+    @Timeout(value = 600, unit = TimeUnit.SECONDS)
+    void partitioned_leader(int brokers) throws Exception {
+        List<Long> times = new ArrayList<>();
+        int unresolved = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            SimulatedNetwork network = new SimulatedNetwork(round);
+            BrokerConfig[] configs = ConfigFactory.createRaftBrokerConfigs(brokers, TIMEOUT_MS, true, true, JITTER_MS);
+            IBroker[] cluster = startCluster(configs, network);
+            try {
+                if (awaitLeader(cluster, -1) < 0) {
+                    unresolved++;
+                    continue;
+                }
+                Thread.sleep(SETTLE_MS);
+
+                int leader = cluster[0].getLeader();
+                int[] minority = new int[(brokers - 1) / 2];
+                int[] majority = new int[brokers - minority.length];
+                for (int i = 0; i < brokers; i++) {
+                    int id = (leader + i) % brokers; // the leader and the brokers after it form the minority
+                    if (i < minority.length) {
+                        minority[i] = id;
+                    } else {
+                        majority[i - minority.length] = id;
+                    }
+                }
+                network.partition(minority, majority);
+
+                IBroker[] majorityBrokers = new IBroker[brokers];
+                for (int id : majority) {
+                    majorityBrokers[id] = cluster[id];
+                }
+                long time = awaitLeader(majorityBrokers, leader);
+                if (time < 0) {
+                    unresolved++;
+                } else {
+                    times.add(time);
+                }
+                network.heal();
+            } finally {
+                stopCluster(cluster, configs);
+            }
+        }
+
+        Collections.sort(times);
+        System.out.printf("raft partitioned leader brokers=%d rounds=%d unresolved=%d median=%.1fms p90=%.1fms%n",
+                brokers, ROUNDS, unresolved, percentile(times, 0.5) / 1e6, percentile(times, 0.9) / 1e6);
+    }
+
+    private static IBroker[] startCluster(BrokerConfig[] configs, SimulatedNetwork network) {
+        IBroker[] cluster = new IBroker[configs.length];
+        for (int i = 0; i < configs.length; i++) {
+            cluster[i] = ComponentFactory.createBroker(configs[i], network.transport(configs[i].electionId()));
+        }
+        for (IBroker broker : cluster) {
+            new Thread(broker).start();
+        }
+        return cluster;
+    }
+
+    private static void stopCluster(IBroker[] cluster, BrokerConfig[] configs) {
+        for (IBroker broker : cluster) {
+            if (broker != null) {
+                broker.shutdown();
+            }
+        }
+        for (BrokerConfig config : configs) {
+            Util.waitForTcpPortsToClose(config.port());
+        }
+    }
+
+    /**
+     * Waits until the brokers that are not null agree on a leader other than the given one.
+     *
+     * @return the nanoseconds that took, or -1 if they did not agree in time
+     */
+    private static long awaitLeader(IBroker[] cluster, int previousLeader) throws InterruptedException {
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(ROUND_LIMIT_MS)) {
+            if (agreeOnLeader(cluster, previousLeader)) {
+                return System.nanoTime() - start;
+            }
+            Thread.sleep(1);
+        }
+        return -1;
+    }
+
+    private static boolean agreeOnLeader(IBroker[] cluster, int previousLeader) {
+        int leader = -1;
+        for (IBroker broker : cluster) {
+            if (broker == null) {
+                continue;
+            }
+            if (leader == -1) {
+                leader = broker.getLeader();
+            }
+            if (leader < 0 || leader == previousLeader || broker.getLeader() != leader) {
+                return false;
+            }
+        }
+        return leader >= 0 && cluster[leader] != null;
+    }
+
+    private static long electionMessages(SimulatedNetwork network) {
+        return network.getMessageCount("elect") + network.getMessageCount("prevote")
+                + network.getMessageCount("declare");
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) {
+            return Double.NaN;
+        }
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.floor(p * sorted.size())));
+    }
+}
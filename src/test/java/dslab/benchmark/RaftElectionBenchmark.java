@@ -0,0 +1,103 @@
+package dslab.benchmark;
+
+import dslab.ComponentFactory;
+import dslab.broker.IBroker;
+import dslab.config.BrokerConfig;
+import dslab.util.ConfigFactory;
+import dslab.util.Util;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time until a RAFT cluster agrees on a leader when all brokers start at once with the same timeout,
+ * the worst case for split votes. Compares the elections without terms to elections with terms, pre-vote and a
+ * randomized timeout. Rounds that do not converge within {@link #ROUND_LIMIT_MS} are counted separately.
+ * <p>
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+public class RaftElectionBenchmark {
+
+    private static final int BROKERS = 5;
+    private static final int ROUNDS = 20;
+    private static final long TIMEOUT_MS = 300;
+    private static final long ROUND_LIMIT_MS = 10_000;
+
+    @ParameterizedTest
+    @CsvSource({"false, false, 0", "true, false, 300", "true, true, 300"})
+    @Timeout(value = 600, unit = TimeUnit.SECONDS)
+    void time_to_leader(boolean terms, boolean preVote, long jitterMs) throws Exception {
+        List<Long> times = new ArrayList<>();
+        int unresolved = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long time = electLeader(ConfigFactory.createRaftBrokerConfigs(BROKERS, TIMEOUT_MS, terms, preVote, jitterMs));
+            if (time < 0) {
+                unresolved++;
+            } else {
+                times.add(time);
+            }
+        }
+
+        Collections.sort(times);
+        System.out.printf("terms=%b prevote=%b jitter=%dms rounds=%d unresolved=%d median=%.1fms p90=%.1fms%n",
+                terms, preVote, jitterMs, ROUNDS, unresolved,
+                percentile(times, 0.5) / 1e6, percentile(times, 0.9) / 1e6);
+    }
+
+    /**
+     * @return the nanoseconds until all brokers know the same leader, or -1 if they did not agree in time
+     */
+    private static long electLeader(BrokerConfig[] configs) throws InterruptedException {
+        IBroker[] brokers = new IBroker[configs.length];
+        for (int i = 0; i < configs.length; i++) {
+            brokers[i] = ComponentFactory.createBroker(configs[i]);
+        }
+
+        long start = System.nanoTime();
+        for (IBroker broker : brokers) {
+            new Thread(broker).start();
+        }
+
+        try {
+            while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(ROUND_LIMIT_MS)) {
+                if (agreeOnLeader(brokers)) {
+                    return System.nanoTime() - start;
+                }
+                Thread.sleep(1);
+            }
+            return -1;
+        } finally {
+            for (IBroker broker : brokers) {
+                broker.shutdown();
+            }
+            for (BrokerConfig config : configs) {
+                Util.waitForTcpPortsToClose(config.port(), config.electionPort());
+            }
+        }
+    }
+
+    private static boolean agreeOnLeader(IBroker[] brokers) {
+        int leader = brokers[0].getLeader();
+        for (IBroker broker : brokers) {
+            if (leader < 0 || broker.getLeader() != leader) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) {
+            return Double.NaN;
+        }
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.floor(p * sorted.size())));
+    }
+}
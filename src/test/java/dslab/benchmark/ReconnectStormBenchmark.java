@@ -0,0 +1,86 @@
+package dslab.benchmark;
+
+import dslab.ComponentFactory;
+import dslab.broker.IBroker;
+import dslab.config.BrokerConfig;
+import dslab.util.ConfigFactory;
+import dslab.util.Constants;
+import dslab.util.Util;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures how long the broker takes to accept a storm of reconnecting clients, as it happens after a failover.
+ * Every client connects, waits for the {@code ok SMQP} greeting and disconnects again.
+ * <p>
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+public class ReconnectStormBenchmark {
+
+    private static final int CONNECTIONS = 10_000;
+    private static final int CONCURRENT_CONNECTIONS = 256;
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 4})
+    @Timeout(value = 120, unit = TimeUnit.SECONDS)
+    void accept_10k_connections(int acceptorThreads) throws Exception {
+        BrokerConfig config = ConfigFactory.createBrokerConfigA2().toBuilder().acceptorThreads(acceptorThreads).build();
+        IBroker broker = ComponentFactory.createBroker(config);
+        Thread brokerThread = new Thread(broker);
+        brokerThread.start();
+
+        try {
+            TelnetClientHelper waitForConnHelper = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+            waitForConnHelper.waitForInitConnection();
+            waitForConnHelper.disconnect();
+
+            Semaphore inFlight = new Semaphore(CONCURRENT_CONNECTIONS);
+            AtomicInteger greeted = new AtomicInteger();
+
+            long start = System.nanoTime();
+            try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < CONNECTIONS; i++) {
+                    inFlight.acquire();
+                    clients.submit(() -> {
+                        try (Socket socket = new Socket(Constants.LOCALHOST, config.port())) {
+                            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                            if ("ok SMQP".equals(in.readLine())) {
+                                greeted.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            // counted as a failed connection
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+
+            System.out.printf("acceptors=%d connections=%d greeted=%d time=%.1fms rate=%.0f conn/s%n",
+                    acceptorThreads, CONNECTIONS, greeted.get(), elapsed / 1e6, CONNECTIONS / (elapsed / 1e9));
+            assertThat(greeted.get()).isEqualTo(CONNECTIONS);
+        } finally {
+            broker.shutdown();
+            brokerThread.join();
+            Util.waitForTcpPortsToClose(config.port());
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package dslab.benchmark;
+
+import dslab.ComponentFactory;
+import dslab.broker.EmbeddedClient;
+import dslab.broker.Exchange;
+import dslab.broker.ExchangeType;
+import dslab.broker.Frame;
+import dslab.broker.IBroker;
+import dslab.broker.Queue;
+import dslab.broker.Subscription;
+import dslab.broker.enums.Opcode;
+import dslab.client.SmqpClient;
+import dslab.config.BrokerConfig;
+import dslab.util.ConfigFactory;
+import dslab.util.Constants;
+import dslab.util.Util;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the throughput of the text and the binary SMQP protocol for a single publisher and subscriber, of the
+ * {@link SmqpClient} with pipelined publishes over a pool of connections, and of an {@link EmbeddedClient} that
+ * publishes and subscribes without a connection. {@code topic_routing} measures publishes with a few repeating routing
+ * keys to a topic exchange with many bindings, which the broker routes once per connection and key.
+ * <p>
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+public class SmqpFramingBenchmark {
+
+    private static final BrokerConfig config = ConfigFactory.createBrokerConfigA2();
+    private static final int TOTAL_BYTES = 64 * 1024 * 1024;
+    private static final String QUEUE = "bench";
+
+    private IBroker broker;
+    private Thread brokerThread;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        broker = ComponentFactory.createBroker(config);
+        brokerThread = new Thread(broker);
+        brokerThread.start();
+
+        TelnetClientHelper waitForConnHelper = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+        waitForConnHelper.waitForInitConnection();
+        waitForConnHelper.disconnect();
+    }
+
+    @AfterEach
+    void afterEach() throws InterruptedException {
+        broker.shutdown();
+        brokerThread.join();
+        Util.waitForTcpPortsToClose(config.port());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {64, 1024, 64 * 1024})
+    @Timeout(value = 60, unit = TimeUnit.SECONDS)
+    void text_protocol(int payloadSize) throws Exception {
+        int count = messageCount(payloadSize);
+        char[] chars = new char[payloadSize];
+        Arrays.fill(chars, 'x');
+        byte[] publish = ("publish " + QUEUE + " " + new String(chars) + "\n").getBytes(StandardCharsets.UTF_8);
+
+        try (Socket subscriber = new Socket(Constants.LOCALHOST, config.port());
+             Socket publisher = new Socket(Constants.LOCALHOST, config.port())) {
+            BufferedReader subIn = new BufferedReader(new InputStreamReader(subscriber.getInputStream(), StandardCharsets.UTF_8));
+            PrintStream subOut = new PrintStream(subscriber.getOutputStream(), true);
+            subIn.readLine();
+            subOut.println("queue " + QUEUE);
+            subIn.readLine();
+            subOut.println("subscribe");
+            subIn.readLine();
+
+            BufferedReader pubIn = new BufferedReader(new InputStreamReader(publisher.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream pubOut = new BufferedOutputStream(publisher.getOutputStream());
+            pubIn.readLine();
+            pubOut.write("exchange default default\n".getBytes(StandardCharsets.UTF_8));
+            pubOut.flush();
+            pubIn.readLine();
+
+            long start = System.nanoTime();
+            // confirmations are drained concurrently so neither side blocks on a full socket buffer
+            Thread confirmThread = Thread.ofVirtual().start(() -> {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        pubIn.readLine();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            Thread pubThread = Thread.ofVirtual().start(() -> {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        pubOut.write(publish);
+                    }
+                    pubOut.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            int received = 0;
+            while (received < count && subIn.readLine() != null) {
+                received++;
+            }
+            long elapsed = System.nanoTime() - start;
+            pubThread.join();
+            confirmThread.join();
+
+            assertThat(received).isEqualTo(count);
+            report("text", payloadSize, count, elapsed);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {64, 1024, 64 * 1024})
+    @Timeout(value = 60, unit = TimeUnit.SECONDS)
+    void binary_protocol(int payloadSize) throws Exception {
+        int count = messageCount(payloadSize);
+        byte[] payload = new byte[payloadSize];
+        Arrays.fill(payload, (byte) 'x');
+        ByteBuffer publish = Frame.encode(Opcode.PUBLISH, QUEUE, payload);
+
+        try (Socket subscriber = new Socket(Constants.LOCALHOST, config.port());
+             Socket publisher = new Socket(Constants.LOCALHOST, config.port())) {
+            DataInputStream subIn = negotiateBinary(subscriber);
+            DataOutputStream subOut = new DataOutputStream(subscriber.getOutputStream());
+            request(subIn, subOut, Frame.of(Opcode.QUEUE, QUEUE));
+            request(subIn, subOut, Frame.of(Opcode.SUBSCRIBE));
+
+            DataInputStream pubIn = negotiateBinary(publisher);
+            DataOutputStream pubOut = new DataOutputStream(new BufferedOutputStream(publisher.getOutputStream()));
+            request(pubIn, pubOut, new Frame(Opcode.EXCHANGE, "default", "default".getBytes(StandardCharsets.UTF_8)));
+
+            long start = System.nanoTime();
+            // confirmations are drained concurrently so neither side blocks on a full socket buffer
+            Thread confirmThread = Thread.ofVirtual().start(() -> {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        Frame.read(pubIn);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            Thread pubThread = Thread.ofVirtual().start(() -> {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        pubOut.write(publish.array(), 0, publish.limit());
+                    }
+                    pubOut.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            int received = 0;
+            while (received < count && Frame.read(subIn) != null) {
+                received++;
+            }
+            long elapsed = System.nanoTime() - start;
+            pubThread.join();
+            confirmThread.join();
+
+            assertThat(received).isEqualTo(count);
+            report("binary", payloadSize, count, elapsed);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {64, 1024, 64 * 1024})
+    @Timeout(value = 60, unit = TimeUnit.SECONDS)
+    void smqp_client(int payloadSize) throws Exception {
+        int count = messageCount(payloadSize);
+        byte[] payload = new byte[payloadSize];
+        Arrays.fill(payload, (byte) 'x');
+
+        try (SmqpClient client = new SmqpClient(Constants.LOCALHOST + ":" + config.port(), 4)) {
+            client.declareQueue(QUEUE);
+            CountDownLatch received = new CountDownLatch(count);
+            client.subscribe(QUEUE, (routingKey, message) -> received.countDown());
+
+            long start = System.nanoTime();
+            List<CompletableFuture<Void>> confirms = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                confirms.add(client.publish("default", QUEUE, payload));
+            }
+            CompletableFuture.allOf(confirms.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+            assertThat(received.await(30, TimeUnit.SECONDS)).isTrue();
+            long elapsed = System.nanoTime() - start;
+
+            report("client", payloadSize, count, elapsed);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {64, 1024, 64 * 1024})
+    @Timeout(value = 60, unit = TimeUnit.SECONDS)
+    void embedded_client(int payloadSize) throws Exception {
+        int count = messageCount(payloadSize);
+        byte[] payload = new byte[payloadSize];
+        Arrays.fill(payload, (byte) 'x');
+
+        try (EmbeddedClient client = ComponentFactory.createEmbeddedClient(broker)) {
+            Queue queue = client.declareQueue(QUEUE);
+            Exchange exchange = client.declareExchange(ExchangeType.DEFAULT, "default");
+            CountDownLatch received = new CountDownLatch(count);
+            Subscription subscription = client.subscribe(queue, messages -> {
+                for (int i = 0; i < messages.size(); i++) {
+                    received.countDown();
+                }
+                return true;
+            });
+
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                client.publish(exchange, QUEUE, payload);
+            }
+            long published = System.nanoTime() - start;
+            assertThat(received.await(30, TimeUnit.SECONDS)).isTrue();
+            long elapsed = System.nanoTime() - start;
+            subscription.stop();
+
+            report("embedded", payloadSize, count, elapsed);
+            System.out.printf("embedded publish=%.0fns/msg%n", (double) published / count);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {10, 200})
+    @Timeout(value = 60, unit = TimeUnit.SECONDS)
+    void topic_routing(int bindings) throws Exception {
+        int count = messageCount(64);
+        byte[] payload = new byte[64];
+        String[] routingKeys = {"orders.0.created", "orders.1.paid", "orders.2.shipped.eu", "orders.3.cancelled"};
+
+        try (SmqpClient client = new SmqpClient(Constants.LOCALHOST + ":" + config.port(), 1)) {
+            client.declareExchange(ExchangeType.TOPIC, "orders");
+            for (int i = 0; i < bindings; i++) {
+                client.declareQueue("orders-" + i);
+                client.bind("orders", "orders-" + i, "orders." + i + ".#");
+            }
+
+            long start = System.nanoTime();
+            List<CompletableFuture<Void>> confirms = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                confirms.add(client.publish("orders", routingKeys[i % routingKeys.length], payload));
+            }
+            CompletableFuture.allOf(confirms.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+            long elapsed = System.nanoTime() - start;
+
+            System.out.printf("routing bindings=%3d messages=%6d time=%8.1fms throughput=%10.0f msg/s%n",
+                    bindings, count, elapsed / 1e6, count / (elapsed / 1e9));
+        }
+    }
+
+    private static DataInputStream negotiateBinary(Socket socket) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+        readLine(in);
+        socket.getOutputStream().write("binary\n".getBytes(StandardCharsets.UTF_8));
+        assertThat(readLine(in)).isEqualTo("ok");
+        return new DataInputStream(in);
+    }
+
+    private static void request(DataInputStream in, DataOutputStream out, Frame frame) throws IOException {
+        ByteBuffer encoded = frame.encode();
+        out.write(encoded.array(), 0, encoded.limit());
+        out.flush();
+        assertThat(Frame.read(in).opcode()).isEqualTo(Opcode.OK);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8).trim();
+    }
+
+    private static int messageCount(int payloadSize) {
+        return Math.min(20_000, TOTAL_BYTES / payloadSize);
+    }
+
+    private static void report(String protocol, int payloadSize, int count, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%-8s payload=%6dB messages=%6d time=%8.1fms throughput=%10.0f msg/s %8.1f MB/s%n",
+                protocol, payloadSize, count, elapsedNanos / 1e6, count / seconds,
+                (double) count * payloadSize / seconds / (1024 * 1024));
+    }
+}
@@ -0,0 +1,147 @@
+package dslab.broker;
+
+import dslab.ComponentFactory;
+import dslab.broker.enums.Opcode;
+import dslab.config.BrokerConfig;
+import dslab.util.ConfigFactory;
+import dslab.util.Constants;
+import dslab.util.Global;
+import dslab.util.Util;
+import dslab.util.helper.BinaryClientHelper;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static dslab.util.CommandBuilder.exchange;
+import static dslab.util.CommandBuilder.publish;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests that the channels of a connection share its socket: a client that stops reading holds back every channel,
+ * and nothing is lost once it reads again.
+ */
+public class ChannelBlockingTest {
+
+    private static final String PAYLOAD = "x".repeat(10_000);
+
+    private final BrokerConfig config = ConfigFactory.createBrokerConfigsA2(1)[0].toBuilder()
+            .subscriberBufferBytes(65_536)
+            .deliveryBatchBytes(16_384)
+            .slowConsumerPolicy("pause")
+            .build();
+    private final String queue1Name = "queue-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String queue2Name = "queue-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private IBroker broker;
+    private Thread brokerThread;
+    private BinaryClientHelper subscriber;
+    private Socket publisher;
+
+    @AfterEach
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void afterEach() throws IOException, InterruptedException {
+        if (subscriber != null) {
+            subscriber.disconnect();
+        }
+        if (publisher != null) {
+            publisher.close();
+        }
+        if (broker != null) {
+            broker.shutdown();
+            brokerThread.join();
+        }
+        Util.waitForTcpPortsToClose(config.port());
+    }
+
+    @Test
+    @Timeout(value = 20, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void subscribe_clientStopsReading_holdsBackOtherChannels_untilClientReadsAgain() throws IOException, InterruptedException {
+        start();
+        subscriber = new BinaryClientHelper(Constants.LOCALHOST, config.port());
+        assertEquals("ok", subscriber.connectAndSwitchToBinary());
+        subscribe(0, queue1Name);
+        subscribe(1, queue2Name);
+        Queue queue1 = ((Broker) broker).getStore().getQueue(queue1Name);
+
+        publisher = new Socket(Constants.LOCALHOST, config.port());
+        BufferedReader in = new BufferedReader(new InputStreamReader(publisher.getInputStream(), StandardCharsets.UTF_8));
+        OutputStream out = new BufferedOutputStream(publisher.getOutputStream());
+        in.readLine();
+        send(in, out, List.of(exchange("default", "default")));
+
+        // publish until the socket and the subscription buffer of channel 0 are full and delivery pauses
+        int published = 0;
+        do {
+            send(in, out, Collections.nCopies(100, publish(queue1Name, PAYLOAD)));
+            published += 100;
+            Thread.sleep(200);
+        } while (queue1.size() == 0);
+        int waiting = queue1.size();
+        Thread.sleep(200);
+        assertEquals(waiting, queue1.size());
+
+        send(in, out, List.of(publish(queue2Name, "VERIFICATION-MESSAGE")));
+
+        // the message of channel 1 waits behind the frames of channel 0 already written
+        int beforeOtherChannel = 0;
+        Frame frame;
+        while ((frame = subscriber.read()).opcode() == Opcode.MESSAGE && subscriber.getChannel() == 0) {
+            beforeOtherChannel++;
+        }
+        assertEquals(1, subscriber.getChannel());
+        assertEquals("VERIFICATION-MESSAGE", frame.payloadAsString());
+        assertThat(beforeOtherChannel).isGreaterThan(0);
+
+        for (int i = beforeOtherChannel; i < published; i++) {
+            frame = subscriber.read();
+            assertEquals(Opcode.MESSAGE, frame.opcode());
+            assertEquals(0, subscriber.getChannel());
+        }
+        await().atMost(2, TimeUnit.SECONDS).until(() -> queue1.size() == 0);
+    }
+
+    private void start() throws IOException {
+        broker = ComponentFactory.createBroker(config);
+        brokerThread = new Thread(broker);
+        brokerThread.start();
+
+        TelnetClientHelper waitForConnHelper = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+        waitForConnHelper.waitForInitConnection();
+        waitForConnHelper.disconnect();
+    }
+
+    /**
+     * Sends the commands at once and reads their responses, so that large publishes are not slowed down by
+     * delayed acknowledgements.
+     */
+    private static void send(BufferedReader in, OutputStream out, List<String> commands) throws IOException {
+        for (String command : commands) {
+            out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        out.flush();
+        for (int i = 0; i < commands.size(); i++) {
+            assertEquals("ok", in.readLine());
+        }
+    }
+
+    private void subscribe(int channel, String queueName) throws IOException {
+        subscriber.selectChannel(channel);
+        subscriber.send(Frame.of(Opcode.QUEUE, queueName));
+        assertEquals(Opcode.OK, subscriber.read().opcode());
+        subscriber.send(Frame.of(Opcode.SUBSCRIBE));
+        assertEquals(Opcode.OK, subscriber.read().opcode());
+    }
+}
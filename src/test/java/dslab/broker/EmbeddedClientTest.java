@@ -0,0 +1,167 @@
+package dslab.broker;
+
+import dslab.ComponentFactory;
+import dslab.config.BrokerConfig;
+import dslab.util.ConfigFactory;
+import dslab.util.Constants;
+import dslab.util.Global;
+import dslab.util.Util;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static dslab.util.CommandBuilder.exchange;
+import static dslab.util.CommandBuilder.publish;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests the client for publishers and subscribers in the same JVM as the broker.
+ */
+public class EmbeddedClientTest {
+
+    private final BrokerConfig config = ConfigFactory.createBrokerConfigA2();
+    private final String queueName = "queue-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+    private IBroker broker;
+    private Thread brokerThread;
+    private EmbeddedClient client;
+
+    @BeforeEach
+    void beforeEach() {
+        broker = ComponentFactory.createBroker(config);
+        brokerThread = new Thread(broker);
+        brokerThread.start();
+
+        TelnetClientHelper waitForConnHelper = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+        waitForConnHelper.waitForInitConnection();
+        try {
+            waitForConnHelper.disconnect();
+        } catch (IOException e) {
+            // ignored
+        }
+        client = ComponentFactory.createEmbeddedClient(broker);
+    }
+
+    @AfterEach
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void afterEach() throws InterruptedException {
+        client.close();
+        if (broker != null) {
+            broker.shutdown();
+            brokerThread.join();
+        }
+        Util.waitForTcpPortsToClose(config.port());
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void publish_andSubscribe_deliversPayloadWithoutConnection() {
+        Queue queue = client.declareQueue(queueName);
+        Exchange exchange = client.declareExchange(ExchangeType.DEFAULT, "default");
+        client.subscribe(queue, this::receive);
+
+        assertEquals(1, client.publish(exchange, queueName, bytes("VERIFICATION-MESSAGE-1")));
+        assertEquals(1, client.publish(exchange, queueName, bytes("VERIFICATION-MESSAGE-2")));
+
+        await().atMost(2, TimeUnit.SECONDS).until(() -> received.size() == 2);
+        assertThat(received).containsExactly("VERIFICATION-MESSAGE-1", "VERIFICATION-MESSAGE-2");
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void subscribe_receivesMessagesPublishedOverSmqp() throws IOException {
+        client.subscribe(client.declareQueue(queueName), this::receive);
+
+        TelnetClientHelper publisher = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+        publisher.connectAndReadResponse();
+        publisher.sendCommandAndReadResponse(exchange("default", "default"));
+        publisher.sendCommandAndReadResponse(publish(queueName, "VERIFICATION-MESSAGE"));
+        publisher.disconnect();
+
+        await().atMost(2, TimeUnit.SECONDS).until(() -> received.size() == 1);
+        assertEquals("VERIFICATION-MESSAGE", received.get(0));
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void subscriber_rejectsBatch_putsItBackAndEndsSubscription() throws InterruptedException {
+        Queue queue = client.declareQueue(queueName);
+        Exchange exchange = client.declareExchange(ExchangeType.DEFAULT, "default");
+        client.subscribe(queue, messages -> {
+            messages.forEach(message -> received.add(new String(message.getPayload(), StandardCharsets.UTF_8)));
+            return false;
+        });
+
+        client.publish(exchange, queueName, bytes("VERIFICATION-MESSAGE-1"));
+        await().atMost(2, TimeUnit.SECONDS).until(() -> received.size() == 1);
+        await().atMost(2, TimeUnit.SECONDS).until(() -> queue.size() == 1);
+
+        client.publish(exchange, queueName, bytes("VERIFICATION-MESSAGE-2"));
+        Thread.sleep(200);
+        assertEquals(2, queue.size());
+        assertEquals(1, received.size());
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void close_stopsSubscriptions_messagesStayInQueue() throws InterruptedException {
+        Queue queue = client.declareQueue(queueName);
+        Exchange exchange = client.declareExchange(ExchangeType.DEFAULT, "default");
+        client.subscribe(queue, this::receive);
+        client.close();
+
+        client.publish(exchange, queueName, bytes("VERIFICATION-MESSAGE"));
+        Thread.sleep(200);
+        assertEquals(1, queue.size());
+        assertThat(received).isEmpty();
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void brokerShutdown_closesClient() throws InterruptedException {
+        Queue queue = client.declareQueue(queueName);
+        Exchange exchange = client.declareExchange(ExchangeType.DEFAULT, "default");
+        client.subscribe(queue, this::receive);
+
+        broker.shutdown();
+        brokerThread.join();
+        broker = null;
+
+        client.publish(exchange, queueName, bytes("VERIFICATION-MESSAGE"));
+        Thread.sleep(200);
+        assertEquals(1, queue.size());
+        assertThat(received).isEmpty();
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void declareExchange_withOtherType_throwsInsteadOfError() {
+        client.declareExchange(ExchangeType.FANOUT, "exchange-" + queueName);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> client.declareExchange(ExchangeType.TOPIC, "exchange-" + queueName));
+    }
+
+    private boolean receive(List<Message> messages) {
+        for (Message message : messages) {
+            received.add(new String(message.getPayload(), StandardCharsets.UTF_8));
+        }
+        return true;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,82 @@
+package dslab.broker;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the phi accrual failure detector with heartbeats sent at real intervals, as it measures them with
+ * {@link System#nanoTime()}. The timeout is 200 ms, so the tolerated standard deviation is at least 20 ms and a pause of
+ * 100 ms is accepted on top of the mean interval.
+ */
+public class FailureDetectorTest {
+
+    private static final long TIMEOUT_MS = 200;
+
+    private final FailureDetector detector = new FailureDetector(8.0, TIMEOUT_MS, 0);
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void withoutHistory_suspectsAfterTimeout() throws InterruptedException {
+        detector.heartbeat();
+        assertFalse(detector.isSuspected());
+
+        Thread.sleep(TIMEOUT_MS + 50);
+        assertTrue(detector.isSuspected());
+        assertTrue(detector.isOverdue());
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void withHistory_phiGrowsWithDelay_andToleratesPauseBeyondTimeout() throws InterruptedException {
+        sendHeartbeats(4, 100);
+        assertThat(detector.phi()).isLessThan(1.0);
+
+        // the mean interval of 100 ms plus the acceptable pause: longer than the timeout, but not suspicious yet
+        Thread.sleep(TIMEOUT_MS + 50);
+        double phi = detector.phi();
+        assertThat(phi).isLessThan(8.0);
+        assertFalse(detector.isSuspected());
+
+        Thread.sleep(200);
+        assertThat(detector.phi()).isGreaterThan(phi);
+        assertTrue(detector.isSuspected());
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void reset_forgetsHistory_fallsBackToTimeout() throws InterruptedException {
+        sendHeartbeats(4, 100);
+        detector.reset();
+
+        Thread.sleep(TIMEOUT_MS + 50);
+        assertTrue(detector.isSuspected());
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void postpone_delaysSuspicion_leaderStaysOverdue() throws InterruptedException {
+        Thread.sleep(TIMEOUT_MS + 50);
+        assertTrue(detector.isSuspected());
+
+        detector.postpone();
+        assertFalse(detector.isSuspected());
+        assertTrue(detector.isOverdue());
+        assertFalse(detector.heardWithin(TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS)));
+
+        Thread.sleep(TIMEOUT_MS + 50);
+        assertTrue(detector.isSuspected());
+    }
+
+    private void sendHeartbeats(int count, long intervalMs) throws InterruptedException {
+        for (int i = 0; i < count; i++) {
+            Thread.sleep(intervalMs);
+            detector.heartbeat();
+        }
+    }
+}
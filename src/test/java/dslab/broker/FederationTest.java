@@ -0,0 +1,157 @@
+package dslab.broker;
+
+import dslab.ComponentFactory;
+import dslab.config.BrokerConfig;
+import dslab.util.ConfigFactory;
+import dslab.util.Constants;
+import dslab.util.Global;
+import dslab.util.Util;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static dslab.util.CommandBuilder.bind;
+import static dslab.util.CommandBuilder.exchange;
+import static dslab.util.CommandBuilder.publish;
+import static dslab.util.CommandBuilder.queue;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests federation links: the batches an exchange is forwarded in, their cumulative acknowledgement, and that brokers
+ * linked in both directions do not send messages back and forth.
+ */
+public class FederationTest {
+
+    private final BrokerConfig[] configs = ConfigFactory.createBrokerConfigsA2(2);
+    private final String exchangeName = "exchange-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String queueName = "queue-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final List<IBroker> brokers = new ArrayList<>();
+    private final List<Thread> brokerThreads = new ArrayList<>();
+    private final List<TelnetClientHelper> clients = new ArrayList<>();
+
+    @AfterEach
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void afterEach() throws InterruptedException {
+        for (TelnetClientHelper client : clients) {
+            try {
+                client.disconnect();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+        for (IBroker broker : brokers) {
+            broker.shutdown();
+        }
+        for (Thread brokerThread : brokerThreads) {
+            brokerThread.join();
+        }
+        for (BrokerConfig config : configs) {
+            Util.waitForTcpPortsToClose(config.port());
+        }
+    }
+
+    @Test
+    @Timeout(value = 5, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void federate_sendsBatches_ackReleasesAllBatchesUpToSeq() throws IOException {
+        Broker broker = start(configs[0].toBuilder().deliveryBatchMessages(1).build());
+        TelnetClientHelper publisher = connect(configs[0]);
+        publisher.sendCommandAndReadResponse(exchange("fanout", exchangeName));
+
+        try (Socket downstream = new Socket(Constants.LOCALHOST, configs[0].port())) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(downstream.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = downstream.getOutputStream();
+            in.readLine();
+            out.write("%s\nfederate link-0\n".formatted(exchange("fanout", exchangeName)).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("ok", in.readLine());
+            assertEquals("ok", in.readLine());
+
+            for (int i = 0; i < 3; i++) {
+                publisher.sendCommandAndReadResponse(publish("rk-" + i, "VERIFICATION-MESSAGE-" + i));
+            }
+            for (int i = 0; i < 3; i++) {
+                assertEquals("batch %d 1".formatted(i + 1), in.readLine());
+                assertEquals("rk-%d %s".formatted(i, base64("VERIFICATION-MESSAGE-" + i)), in.readLine());
+            }
+
+            // covers the first two batches, the third goes back to the queue when the link breaks
+            out.write("ack 2\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        Queue federationQueue = broker.getStore().getQueue("federation." + exchangeName + ".link-0");
+        await().atMost(2, TimeUnit.SECONDS).until(() -> federationQueue.size() == 1);
+        assertEquals("VERIFICATION-MESSAGE-2",
+                new String(federationQueue.copyMessages().get(0).getPayload(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void linksInBothDirections_forwardMessageOnce() throws IOException, InterruptedException {
+        Broker broker0 = start(configs[0].toBuilder()
+                .federationLinks("%s:%d:fanout:%s".formatted(Constants.LOCALHOST, configs[1].port(), exchangeName))
+                .build());
+        Broker broker1 = start(configs[1].toBuilder()
+                .federationLinks("%s:%d:fanout:%s".formatted(Constants.LOCALHOST, configs[0].port(), exchangeName))
+                .build());
+        await().atMost(5, TimeUnit.SECONDS).until(() ->
+                broker0.getStore().getQueue("federation." + exchangeName + "." + configs[1].componentId()) != null
+                        && broker1.getStore().getQueue("federation." + exchangeName + "." + configs[0].componentId()) != null);
+
+        TelnetClientHelper client0 = connect(configs[0]);
+        TelnetClientHelper client1 = connect(configs[1]);
+        for (TelnetClientHelper client : List.of(client0, client1)) {
+            client.sendCommandAndReadResponse(exchange("fanout", exchangeName));
+            client.sendCommandAndReadResponse(queue(queueName));
+            client.sendCommandAndReadResponse(bind("none"));
+        }
+
+        assertEquals("ok", client0.sendCommandAndReadResponse(publish("rk", "VERIFICATION-MESSAGE")));
+
+        await().atMost(3, TimeUnit.SECONDS).until(() -> broker1.getStore().getQueue(queueName).size() == 1);
+        Thread.sleep(500); // a message sent back would arrive in the meantime
+        assertEquals(1, broker0.getStore().getQueue(queueName).size());
+        assertEquals(1, broker1.getStore().getQueue(queueName).size());
+    }
+
+    private Broker start(BrokerConfig config) {
+        IBroker broker = ComponentFactory.createBroker(config);
+        Thread brokerThread = new Thread(broker);
+        brokers.add(broker);
+        brokerThreads.add(brokerThread);
+        brokerThread.start();
+
+        TelnetClientHelper waitForConnHelper = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+        waitForConnHelper.waitForInitConnection();
+        try {
+            waitForConnHelper.disconnect();
+        } catch (IOException e) {
+            // ignored
+        }
+        return (Broker) broker;
+    }
+
+    private TelnetClientHelper connect(BrokerConfig config) throws IOException {
+        TelnetClientHelper client = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+        clients.add(client);
+        client.connectAndReadResponse();
+        return client;
+    }
+
+    private static String base64(String text) {
+        return Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,136 @@
+package dslab.broker;
+
+import dslab.broker.enums.SlowConsumerPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests the slow consumer policies with a subscriber whose first write blocks until the test releases it, like a
+ * client that stopped reading. Each message has 10 bytes and the buffer holds 10 of them, the one being written
+ * included.
+ */
+public class SubscriptionTest {
+
+    private static final int MESSAGES = 30;
+    private static final int CAPACITY_BYTES = 100;
+
+    private final Queue queue = new Queue("queue");
+    private final DeliveryMetrics metrics = new DeliveryMetrics();
+    private final CountDownLatch writing = new CountDownLatch(1);
+    private final CountDownLatch reading = new CountDownLatch(1);
+    private final List<Message> written = Collections.synchronizedList(new ArrayList<>());
+    private Subscription subscription;
+
+    @AfterEach
+    void afterEach() {
+        reading.countDown();
+        if (subscription != null) {
+            subscription.stop();
+        }
+    }
+
+    @Test
+    @Timeout(value = 5, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void pause_keepsMessagesInQueue_untilClientReadsAgain() throws InterruptedException {
+        start(SlowConsumerPolicy.PAUSE, () -> {
+        });
+
+        await().atMost(2, TimeUnit.SECONDS).until(() -> metrics.getSlowConsumerEvents() == 1);
+        Thread.sleep(200);
+        assertEquals(MESSAGES - 10, queue.size());
+
+        reading.countDown();
+        await().atMost(2, TimeUnit.SECONDS).until(() -> written.size() == MESSAGES);
+        assertEquals(0, queue.size());
+        assertEquals(MESSAGES, metrics.getDeliveredMessages());
+        assertThat(metrics.getBlockedWriteMillis()).isGreaterThanOrEqualTo(200L);
+        assertThat(metrics.getPausedMillis()).isGreaterThanOrEqualTo(200L);
+        assertEquals(0, metrics.getRequeuedMessages());
+    }
+
+    @Test
+    @Timeout(value = 5, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void requeue_handsBufferedMessagesBack_andContinuesAfterWrite() throws InterruptedException {
+        start(SlowConsumerPolicy.REQUEUE, () -> {
+        });
+
+        // all but the message being written go back to the queue for other subscribers
+        await().atMost(2, TimeUnit.SECONDS).until(() -> metrics.getSlowConsumerEvents() == 1);
+        await().atMost(2, TimeUnit.SECONDS).until(() -> queue.size() == MESSAGES - 1);
+        assertEquals(9, metrics.getRequeuedMessages());
+
+        reading.countDown();
+        await().atMost(2, TimeUnit.SECONDS).until(() -> written.size() == MESSAGES);
+        assertThat(new HashSet<>(written)).hasSize(MESSAGES);
+    }
+
+    @Test
+    @Timeout(value = 5, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void disconnect_requeuesBufferedMessages_andDisconnectsWithoutHoldingBuffer() throws InterruptedException {
+        CountDownLatch disconnected = new CountDownLatch(1);
+        AtomicBoolean stopped = new AtomicBoolean();
+        // like the connection handler, which stops the subscription on another thread when it shuts down
+        start(SlowConsumerPolicy.DISCONNECT, () -> {
+            Thread stopper = Thread.ofVirtual().start(subscription::stop);
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    stopper.join(1000);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true; // stop() interrupts the pump thread, which runs this callback
+                }
+            }
+            stopped.set(!stopper.isAlive());
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            disconnected.countDown();
+        });
+
+        assertThat(disconnected.await(3, TimeUnit.SECONDS)).isTrue();
+        assertThat(stopped.get()).isTrue();
+        assertEquals(1, metrics.getDisconnectedConsumers());
+        assertEquals(9, metrics.getRequeuedMessages());
+        assertEquals(MESSAGES - 1, queue.size());
+    }
+
+    private void start(SlowConsumerPolicy policy, Runnable disconnect) throws InterruptedException {
+        subscription = new Subscription(queue, messages -> {
+            writing.countDown();
+            try {
+                reading.await();
+            } catch (InterruptedException e) {
+                return false;
+            }
+            written.addAll(messages);
+            return true;
+        }, disconnect, policy, CAPACITY_BYTES, 1, 10, metrics);
+        subscription.start();
+
+        // the first message is in flight before the others fill the buffer
+        addMessage(0);
+        assertThat(writing.await(2, TimeUnit.SECONDS)).isTrue();
+        for (int i = 1; i < MESSAGES; i++) {
+            addMessage(i);
+        }
+    }
+
+    private void addMessage(int i) {
+        queue.addMessage(new Message(i + 1, "rk", "MESSAGE-%02d".formatted(i).getBytes(StandardCharsets.UTF_8)));
+    }
+}
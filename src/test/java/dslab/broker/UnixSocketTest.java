@@ -0,0 +1,121 @@
+package dslab.broker;
+
+import dslab.ComponentFactory;
+import dslab.config.BrokerConfig;
+import dslab.util.ConfigFactory;
+import dslab.util.Constants;
+import dslab.util.Global;
+import dslab.util.Util;
+import dslab.util.helper.TelnetClientHelper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static dslab.util.CommandBuilder.SUBSCRIBE;
+import static dslab.util.CommandBuilder.exchange;
+import static dslab.util.CommandBuilder.publish;
+import static dslab.util.CommandBuilder.queue;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Tests that a broker with {@code broker.unix.socket.path} serves SMQP clients on that Unix domain socket as well.
+ */
+public class UnixSocketTest {
+
+    private final Path socketPath = Path.of(System.getProperty("java.io.tmpdir"),
+            "broker-%s.sock".formatted(Global.SECURE_STRING_GENERATOR.getSecureString()));
+    private final BrokerConfig config = ConfigFactory.createBrokerConfigA2().toBuilder()
+            .unixSocketPath(socketPath.toString())
+            .build();
+    private final String queueName = "queue-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private IBroker broker;
+    private Thread brokerThread;
+    private SocketChannel local;
+    private TelnetClientHelper publisher;
+
+    @AfterEach
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void afterEach() throws IOException, InterruptedException {
+        if (local != null) {
+            local.close();
+        }
+        if (publisher != null) {
+            publisher.disconnect();
+        }
+        if (broker != null) {
+            shutdown();
+        }
+        Files.deleteIfExists(socketPath);
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void subscribe_overUnixSocket_receivesMessagesPublishedOverTcp() throws IOException {
+        start();
+        local = SocketChannel.open(StandardProtocolFamily.UNIX);
+        local.connect(UnixDomainSocketAddress.of(socketPath));
+        BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(local), StandardCharsets.UTF_8));
+        OutputStream out = Channels.newOutputStream(local);
+        assertEquals("ok SMQP", in.readLine());
+
+        out.write("%s\n%s\n".formatted(queue(queueName), SUBSCRIBE).getBytes(StandardCharsets.UTF_8));
+        assertEquals("ok", in.readLine());
+        assertEquals("ok", in.readLine());
+
+        publisher = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+        publisher.connectAndReadResponse();
+        publisher.sendCommandAndReadResponse(exchange("default", "default"));
+        publisher.sendCommandAndReadResponse(publish(queueName, "VERIFICATION-MESSAGE"));
+
+        assertEquals("VERIFICATION-MESSAGE", in.readLine());
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void start_replacesStaleSocketFile_shutdownDeletesIt() throws IOException, InterruptedException {
+        Files.createFile(socketPath); // left over by a broker that was killed
+
+        start();
+        local = SocketChannel.open(StandardProtocolFamily.UNIX);
+        local.connect(UnixDomainSocketAddress.of(socketPath));
+        local.close();
+
+        shutdown();
+        assertFalse(Files.exists(socketPath));
+    }
+
+    private void start() {
+        broker = ComponentFactory.createBroker(config);
+        brokerThread = new Thread(broker);
+        brokerThread.start();
+
+        TelnetClientHelper waitForConnHelper = new TelnetClientHelper(Constants.LOCALHOST, config.port());
+        waitForConnHelper.waitForInitConnection();
+        try {
+            waitForConnHelper.disconnect();
+        } catch (IOException e) {
+            // ignored
+        }
+    }
+
+    private void shutdown() throws InterruptedException {
+        broker.shutdown();
+        brokerThread.join();
+        broker = null;
+        Util.waitForTcpPortsToClose(config.port());
+    }
+}
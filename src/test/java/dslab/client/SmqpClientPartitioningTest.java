@@ -0,0 +1,103 @@
+package dslab.client;
+
+import dslab.assignment3.cluster.BaseClusterTest;
+import dslab.broker.Broker;
+import dslab.broker.IBroker;
+import dslab.broker.MessageStore;
+import dslab.config.BrokerConfig;
+import dslab.util.Constants;
+import dslab.util.Global;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests that fetches and subscriptions of the client library follow {@code error moved} to the broker that holds the
+ * queue.
+ */
+public class SmqpClientPartitioningTest extends BaseClusterTest {
+
+    private final String queueName = "queue-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private SmqpClient client;
+
+    @Override
+    protected BrokerConfig configure(BrokerConfig config) {
+        return config.toBuilder().partitioningEnabled(true).build();
+    }
+
+    @AfterEach
+    void closeClient() {
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void fetch_onOtherBroker_followsMovedToOwner() throws Exception {
+        awaitLeader(-1);
+        int other = (declareAndFindOwner() + 1) % NUM_BROKERS;
+        client = new SmqpClient(Constants.LOCALHOST + ":" + brokerConfigs[other].port(), 1);
+
+        client.publish("default", queueName, "VERIFICATION-MESSAGE".getBytes(StandardCharsets.UTF_8))
+                .get(5, TimeUnit.SECONDS);
+
+        List<SmqpMessage> messages = client.fetch(queueName, 10, 1000);
+        assertEquals(1, messages.size());
+        assertEquals("VERIFICATION-MESSAGE", new String(messages.get(0).payload(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void subscribe_onOtherBroker_followsMovedToOwner() throws Exception {
+        awaitLeader(-1);
+        int other = (declareAndFindOwner() + 1) % NUM_BROKERS;
+        client = new SmqpClient(Constants.LOCALHOST + ":" + brokerConfigs[other].port(), 1);
+
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        SmqpSubscription subscription = client.subscribe(queueName,
+                (key, payload) -> received.add(new String(payload, StandardCharsets.UTF_8)));
+        await().atMost(5, TimeUnit.SECONDS).until(subscription::isConnected);
+
+        client.publish("default", queueName, "VERIFICATION-MESSAGE".getBytes(StandardCharsets.UTF_8))
+                .get(5, TimeUnit.SECONDS);
+        await().atMost(5, TimeUnit.SECONDS).until(() -> received.contains("VERIFICATION-MESSAGE"));
+    }
+
+    /**
+     * Declares the queue through a client of broker 0 and waits until all brokers know it.
+     *
+     * @return the id of the broker that holds the queue
+     */
+    private int declareAndFindOwner() throws Exception {
+        try (SmqpClient admin = new SmqpClient(Constants.LOCALHOST + ":" + brokerConfigs[0].port(), 1)) {
+            admin.declareQueue(queueName);
+        }
+
+        await().atMost(5, TimeUnit.SECONDS).pollInterval(10, TimeUnit.MILLISECONDS).until(() -> {
+            for (IBroker broker : brokers) {
+                if (((Broker) broker).getStore().getQueue(queueName) == null) {
+                    return false;
+                }
+            }
+            return true;
+        });
+
+        for (int id = 0; id < NUM_BROKERS; id++) {
+            MessageStore store = ((Broker) brokers[id]).getStore();
+            if (store.isLocal(store.getQueue(queueName))) {
+                return id;
+            }
+        }
+        throw new AssertionError("no broker holds " + queueName);
+    }
+}
@@ -0,0 +1,187 @@
+package dslab.client;
+
+import dslab.assignment3.cluster.BaseClusterTest;
+import dslab.broker.ExchangeType;
+import dslab.util.Constants;
+import dslab.util.Global;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Tests the client library against a replicated cluster whose leader it finds through the DNS server.
+ */
+public class SmqpClientTest extends BaseClusterTest {
+
+    private final String exchangeName = "exchange-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String queueName = "queue-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private final String routingKey = "rk-%s".formatted(Global.SECURE_STRING_GENERATOR.getSecureString());
+    private SmqpClient client;
+
+    @Override
+    protected boolean startsDnsServer() {
+        return true;
+    }
+
+    @AfterEach
+    void closeClient() {
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void publish_pipelined_confirmsEveryMessage_andFetchReturnsThemInOrder() throws Exception {
+        final int numOfMessages = 200;
+        int leader = awaitLeader(-1);
+        client = new SmqpClient(Constants.LOCALHOST, Constants.DNS_PORT, "election.brokers.at", 1);
+        declare();
+
+        // sent without waiting, the confirmations arrive in order on the single connection
+        List<CompletableFuture<Void>> confirmations = new ArrayList<>();
+        for (int i = 0; i < numOfMessages; i++) {
+            confirmations.add(client.publish(exchangeName, routingKey, payload("VERIFICATION-MESSAGE-" + i)));
+        }
+        CompletableFuture.allOf(confirmations.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+        assertEquals(numOfMessages, size(brokers[leader], queueName));
+
+        List<SmqpMessage> messages = client.fetch(queueName, numOfMessages, 1000);
+        assertEquals(numOfMessages, messages.size());
+        for (int i = 0; i < numOfMessages; i++) {
+            assertEquals(routingKey, messages.get(i).routingKey());
+            assertEquals("VERIFICATION-MESSAGE-" + i, text(messages.get(i).payload()));
+        }
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void fetch_returnsAtMostMaxMessages_andNoneAfterWait() throws Exception {
+        awaitLeader(-1);
+        client = new SmqpClient(Constants.LOCALHOST, Constants.DNS_PORT, "election.brokers.at", 2);
+        declare();
+        for (int i = 0; i < 3; i++) {
+            client.publish(exchangeName, routingKey, payload("VERIFICATION-MESSAGE-" + i)).get(5, TimeUnit.SECONDS);
+        }
+
+        // each fetch reads exactly the announced number of messages, the next one starts after them
+        List<SmqpMessage> first = client.fetch(queueName, 2, 0);
+        List<SmqpMessage> second = client.fetch(queueName, 5, 0);
+        List<SmqpMessage> third = client.fetch(queueName, 5, 100);
+
+        assertEquals(2, first.size());
+        assertEquals("VERIFICATION-MESSAGE-0", text(first.get(0).payload()));
+        assertEquals("VERIFICATION-MESSAGE-1", text(first.get(1).payload()));
+        assertEquals(1, second.size());
+        assertEquals("VERIFICATION-MESSAGE-2", text(second.get(0).payload()));
+        assertThat(third).isEmpty();
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void openChannel_sharesConnection_andClosedChannelIsTakenAgain() throws IOException {
+        awaitLeader(-1);
+        client = new SmqpClient(Constants.LOCALHOST, Constants.DNS_PORT, "election.brokers.at", 1);
+
+        SmqpClient.Channel first = client.openChannel(null, (key, payload) -> {
+        });
+        SmqpClient.Channel second = client.openChannel(null, (key, payload) -> {
+        });
+        assertSame(first.connection(), second.connection());
+        assertNotEquals(first.id(), second.id());
+
+        // channels are handed out in turn, a closed one is taken again once the others were
+        first.connection().closeChannel(first.id());
+        for (int i = 0; i < SmqpConnection.MAX_CHANNELS - 3; i++) {
+            assertSame(first.connection(), client.openChannel(null, (key, payload) -> {
+            }).connection());
+        }
+        SmqpClient.Channel reused = client.openChannel(null, (key, payload) -> {
+        });
+        assertSame(first.connection(), reused.connection());
+        assertEquals(first.id(), reused.id());
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void subscribe_onTwoQueues_ofOneConnection_deliversEachQueue() throws Exception {
+        awaitLeader(-1);
+        client = new SmqpClient(Constants.LOCALHOST, Constants.DNS_PORT, "election.brokers.at", 1);
+        declare();
+        String otherQueue = queueName + "-other";
+        client.declareQueue(otherQueue);
+
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        List<String> otherReceived = Collections.synchronizedList(new ArrayList<>());
+        SmqpSubscription subscription = client.subscribe(queueName, (key, payload) -> received.add(text(payload)));
+        SmqpSubscription otherSubscription = client.subscribe(otherQueue, (key, payload) -> otherReceived.add(text(payload)));
+        await().atMost(5, TimeUnit.SECONDS).until(() -> subscription.isConnected() && otherSubscription.isConnected());
+
+        client.publish(exchangeName, routingKey, payload("VERIFICATION-MESSAGE-1")).get(5, TimeUnit.SECONDS);
+        client.publish("default", otherQueue, payload("VERIFICATION-MESSAGE-2")).get(5, TimeUnit.SECONDS);
+
+        await().atMost(5, TimeUnit.SECONDS).until(() -> received.size() == 1 && otherReceived.size() == 1);
+        assertEquals("VERIFICATION-MESSAGE-1", received.get(0));
+        assertEquals("VERIFICATION-MESSAGE-2", otherReceived.get(0));
+    }
+
+    @Test
+    @Timeout(value = 20, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void leaderFails_clientAndSubscriptionMoveToNewLeader() throws Exception {
+        int leader = awaitLeader(-1);
+        client = new SmqpClient(Constants.LOCALHOST, Constants.DNS_PORT, "election.brokers.at", 1);
+        declare();
+        awaitReplicated(queueName, 0);
+
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        SmqpSubscription subscription = client.subscribe(queueName, (key, payload) -> received.add(text(payload)));
+        await().atMost(5, TimeUnit.SECONDS).until(subscription::isConnected);
+        client.publish(exchangeName, routingKey, payload("VERIFICATION-MESSAGE-1")).get(5, TimeUnit.SECONDS);
+        await().atMost(5, TimeUnit.SECONDS).until(() -> received.contains("VERIFICATION-MESSAGE-1"));
+
+        shutdown(leader);
+        awaitLeader(leader);
+
+        // the publish on the failed connection completes exceptionally, the next one goes to the new leader
+        while (true) {
+            try {
+                client.publish(exchangeName, routingKey, payload("VERIFICATION-MESSAGE-2")).get(15, TimeUnit.SECONDS);
+                break;
+            } catch (ExecutionException e) {
+                // sent to the failed leader
+            }
+        }
+        await().atMost(5, TimeUnit.SECONDS).until(() -> received.contains("VERIFICATION-MESSAGE-2"));
+    }
+
+    private void declare() throws IOException {
+        client.declareExchange(ExchangeType.DIRECT, exchangeName);
+        client.declareQueue(queueName);
+        client.bind(exchangeName, queueName, routingKey);
+        // repeated declarations are confirmed again, but only declared once on new connections
+        client.declareQueue(queueName);
+    }
+
+    private static byte[] payload(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] payload) {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+}
@@ -69,6 +69,36 @@ public class ConfigFactory {
         return configs;
     }
 
+    /**
+     * RAFT brokers that all have the same heartbeat timeout, so they time out at the same moment unless the
+     * election is randomized.
+     */
+    public static BrokerConfig[] createRaftBrokerConfigs(int numBrokers, long timeoutMs, boolean terms, boolean preVote, long jitterMs) {
+        return createUniformBrokerConfigs(numBrokers, "raft", timeoutMs, terms, preVote, jitterMs);
+    }
+
+    /**
+     * Brokers that all have the same heartbeat timeout, unlike {@link #createBrokerConfigsA3}, where the timeouts
+     * grow with the id. Terms and pre-vote only apply to RAFT.
+     */
+    public static BrokerConfig[] createUniformBrokerConfigs(int numBrokers, String electionType, long timeoutMs, boolean terms, boolean preVote, long jitterMs) {
+        Integer[] ids = new Integer[numBrokers];
+        for (int i = 0; i < numBrokers; i++) {
+            ids[i] = i;
+        }
+
+        BrokerConfig[] configs = createBrokerConfigsA3(numBrokers, electionType, ids);
+        for (int id = 0; id < numBrokers; id++) {
+            configs[id] = configs[id].toBuilder()
+                    .electionHeartbeatTimeoutMs(timeoutMs)
+                    .electionRaftTerms(terms)
+                    .electionRaftPreVote(preVote)
+                    .electionTimeoutJitterMs(jitterMs)
+                    .build();
+        }
+        return configs;
+    }
+
     public static BrokerConfig[] createBrokerConfigsA3(int numBrokers, String electionType, Integer[] electionIds) {
         BrokerConfig[] configs = new BrokerConfig[numBrokers];
 
@@ -0,0 +1,98 @@
+package dslab.util.helper;
+
+import dslab.broker.Frame;
+import dslab.broker.enums.Opcode;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Client of the binary SMQP framing. It keeps track of the channel the broker announced with its {@code channel}
+ * frames, so every frame read can be attributed to its channel.
+ */
+public class BinaryClientHelper {
+
+    private final String remoteHost;
+    private final int remotePort;
+    private Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+    private int channel;
+
+    public BinaryClientHelper(String remoteHost, int remotePort) {
+        this.remoteHost = remoteHost;
+        this.remotePort = remotePort;
+    }
+
+    /**
+     * Connects, reads the greeting and switches the connection to binary mode.
+     *
+     * @return the response to {@code binary}
+     */
+    public String connectAndSwitchToBinary() throws IOException {
+        socket = new Socket(remoteHost, remotePort);
+        BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+        readLine(input);
+        out.write("binary\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        String response = readLine(input);
+        in = new DataInputStream(input);
+        return response;
+    }
+
+    public void send(Frame frame) throws IOException {
+        ByteBuffer encoded = frame.encode();
+        out.write(encoded.array(), 0, encoded.limit());
+        out.flush();
+    }
+
+    /**
+     * Selects the channel for the frames sent afterwards.
+     */
+    public void selectChannel(int channel) throws IOException {
+        send(Frame.of(Opcode.CHANNEL, String.valueOf(channel)));
+    }
+
+    /**
+     * Reads the next frame other than a {@code channel} frame, see {@link #getChannel()} for its channel.
+     *
+     * @return the frame, or null if the broker closed the connection
+     */
+    public Frame read() throws IOException {
+        Frame frame;
+        while ((frame = Frame.read(in)) != null && frame.opcode() == Opcode.CHANNEL) {
+            channel = Integer.parseInt(frame.key());
+        }
+        return frame;
+    }
+
+    /**
+     * @return the channel of the frame read last
+     */
+    public int getChannel() {
+        return channel;
+    }
+
+    public void disconnect() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8).trim();
+    }
+}
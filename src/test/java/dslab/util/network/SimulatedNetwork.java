@@ -0,0 +1,277 @@
+package dslab.util.network;
+
+import dslab.broker.PeerChannel;
+import dslab.broker.Receiver;
+import dslab.broker.Transport;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process network for clusters of brokers inside one JVM, created with
+ * {@link dslab.ComponentFactory#createBroker(dslab.config.BrokerConfig, Transport)} and {@link #transport(int)}.
+ * <p>
+ * Every message travels with a random latency between the configured bounds, the messages of one channel keep their
+ * order. As over TCP, a lost message is sent again after a retransmission timeout and holds up the messages behind it.
+ * Partitions split the brokers into groups that cannot reach each other, a message that cannot reach its broker is
+ * answered with null, as if the connection broke. Latencies and losses are drawn from a seeded random generator, the
+ * scheduling of the brokers' threads is not simulated.
+ * <p>
+ * The messages sent are counted by command, e.g. {@code elect}, {@code declare} or {@code ping}.
+ */
+public class SimulatedNetwork {
+    private static final long RETRANSMISSION_TIMEOUT_MS = 200; // the minimum of Linux
+
+    private final Random random; // guarded by this
+    private volatile long minLatencyNanos;
+    private volatile long maxLatencyNanos;
+    private volatile double lossRate;
+    private volatile Map<Integer, Integer> groups = Map.of(); // broker id to its group, empty if not partitioned
+
+    private final Map<Integer, Endpoint> endpoints = new ConcurrentHashMap<>(); // by election port
+    private final Map<String, LongAdder> sent = new ConcurrentHashMap<>();
+
+    private record Endpoint(int brokerId, Receiver receiver) {
+    }
+
+    private record Delivery(long atNanos, String[] lines, String response, CompletableFuture<String> result) {
+    }
+
+    public SimulatedNetwork(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @return the transport for the broker with the given election id
+     */
+    public Transport transport(int brokerId) {
+        return new Transport() {
+            @Override
+            public PeerChannel connect(int peerId, String host, int port) {
+                return new Channel(brokerId, peerId, port);
+            }
+
+            @Override
+            public Closeable listen(int port, Receiver receiver) {
+                Endpoint endpoint = new Endpoint(brokerId, receiver);
+                endpoints.put(port, endpoint);
+                return () -> endpoints.remove(port, endpoint);
+            }
+        };
+    }
+
+    public void setLatency(long minMs, long maxMs) {
+        minLatencyNanos = TimeUnit.MILLISECONDS.toNanos(minMs);
+        maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(minMs, maxMs));
+    }
+
+    /**
+     * @param lossRate the probability that a message or its response is lost and has to be sent again
+     */
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * Splits the brokers into the given groups of ids, messages only reach brokers of the same group. Brokers that
+     * are not listed are cut off from all others.
+     */
+    public void partition(int[]... brokerIds) {
+        Map<Integer, Integer> partitioned = new HashMap<>();
+        for (int group = 0; group < brokerIds.length; group++) {
+            for (int id : brokerIds[group]) {
+                partitioned.put(id, group);
+            }
+        }
+        groups = partitioned;
+    }
+
+    public void heal() {
+        groups = Map.of();
+    }
+
+    /**
+     * @return the number of messages with the given command sent since the last reset
+     */
+    public long getMessageCount(String command) {
+        LongAdder count = sent.get(command);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * @return the number of messages sent since the last reset
+     */
+    public long getMessageCount() {
+        long total = 0;
+        for (LongAdder count : sent.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    public void resetMessageCounts() {
+        sent.clear();
+    }
+
+    private boolean reachable(int from, int to) {
+        Map<Integer, Integer> current = groups;
+        if (current.isEmpty()) {
+            return true;
+        }
+        Integer fromGroup = current.get(from);
+        return fromGroup != null && fromGroup.equals(current.get(to));
+    }
+
+    private synchronized long nextLatency() {
+        if (maxLatencyNanos <= minLatencyNanos) {
+            return minLatencyNanos;
+        }
+        return minLatencyNanos + (long) (random.nextDouble() * (maxLatencyNanos - minLatencyNanos));
+    }
+
+    private synchronized boolean nextLost() {
+        return lossRate > 0 && random.nextDouble() < lossRate;
+    }
+
+    private void retransmitWhileLost() throws InterruptedException {
+        while (nextLost()) {
+            Thread.sleep(RETRANSMISSION_TIMEOUT_MS);
+        }
+    }
+
+    private static void sleepUntil(long nanos) throws InterruptedException {
+        long remaining = nanos - System.nanoTime();
+        if (remaining > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    /**
+     * The messages from one broker to one peer. One thread delivers the messages in order after their latency, another
+     * one returns the responses in order after theirs.
+     */
+    private class Channel implements PeerChannel {
+        private final int from;
+        private final int peerId;
+        private final int port;
+        private final BlockingQueue<Delivery> requests = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Delivery> responses = new LinkedBlockingQueue<>();
+
+        // guarded by this
+        private long lastDelivery;
+        private long lastResponse;
+        private Thread requestThread;
+        private Thread responseThread;
+        private boolean closed;
+
+        Channel(int from, int peerId, int port) {
+            this.from = from;
+            this.peerId = peerId;
+            this.port = port;
+        }
+
+        @Override
+        public int getPeerId() {
+            return peerId;
+        }
+
+        @Override
+        public CompletableFuture<String> send(String... lines) {
+            sent.computeIfAbsent(lines[0].split(" ", 2)[0], command -> new LongAdder()).increment();
+
+            CompletableFuture<String> result = new CompletableFuture<>();
+            long now = System.nanoTime();
+            synchronized (this) {
+                if (closed) {
+                    result.complete(null);
+                    return result;
+                }
+                if (requestThread == null) {
+                    requestThread = Thread.ofVirtual().start(this::deliverRequests);
+                    responseThread = Thread.ofVirtual().start(this::deliverResponses);
+                }
+                lastDelivery = Math.max(now + nextLatency(), lastDelivery);
+                requests.add(new Delivery(lastDelivery, lines, null, result));
+            }
+            return result;
+        }
+
+        private void deliverRequests() {
+            Delivery request = null;
+            try {
+                while (true) {
+                    request = requests.take();
+                    sleepUntil(request.atNanos());
+                    retransmitWhileLost();
+
+                    Endpoint target = endpoints.get(port);
+                    if (target == null || !reachable(from, target.brokerId())) {
+                        request.result().complete(null);
+                        continue;
+                    }
+                    Delivery delivered = request;
+                    target.receiver().receive(request.lines(), response -> respond(delivered, response));
+                }
+            } catch (InterruptedException e) {
+                if (request != null) {
+                    request.result().complete(null); // closed, no effect if it was completed already
+                }
+            }
+        }
+
+        private synchronized void respond(Delivery request, String response) {
+            if (responseThread == null) {
+                request.result().complete(null); // closed in the meantime
+                return;
+            }
+            lastResponse = Math.max(System.nanoTime() + nextLatency(), lastResponse);
+            responses.add(new Delivery(lastResponse, request.lines(), response, request.result()));
+        }
+
+        private void deliverResponses() {
+            Delivery response = null;
+            try {
+                while (true) {
+                    response = responses.take();
+                    sleepUntil(response.atNanos());
+                    retransmitWhileLost();
+
+                    Endpoint target = endpoints.get(port);
+                    boolean delivered = target != null && reachable(target.brokerId(), from);
+                    response.result().complete(delivered ? response.response() : null);
+                }
+            } catch (InterruptedException e) {
+                if (response != null) {
+                    response.result().complete(null);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            if (requestThread != null) {
+                requestThread.interrupt();
+                responseThread.interrupt();
+                requestThread = null;
+                responseThread = null;
+            }
+            for (Delivery delivery : requests) {
+                delivery.result().complete(null);
+            }
+            for (Delivery delivery : responses) {
+                delivery.result().complete(null);
+            }
+            requests.clear();
+            responses.clear();
+        }
+    }
+}